@@ -22,12 +22,12 @@ public class Async {
 		getWorker().start(job);
 	}
 
-	public static AsyncWorker getWorker() {
-		if (worker == null) worker = new ExecutorAsyncWorker();
+	public static synchronized AsyncWorker getWorker() {
+		if (worker == null) worker = new AsyncEngine();
 		return worker;
 	}
 
-	public static void setWorker(AsyncWorker worker) {
+	public static synchronized void setWorker(AsyncWorker worker) {
 		Async.worker = worker;
 	}
 
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.async;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.concurrent.Histogram;
+import ilarkesto.core.logging.Log;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs jobs in a bounded pool and returns a <code>JobHandle</code> for each, which supports cancellation,
+ * timeouts and composition. Jobs started with a key are deduplicated: while a job with the same key is in flight,
+ * further jobs are not run but get the result of the running one. When all threads are busy and the queue is full,
+ * jobs fail with a <code>RejectedExecutionException</code> instead of piling up threads.
+ */
+public class AsyncEngine implements AsyncWorker {
+
+	private static final Log log = Log.get(AsyncEngine.class);
+
+	private ThreadPoolExecutor jobExecutor;
+	private Executor callbackExecutor;
+	private boolean callbackExecutorOwned;
+	private volatile ScheduledExecutorService timer;
+	private long defaultTimeoutMillis;
+
+	private ConcurrentMap<Object, JobHandle<?>> inFlight = new ConcurrentHashMap<Object, JobHandle<?>>();
+
+	private AtomicInteger runningCount = new AtomicInteger();
+	private AtomicLong submittedCount = new AtomicLong();
+	private AtomicLong failedCount = new AtomicLong();
+	private AtomicLong cancelledCount = new AtomicLong();
+	private AtomicLong timedOutCount = new AtomicLong();
+	private AtomicLong rejectedCount = new AtomicLong();
+	private AtomicLong deduplicatedCount = new AtomicLong();
+	private Histogram queueWait = new Histogram();
+	private Histogram runTime = new Histogram();
+
+	/**
+	 * @param threads maximum number of jobs running at the same time
+	 * @param queueCapacity jobs waiting for a thread, before further jobs are rejected
+	 * @param callbackExecutor runs the callbacks of the jobs
+	 */
+	public AsyncEngine(int threads, int queueCapacity, Executor callbackExecutor) {
+		jobExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new DeamonThreadFactory());
+		jobExecutor.allowCoreThreadTimeOut(true);
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	public AsyncEngine(int threads, int queueCapacity) {
+		this(threads, queueCapacity, createCallbackExecutor());
+		callbackExecutorOwned = true;
+	}
+
+	public AsyncEngine() {
+		this(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 1000);
+	}
+
+	/**
+	 * Timeout for jobs started without an explicit one. <code>0</code> means no timeout.
+	 */
+	public AsyncEngine setDefaultTimeout(long timeoutMillis) {
+		this.defaultTimeoutMillis = timeoutMillis;
+		return this;
+	}
+
+	@Override
+	public void start(Job job) {
+		submit(job);
+	}
+
+	public <R> JobHandle<R> submit(Job<R> job) {
+		return submit(null, job, defaultTimeoutMillis);
+	}
+
+	public <R> JobHandle<R> submit(Job<R> job, long timeoutMillis) {
+		return submit(null, job, timeoutMillis);
+	}
+
+	/**
+	 * Starts the job unless a job with the same key is in flight. In that case the callback of the given job is
+	 * called with the result of the job in flight, whose handle is returned.
+	 *
+	 * @param key identifies equal jobs, <code>null</code> for no deduplication
+	 * @param timeoutMillis the job fails with a <code>TimeoutException</code> after this time, <code>0</code> for no
+	 *            timeout
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> JobHandle<R> submit(Object key, final Job<R> job, long timeoutMillis) {
+		JobHandle<R> handle = new JobHandle<R>(this, job, key);
+		if (key != null) {
+			JobHandle<R> existing = (JobHandle<R>) inFlight.putIfAbsent(key, handle);
+			if (existing != null) {
+				deduplicatedCount.incrementAndGet();
+				existing.addCallback(new Callback<R>() {
+
+					@Override
+					public void onSuccess(R result) {
+						job.onSuccess(result);
+					}
+
+					@Override
+					public void onError(Throwable error) {
+						job.onError(error);
+					}
+				});
+				return existing;
+			}
+		}
+
+		submittedCount.incrementAndGet();
+		try {
+			jobExecutor.execute(handle);
+		} catch (RejectedExecutionException ex) {
+			rejectedCount.incrementAndGet();
+			handle.complete(null, new RejectedExecutionException("Too many jobs queued, rejected: " + job));
+			return handle;
+		}
+		if (timeoutMillis > 0) scheduleTimeout(handle, timeoutMillis);
+		return handle;
+	}
+
+	/**
+	 * Interrupts the running jobs. Callbacks already queued are still delivered, if the callback executor was
+	 * created by the engine.
+	 */
+	public void shutdown() {
+		jobExecutor.shutdownNow();
+		if (timer != null) timer.shutdownNow();
+		if (callbackExecutorOwned) ((ExecutorService) callbackExecutor).shutdown();
+	}
+
+	// --- metrics ---
+
+	public int getQueueSize() {
+		return jobExecutor.getQueue().size();
+	}
+
+	public int getRunningCount() {
+		return runningCount.get();
+	}
+
+	public int getInFlightKeyCount() {
+		return inFlight.size();
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.get();
+	}
+
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getDeduplicatedCount() {
+		return deduplicatedCount.get();
+	}
+
+	/**
+	 * Time between submitting and starting jobs.
+	 */
+	public Histogram getQueueWait() {
+		return queueWait;
+	}
+
+	public Histogram getRunTime() {
+		return runTime;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncEngine(running " + runningCount + ", queued " + getQueueSize() + ", queue wait " + queueWait
+				+ ", run time " + runTime + ")";
+	}
+
+	// --- callbacks from JobHandle ---
+
+	void jobStarted(long queueWaitNanos) {
+		runningCount.incrementAndGet();
+		queueWait.record(queueWaitNanos);
+	}
+
+	void jobFinished(long runTimeNanos) {
+		runningCount.decrementAndGet();
+		runTime.record(runTimeNanos);
+	}
+
+	void jobCompleted(JobHandle<?> handle, Throwable error) {
+		if (handle.getJob() == null) return;
+		if (handle.getKey() != null) inFlight.remove(handle.getKey(), handle);
+		if (error != null) failedCount.incrementAndGet();
+	}
+
+	void jobCancelled(JobHandle<?> handle) {
+		if (handle.getJob() == null) return;
+		cancelledCount.incrementAndGet();
+		jobExecutor.remove(handle);
+	}
+
+	void jobTimedOut() {
+		timedOutCount.incrementAndGet();
+	}
+
+	<R> void deliver(final Job<R> job, final List<Callback<R>> callbacks, final R result, final Throwable error) {
+		if (job == null && callbacks.isEmpty()) return;
+		callbackExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (job != null) callJob(job, result, error);
+				for (Callback<R> callback : callbacks) {
+					callCallback(callback, result, error);
+				}
+			}
+		});
+	}
+
+	private static <R> void callCallback(Callback<R> callback, R result, Throwable error) {
+		try {
+			if (error == null) {
+				callback.onSuccess(result);
+			} else {
+				callback.onError(error);
+			}
+		} catch (Throwable ex) {
+			log.error("Async callback failed:", callback, ex);
+		}
+	}
+
+	private static <R> void callJob(Job<R> job, R result, Throwable error) {
+		try {
+			if (error == null) {
+				job.onSuccess(result);
+			} else {
+				job.onError(error);
+			}
+		} catch (Throwable ex) {
+			log.error("Async job callback failed:", job, ex);
+		}
+	}
+
+	private void scheduleTimeout(final JobHandle<?> handle, final long timeoutMillis) {
+		handle.setTimeout(getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				handle.timeout(timeoutMillis);
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS));
+	}
+
+	private ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			synchronized (this) {
+				if (timer == null) timer = Executors.newSingleThreadScheduledExecutor(new DeamonThreadFactory());
+			}
+		}
+		return timer;
+	}
+
+	private static Executor createCallbackExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DeamonThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.async;
+
+import ilarkesto.fp.Function;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A job started by an <code>AsyncEngine</code>. Completes exactly once, by the job itself, by
+ * <code>cancel()</code> or by its timeout. Callbacks are delivered on the callback executor of the engine.
+ */
+public class JobHandle<R> implements Future<R>, Runnable {
+
+	private static final int PENDING = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+
+	private static final int COMPLETED = 0;
+	private static final int CANCELLED = 1;
+	private static final int TIMED_OUT = 2;
+
+	private AsyncEngine engine;
+	private Job<R> job;
+	private Object key;
+	private long submitTime = System.nanoTime();
+
+	private int state = PENDING;
+	private boolean cancelled;
+	private R result;
+	private Throwable error;
+	private Thread thread;
+	private List<Callback<R>> callbacks = new ArrayList<Callback<R>>(1);
+	private Future<?> timeout;
+
+	JobHandle(AsyncEngine engine, Job<R> job, Object key) {
+		this.engine = engine;
+		this.job = job;
+		this.key = key;
+	}
+
+	/**
+	 * Registers an additional callback. If the job is already done, the callback is called right away.
+	 */
+	public JobHandle<R> addCallback(Callback<R> callback) {
+		synchronized (this) {
+			if (state != DONE) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		List<Callback<R>> single = new ArrayList<Callback<R>>(1);
+		single.add(callback);
+		engine.deliver(null, single, result, error);
+		return this;
+	}
+
+	/**
+	 * Starts the job created by <code>next</code> from the result of this job. Errors and cancellation of this job
+	 * are passed on to the returned handle.
+	 */
+	public <T> JobHandle<T> thenStart(final Function<R, Job<T>> next) {
+		final JobHandle<T> ret = new JobHandle<T>(engine, null, null);
+		addCallback(new Callback<R>() {
+
+			@Override
+			public void onSuccess(R result) {
+				Job<T> nextJob;
+				try {
+					nextJob = next.eval(result);
+				} catch (Throwable ex) {
+					ret.complete(null, ex);
+					return;
+				}
+				engine.submit(nextJob).addCallback(new Callback<T>() {
+
+					@Override
+					public void onSuccess(T result) {
+						ret.complete(result, null);
+					}
+
+					@Override
+					public void onError(Throwable error) {
+						ret.complete(null, error);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				ret.complete(null, error);
+			}
+		});
+		return ret;
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (state != PENDING) return;
+			state = RUNNING;
+			thread = Thread.currentThread();
+		}
+		long startTime = System.nanoTime();
+		engine.jobStarted(startTime - submitTime);
+		R value = null;
+		Throwable failure = null;
+		try {
+			value = job.runJob();
+		} catch (Throwable ex) {
+			failure = ex;
+		}
+		engine.jobFinished(System.nanoTime() - startTime);
+		synchronized (this) {
+			thread = null;
+		}
+		// clear an interrupt from a cancel or timeout which came too late
+		Thread.interrupted();
+		complete(value, failure);
+	}
+
+	/**
+	 * The job thread is interrupted only after the cancellation completed the job, so the interrupted job can not
+	 * complete it first.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(null, new CancellationException("Job cancelled: " + job), CANCELLED)) return false;
+		if (mayInterruptIfRunning) interruptJobThread();
+		return true;
+	}
+
+	void timeout(long timeoutMillis) {
+		if (complete(null, new TimeoutException("Job timed out after " + timeoutMillis + " ms: " + job), TIMED_OUT))
+			interruptJobThread();
+	}
+
+	private synchronized void interruptJobThread() {
+		// the thread clears the interrupt after it left the job
+		if (thread != null) thread.interrupt();
+	}
+
+	boolean complete(R result, Throwable error) {
+		return complete(result, error, COMPLETED);
+	}
+
+	private boolean complete(R result, Throwable error, int outcome) {
+		List<Callback<R>> toNotify;
+		synchronized (this) {
+			if (state == DONE) return false;
+			state = DONE;
+			cancelled = outcome == CANCELLED;
+			this.result = result;
+			this.error = error;
+			toNotify = callbacks;
+			callbacks = null;
+			// the engine metrics are updated before waiting threads return
+			engine.jobCompleted(this, error);
+			if (outcome == CANCELLED) engine.jobCancelled(this);
+			if (outcome == TIMED_OUT) engine.jobTimedOut();
+			notifyAll();
+		}
+		if (timeout != null) timeout.cancel(false);
+		engine.deliver(job, toNotify, result, error);
+		return true;
+	}
+
+	synchronized void setTimeout(Future<?> timeout) {
+		if (state == DONE) {
+			timeout.cancel(false);
+		} else {
+			this.timeout = timeout;
+		}
+	}
+
+	Object getKey() {
+		return key;
+	}
+
+	public Job<R> getJob() {
+		return job;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return state == DONE;
+	}
+
+	public synchronized boolean isRunning() {
+		return state == RUNNING;
+	}
+
+	@Override
+	public synchronized R get() throws InterruptedException, ExecutionException {
+		while (state != DONE) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized R get(long time, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(time);
+		while (state != DONE) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException("Job not done: " + job);
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private R getResult() throws ExecutionException {
+		if (cancelled) throw new CancellationException("Job cancelled: " + job);
+		if (error != null) throw new ExecutionException(error);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(job);
+	}
+
+}
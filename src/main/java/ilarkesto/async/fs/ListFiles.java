@@ -15,9 +15,12 @@
 package ilarkesto.async.fs;
 
 import ilarkesto.async.AJob;
+import ilarkesto.io.FileWalker;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ListFiles extends AJob<List<File>> {
@@ -27,6 +30,12 @@ public class ListFiles extends AJob<List<File>> {
 
 	private boolean recurse;
 	private boolean includeDirs;
+	private FileFilter filter;
+	private int parallelism = 1;
+	private FileWalker.Visitor visitor;
+
+	private volatile FileWalker walker;
+	private volatile boolean cancelled;
 
 	public ListFiles(File rootDir) {
 		this.rootDir = rootDir;
@@ -38,23 +47,33 @@ public class ListFiles extends AJob<List<File>> {
 
 	@Override
 	public List<File> runJob() {
-		listFiles(rootDir);
+		if (rootDir == null) return result;
+		walker = new FileWalker(rootDir).setRecurse(recurse).setIncludeDirs(includeDirs).setFilter(filter)
+				.setParallelism(parallelism);
+		if (cancelled) walker.cancel();
+
+		FileWalker.Visitor visitor = this.visitor;
+		if (visitor == null) {
+			final List<File> container = parallelism > 1 ? Collections.synchronizedList(result) : result;
+			visitor = new FileWalker.Visitor() {
+
+				@Override
+				public void onEntry(File file, boolean directory) {
+					container.add(file);
+				}
+			};
+		}
+		walker.walk(visitor);
 		return result;
 	}
 
-	private void listFiles(File dir) {
-		if (dir == null) return;
-		if (!dir.isDirectory()) return;
-		File[] files = dir.listFiles();
-		if (files == null) return;
-		for (File file : files) {
-			if (file.isDirectory()) {
-				if (includeDirs) result.add(file);
-				if (recurse) listFiles(file);
-			} else {
-				result.add(file);
-			}
-		}
+	/**
+	 * Stops listing. The files found so far are returned.
+	 */
+	public void cancel() {
+		cancelled = true;
+		FileWalker walker = this.walker;
+		if (walker != null) walker.cancel();
 	}
 
 	public ListFiles setRecurse(boolean recurse) {
@@ -67,6 +86,30 @@ public class ListFiles extends AJob<List<File>> {
 		return this;
 	}
 
+	/**
+	 * Only files accepted by the filter are listed. Directories are descended into regardless.
+	 */
+	public ListFiles setFilter(FileFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Lists subdirectories with the given number of threads. The order of the result is undefined then.
+	 */
+	public ListFiles setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Passes the files to the visitor as soon as they are found, instead of collecting them in the result.
+	 */
+	public ListFiles setVisitor(FileWalker.Visitor visitor) {
+		this.visitor = visitor;
+		return this;
+	}
+
 	@Override
 	public String toString() {
 		return toString(rootDir);
@@ -24,6 +24,11 @@ public abstract class ALoopTask extends ATask {
 
 	protected void beforeLoop() throws InterruptedException {}
 
+	@Override
+	public boolean isLongRunning() {
+		return true;
+	}
+
 	@Override
 	protected final void perform() throws InterruptedException {
 		beforeLoop();
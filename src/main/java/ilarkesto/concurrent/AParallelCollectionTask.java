@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import ilarkesto.base.Utl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Like <code>ACollectionTask</code>, but the elements are processed by several threads. The collection is split
+ * into chunks which the workers take one after another, so fast workers take over the work of slow ones.
+ * <code>perform(E)</code> has to be thread safe, <code>onElementError()</code> is never called concurrently.
+ */
+public abstract class AParallelCollectionTask<E> extends ATask {
+
+	private ExecutorService executor;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int chunkSize;
+
+	private volatile int count;
+	private AtomicInteger processed = new AtomicInteger();
+	private volatile E element;
+	private volatile boolean stopped;
+	private Object errorLock = new Object();
+
+	protected abstract Collection<E> prepare() throws InterruptedException;
+
+	protected abstract void perform(E element) throws InterruptedException;
+
+	/**
+	 * Runs the workers in the given pool instead of a pool created for each run.
+	 */
+	public final AParallelCollectionTask<E> setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Number of workers, including the thread running the task. Defaults to the number of processors.
+	 */
+	public final AParallelCollectionTask<E> setThreads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Number of elements a worker takes at once. By default the collection is split into four chunks per worker.
+	 */
+	public final AParallelCollectionTask<E> setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	@Override
+	protected final void perform() throws InterruptedException {
+		Collection<E> elements = prepare();
+		if (elements == null) elements = Collections.emptyList();
+		final List<E> list = new ArrayList<E>(elements);
+		count = list.size();
+		processed.set(0);
+		stopped = false;
+
+		int parallelism = Math.max(1, Math.min(threads, list.size()));
+		final int chunk = chunkSize > 0 ? chunkSize : Math.max(1, list.size() / (parallelism * 4));
+		final AtomicInteger nextIndex = new AtomicInteger();
+		try {
+			ParallelWorkers.run(executor, parallelism, new Runnable() {
+
+				@Override
+				public void run() {
+					while (true) {
+						int from = nextIndex.getAndAdd(chunk);
+						if (from >= list.size()) return;
+						int to = Math.min(from + chunk, list.size());
+						for (int i = from; i < to; i++) {
+							if (stopped || isAbortRequested()) return;
+							performElement(list.get(i));
+						}
+					}
+				}
+			});
+		} finally {
+			stopped = true;
+		}
+		cleanup();
+	}
+
+	private void performElement(E element) {
+		this.element = element;
+		try {
+			perform(element);
+		} catch (Throwable ex) {
+			Throwable rootCause = Utl.getRootCause(ex);
+			if (!(rootCause instanceof InterruptedException)) handleElementError(element, ex);
+		}
+		processed.incrementAndGet();
+	}
+
+	private void handleElementError(E element, Throwable ex) {
+		boolean handled = false;
+		synchronized (errorLock) {
+			try {
+				onElementError(element, ex);
+				handled = true;
+			} finally {
+				if (!handled) stopped = true;
+			}
+		}
+	}
+
+	protected void onElementError(E element, Throwable ex) {
+		throw new RuntimeException("Processing element failed: " + element, ex);
+	}
+
+	/**
+	 * Number of processed elements.
+	 */
+	public final int getIndex() {
+		return processed.get();
+	}
+
+	protected void cleanup() throws InterruptedException {}
+
+	protected String getProgressMessage(E element) {
+		return element.toString();
+	}
+
+	@Override
+	public final String getProgressMessage() {
+		E element = this.element;
+		return element == null ? null : getProgressMessage(element);
+	}
+
+	@Override
+	public final float getProgress() {
+		int count = this.count;
+		if (count == 0) return 1;
+		return (float) processed.get() / (float) count;
+	}
+
+}
@@ -22,12 +22,21 @@ public abstract class ATask {
 
 	private static final Log LOG = Log.get(ATask.class);
 
+	/**
+	 * Selects the lane a <code>TaskManager</code> runs the task in.
+	 */
+	public static enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
 	private volatile boolean finished;
 	private long finishTime = -1;
 	private volatile boolean started;
 	private long startTime = -1;
 	private volatile boolean abortRequested;
 	private Thread thread;
+	private Priority priority = Priority.NORMAL;
+	private TaskMetrics metrics = new TaskMetrics();
 
 	// --- dependencies ---
 
@@ -37,6 +46,10 @@ public abstract class ATask {
 		this.maxSleepAtOnce = maxSleepAtOnce;
 	}
 
+	public final void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
 	protected abstract void perform() throws InterruptedException;
 
 	public float getProgress() {
@@ -47,6 +60,13 @@ public abstract class ATask {
 		return null;
 	}
 
+	/**
+	 * Long running tasks, like loops, get their own thread instead of occupying a thread of a bounded lane.
+	 */
+	public boolean isLongRunning() {
+		return false;
+	}
+
 	// --- ---
 
 	public final boolean isFinished() {
@@ -65,6 +85,17 @@ public abstract class ATask {
 		return startTime;
 	}
 
+	public final Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Queue wait and run time of all runs of this task.
+	 */
+	public final TaskMetrics getMetrics() {
+		return metrics;
+	}
+
 	public final boolean isAbortRequested() {
 		return abortRequested;
 	}
@@ -104,6 +135,7 @@ public abstract class ATask {
 		if (started) throw new RuntimeException("Task already started: " + this);
 		started = true;
 		startTime = Tm.getCurrentTimeMillis();
+		long startNanos = System.nanoTime();
 		try {
 			perform();
 		} catch (InterruptedException ex) {
@@ -117,6 +149,7 @@ public abstract class ATask {
 				throw new RuntimeException(ex);
 			}
 		} finally {
+			metrics.recordRunTime(System.nanoTime() - startNanos);
 			finished = true;
 			finishTime = Tm.getCurrentTimeMillis();
 			synchronized (this) {
@@ -15,16 +15,45 @@
 package ilarkesto.concurrent;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * Runs sub tasks one after another. With <code>setParallelism()</code> independent sub tasks run concurrently,
+ * the heaviest first. The progress is the weighted progress of all sub tasks.
+ */
 public final class BatchTask extends ATask {
 
 	private List<TaskWrapper> tasks = new ArrayList<TaskWrapper>();
-	private TaskWrapper currentTask;
-	private float progressed;
+	private List<TaskWrapper> runningTasks = new CopyOnWriteArrayList<TaskWrapper>();
+	private volatile TaskWrapper currentTask;
+	private volatile float progressed;
+	private volatile boolean stopped;
+
+	private int parallelism = 1;
+	private ExecutorService executor;
+
+	/**
+	 * Number of sub tasks running at the same time. Only for sub tasks which do not depend on each other.
+	 */
+	public BatchTask setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Runs parallel sub tasks in the given pool instead of a pool created for each run.
+	 */
+	public BatchTask setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
 
 	@Override
-	protected void perform() {
+	protected void perform() throws InterruptedException {
 		int totalWeight = 0;
 		for (TaskWrapper wrapper : tasks) {
 			totalWeight += wrapper.weight;
@@ -33,38 +62,95 @@ public final class BatchTask extends ATask {
 			wrapper.effectiveWeight = (float) wrapper.weight / (float) totalWeight;
 		}
 
-		while (!tasks.isEmpty() && !isAbortRequested()) {
-			currentTask = tasks.get(0);
-			tasks.remove(currentTask);
-			currentTask.task.run();
-			progressed += currentTask.effectiveWeight;
+		if (parallelism <= 1) {
+			while (!tasks.isEmpty() && !isAbortRequested()) {
+				runTask(tasks.remove(0));
+			}
+			return;
+		}
+
+		Collections.sort(tasks, new Comparator<TaskWrapper>() {
+
+			@Override
+			public int compare(TaskWrapper a, TaskWrapper b) {
+				return b.weight - a.weight;
+			}
+		});
+		stopped = false;
+		try {
+			ParallelWorkers.run(executor, Math.min(parallelism, tasks.size()), new Runnable() {
+
+				@Override
+				public void run() {
+					while (!stopped && !isAbortRequested()) {
+						TaskWrapper wrapper = pollTask();
+						if (wrapper == null) return;
+						runTask(wrapper);
+					}
+				}
+			});
+		} finally {
+			stopped = true;
+		}
+	}
+
+	private TaskWrapper pollTask() {
+		synchronized (tasks) {
+			return tasks.isEmpty() ? null : tasks.remove(0);
 		}
 	}
 
+	private void runTask(TaskWrapper wrapper) {
+		currentTask = wrapper;
+		runningTasks.add(wrapper);
+		try {
+			wrapper.task.run();
+		} catch (RuntimeException ex) {
+			stopped = true;
+			throw ex;
+		} finally {
+			runningTasks.remove(wrapper);
+		}
+		addProgressed(wrapper.effectiveWeight);
+	}
+
+	private synchronized void addProgressed(float weight) {
+		progressed += weight;
+	}
+
 	@Override
 	public void abort() {
-		if (currentTask != null) currentTask.task.abort();
+		for (TaskWrapper wrapper : runningTasks) {
+			wrapper.task.abort();
+		}
 		super.abort();
 	}
 
 	@Override
 	public void reset() {
-		for (TaskWrapper taskWrapper : tasks) {
-			if (taskWrapper.task.isFinished()) continue;
-			taskWrapper.task.abort();
+		synchronized (tasks) {
+			for (TaskWrapper taskWrapper : tasks) {
+				if (taskWrapper.task.isFinished()) continue;
+				taskWrapper.task.abort();
+			}
 		}
 		super.reset();
 	}
 
 	@Override
 	public String getProgressMessage() {
-		return currentTask == null ? null : currentTask.task.getProgressMessage();
+		TaskWrapper wrapper = currentTask;
+		return wrapper == null ? null : wrapper.task.getProgressMessage();
 	}
 
 	@Override
 	public float getProgress() {
 		if (currentTask == null) return super.getProgress();
-		return progressed + (currentTask.effectiveWeight * currentTask.task.getProgress());
+		float progress = progressed;
+		for (TaskWrapper wrapper : runningTasks) {
+			progress += wrapper.effectiveWeight * wrapper.task.getProgress();
+		}
+		return progress;
 	}
 
 	public void addTask(ATask task) {
@@ -72,7 +158,9 @@ public final class BatchTask extends ATask {
 	}
 
 	public void addTask(ATask task, int weight) {
-		tasks.add(new TaskWrapper(task, weight));
+		synchronized (tasks) {
+			tasks.add(new TaskWrapper(task, weight));
+		}
 	}
 
 	private static class TaskWrapper {
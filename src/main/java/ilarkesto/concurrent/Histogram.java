@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations. Bucket <code>i</code> counts durations below <code>2^i</code> microseconds,
+ * so percentiles are upper bounds with a precision of factor two.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 40;
+
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong totalNanos = new AtomicLong();
+	private AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / n;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound in nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long threshold = (long) Math.ceil(n * percentile / 100);
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			sum += buckets.get(i);
+			if (sum >= threshold) return Math.min((1L << i) * 1000, maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " mean=" + formatMillis(getMeanNanos()) + " p50="
+				+ formatMillis(getPercentileNanos(50)) + " p99=" + formatMillis(getPercentileNanos(99)) + " max="
+				+ formatMillis(getMaxNanos());
+	}
+
+	private static String formatMillis(long nanos) {
+		return (nanos / 1000) / 1000f + "ms";
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a worker in the current thread and in additional pool threads and waits for all of them. Workers pull their
+ * work from a shared source, so a worker which never gets a pool thread is simply skipped.
+ */
+public final class ParallelWorkers {
+
+	private ParallelWorkers() {}
+
+	/**
+	 * @param executor pool for the additional workers, <code>null</code> creates a pool for this run
+	 * @param parallelism number of workers including the current thread
+	 */
+	public static void run(ExecutorService executor, int parallelism, Runnable worker) throws InterruptedException {
+		if (parallelism <= 1) {
+			worker.run();
+			return;
+		}
+
+		ExecutorService pool = executor;
+		if (pool == null) pool = Executors.newFixedThreadPool(parallelism - 1, new DeamonThreadFactory());
+		List<Slot> slots = new ArrayList<Slot>(parallelism - 1);
+		try {
+			for (int i = 1; i < parallelism; i++) {
+				Slot slot = new Slot(worker);
+				slot.future = pool.submit(slot);
+				slots.add(slot);
+			}
+
+			Throwable failure = null;
+			try {
+				worker.run();
+			} catch (Throwable ex) {
+				failure = ex;
+			}
+
+			for (Slot slot : slots) {
+				if (slot.claimed.compareAndSet(false, true)) {
+					// never started, the work is done already
+					slot.future.cancel(false);
+					continue;
+				}
+				try {
+					slot.future.get();
+				} catch (ExecutionException ex) {
+					if (failure == null) failure = ex.getCause();
+				}
+			}
+
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if (failure instanceof Error) throw (Error) failure;
+			if (failure != null) throw new RuntimeException(failure);
+		} finally {
+			for (Slot slot : slots) {
+				slot.future.cancel(true);
+			}
+			if (pool != executor) pool.shutdown();
+		}
+	}
+
+	private static class Slot implements Runnable {
+
+		private Runnable worker;
+		private AtomicBoolean claimed = new AtomicBoolean();
+		private Future<?> future;
+
+		public Slot(Runnable worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public void run() {
+			if (claimed.compareAndSet(false, true)) worker.run();
+		}
+
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool for the tasks of one priority. A task is rejected when all threads are busy and the queue is full.
+ */
+public class TaskLane {
+
+	private ATask.Priority priority;
+	private int threads;
+	private int queueCapacity;
+	private ThreadPoolExecutor executor;
+
+	private AtomicLong submittedCount = new AtomicLong();
+	private AtomicLong rejectedCount = new AtomicLong();
+	private TaskMetrics metrics = new TaskMetrics();
+
+	TaskLane(ATask.Priority priority, int threads, int queueCapacity) {
+		this.priority = priority;
+		this.threads = threads;
+		this.queueCapacity = queueCapacity;
+		BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity)
+				: new SynchronousQueue<Runnable>();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new DeamonThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	boolean submit(Runnable runnable) {
+		try {
+			executor.execute(runnable);
+		} catch (RejectedExecutionException ex) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+		submittedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Rejects new tasks, queued tasks are still executed.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the queued tasks, which will never be executed
+	 */
+	List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	public ATask.Priority getPriority() {
+		return priority;
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Metrics of all tasks which ran in this lane.
+	 */
+	public TaskMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return priority + " lane (" + threads + " threads, queue " + queueCapacity + ")";
+	}
+
+}
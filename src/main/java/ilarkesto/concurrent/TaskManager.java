@@ -19,14 +19,26 @@ import ilarkesto.core.logging.Log;
 import ilarkesto.core.time.Tm;
 import ilarkesto.di.Context;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs tasks in background threads. By default every task gets a thread from an unbounded pool. With
+ * <code>setLane()</code> the tasks of a priority run in a bounded pool instead and are rejected when it is
+ * saturated, so that low priority background work can not starve request handling. Long running tasks always get
+ * their own thread.
+ */
 public class TaskManager {
 
 	private static final Log LOG = Log.get(TaskManager.class);
@@ -36,24 +48,54 @@ public class TaskManager {
 	private ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(5,
 		new DeamonThreadFactory());
 	private ExecutorService executorService = Executors.newCachedThreadPool(new DeamonThreadFactory());
+	private volatile Map<ATask.Priority, TaskLane> lanes = new EnumMap<ATask.Priority, TaskLane>(ATask.Priority.class);
+	private AtomicInteger queuedTasks = new AtomicInteger();
 	private boolean shutdownInProgress;
 
+	/**
+	 * Runs tasks of the given priority in a bounded pool. Tasks already queued in a replaced lane are still
+	 * executed.
+	 *
+	 * @param queueCapacity tasks waiting for a thread, before further tasks are rejected
+	 */
+	public synchronized TaskManager setLane(ATask.Priority priority, int threads, int queueCapacity) {
+		Map<ATask.Priority, TaskLane> newLanes = new EnumMap<ATask.Priority, TaskLane>(lanes);
+		TaskLane previous = newLanes.put(priority, new TaskLane(priority, threads, queueCapacity));
+		lanes = newLanes;
+		if (previous != null) previous.shutdown();
+		return this;
+	}
+
+	public List<TaskLane> getLanes() {
+		return new ArrayList<TaskLane>(lanes.values());
+	}
+
 	public void waitForRunningTasks() {
 		waitForRunningTasks(Long.MAX_VALUE);
 	}
 
+	/**
+	 * Waits until all running and queued tasks are finished. Returns as soon as the last task finished.
+	 */
 	public void waitForRunningTasks(long maxWaitTime) {
 		long now = Tm.getCurrentTimeMillis();
 		long tryUntilTime = now + maxWaitTime;
 		if (tryUntilTime < now) tryUntilTime = Long.MAX_VALUE;
-		Set<ATask> tasks;
-		while ((!(tasks = getRunningTasks()).isEmpty()) && Tm.getCurrentTimeMillis() < tryUntilTime) {
-			LOG.info("Waiting for running tasks:", tasks);
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException ex) {
-				LOG.info("    Waiting for running tasks aborted by InterruptedException");
-				return;
+		long nextLogTime = now;
+		synchronized (this) {
+			while (!runningTasks.isEmpty() || queuedTasks.get() > 0) {
+				now = Tm.getCurrentTimeMillis();
+				if (now >= tryUntilTime) return;
+				if (now >= nextLogTime) {
+					LOG.info("Waiting for running tasks:", getRunningTasks());
+					nextLogTime = now + 5000;
+				}
+				try {
+					wait(Math.min(tryUntilTime, nextLogTime) - now);
+				} catch (InterruptedException ex) {
+					LOG.info("    Waiting for running tasks aborted by InterruptedException");
+					return;
+				}
 			}
 		}
 		LOG.info("All tasks finished");
@@ -76,20 +118,54 @@ public class TaskManager {
 		scheduledExecutorService.shutdownNow();
 		abortAllRunningTasks();
 		waitForRunningTasks(waitUntilKill);
-		executorService.shutdownNow();
+		dequeued(executorService.shutdownNow().size());
+		for (TaskLane lane : lanes.values()) {
+			dequeued(lane.shutdownNow().size());
+		}
 	}
 
 	public Set<ATask> getScheduledTasks() {
 		return new HashSet<ATask>(scheduledTasks);
 	}
 
-	public void start(ATask task) {
+	/**
+	 * @return <code>false</code> if the task was rejected, because its lane is saturated or shutdown is in
+	 *         progress
+	 */
+	public boolean start(ATask task) {
 		if (shutdownInProgress) {
 			LOG.info("Task execution prevented, cause shutdown in progress:", task);
-			return;
+			return false;
+		}
+		TaskLane lane = task.isLongRunning() ? null : lanes.get(task.getPriority());
+		TaskRunner runner = new TaskRunner(task, false, Context.get(), lane);
+		queuedTasks.incrementAndGet();
+		if (lane == null) {
+			try {
+				executorService.execute(runner);
+			} catch (RejectedExecutionException ex) {
+				dequeued(1);
+				LOG.info("Task execution prevented, cause executor shut down:", task);
+				return false;
+			}
+			return true;
+		}
+		if (lane.submit(runner)) return true;
+		dequeued(1);
+		LOG.warn("Task rejected, lane saturated or replaced:", lane, task);
+		return false;
+	}
+
+	/**
+	 * Forgets queued tasks which will never run, so that <code>waitForRunningTasks()</code> does not wait for
+	 * them.
+	 */
+	private void dequeued(int count) {
+		if (count == 0) return;
+		queuedTasks.addAndGet(-count);
+		synchronized (this) {
+			notifyAll();
 		}
-		TaskRunner runner = new TaskRunner(task, false, Context.get());
-		executorService.execute(runner);
 	}
 
 	public void scheduleWithFixedDelay(ATask task, long delay) {
@@ -98,8 +174,8 @@ public class TaskManager {
 
 	public void scheduleWithFixedDelay(ATask task, long initialDelay, long delay) {
 		scheduledTasks.add(task);
-		scheduledExecutorService.scheduleWithFixedDelay(new TaskRunner(task, true, Context.get()), initialDelay, delay,
-			TimeUnit.MILLISECONDS);
+		scheduledExecutorService.scheduleWithFixedDelay(new TaskRunner(task, true, Context.get(), null), initialDelay,
+			delay, TimeUnit.MILLISECONDS);
 		LOG.info("Scheduled task:", task);
 	}
 
@@ -117,19 +193,29 @@ public class TaskManager {
 		private ATask task;
 		private boolean repeating;
 		private Context parentContext;
+		private TaskLane lane;
+		private long submitTime = System.nanoTime();
 
-		public TaskRunner(ATask task, boolean repeating, Context parentContext) {
+		public TaskRunner(ATask task, boolean repeating, Context parentContext, TaskLane lane) {
 			this.task = task;
 			this.repeating = repeating;
 			this.parentContext = parentContext;
+			this.lane = lane;
 		}
 
 		@Override
 		public void run() {
+			if (!repeating) {
+				long queueWait = System.nanoTime() - submitTime;
+				task.getMetrics().recordQueueWait(queueWait);
+				if (lane != null) lane.getMetrics().recordQueueWait(queueWait);
+			}
 			Context context = parentContext.createSubContext("task:" + task.toString());
 			// Thread.currentThread().setName(task.toString());
 			runningTasks.add(task);
+			if (!repeating) queuedTasks.decrementAndGet();
 			// LOG.debug("Task started:", task);
+			long startTime = System.nanoTime();
 			try {
 				task.run();
 			} catch (Throwable ex) {
@@ -140,6 +226,7 @@ public class TaskManager {
 				}
 			}
 			// LOG.debug("Task finished:", task);
+			if (lane != null) lane.getMetrics().recordRunTime(System.nanoTime() - startTime);
 			runningTasks.remove(task);
 			if (repeating) task.reset();
 			context.destroy();
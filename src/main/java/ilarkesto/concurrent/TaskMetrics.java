@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+/**
+ * Time tasks waited in a queue before they were started and time they ran.
+ */
+public class TaskMetrics {
+
+	private Histogram queueWait = new Histogram();
+	private Histogram runTime = new Histogram();
+
+	void recordQueueWait(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	void recordRunTime(long nanos) {
+		runTime.record(nanos);
+	}
+
+	public Histogram getQueueWait() {
+		return queueWait;
+	}
+
+	public Histogram getRunTime() {
+		return runTime;
+	}
+
+	@Override
+	public String toString() {
+		return "queue-wait: " + queueWait + ", run-time: " + runTime;
+	}
+
+}
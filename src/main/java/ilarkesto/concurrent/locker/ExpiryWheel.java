@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent.locker;
+
+import ilarkesto.core.time.Tm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for lock expiry. A lock is put into the bucket of the tick in which it expires, so a tick
+ * only touches the locks which are due. Released locks are dropped when their bucket comes up, locks which were
+ * extended in the meantime are rescheduled.
+ */
+class ExpiryWheel {
+
+	private long tickMillis;
+	private List<Entry>[] buckets;
+	private volatile long currentTick;
+
+	@SuppressWarnings("unchecked")
+	ExpiryWheel(long tickMillis, int size) {
+		this.tickMillis = tickMillis;
+		buckets = new List[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new ArrayList<Entry>();
+		}
+		currentTick = Tm.getCurrentTimeMillis() / tickMillis;
+	}
+
+	void schedule(Lock lock) {
+		long expiryTime = lock.getExpiryTime();
+		if (expiryTime == Long.MAX_VALUE) return;
+		while (true) {
+			long tick = Math.max(expiryTime / tickMillis + 1, currentTick + 1);
+			List<Entry> bucket = buckets[(int) (tick % buckets.length)];
+			synchronized (bucket) {
+				// the wheel may have passed the tick meanwhile, the entry would wait for a full turn
+				if (tick > currentTick) {
+					bucket.add(new Entry(lock, tick));
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Advances the wheel to the current time and returns the locks which are due.
+	 */
+	List<Lock> advance() {
+		List<Lock> due = new ArrayList<Lock>();
+		long nowTick = Tm.getCurrentTimeMillis() / tickMillis;
+		// after a long pause every bucket needs to be visited only once
+		if (nowTick - currentTick > buckets.length) currentTick = nowTick - buckets.length;
+		while (currentTick < nowTick) {
+			long tick = currentTick + 1;
+			List<Entry> bucket = buckets[(int) (tick % buckets.length)];
+			synchronized (bucket) {
+				currentTick = tick;
+				Iterator<Entry> iterator = bucket.iterator();
+				while (iterator.hasNext()) {
+					Entry entry = iterator.next();
+					if (entry.lock.isReleased()) {
+						iterator.remove();
+					} else if (entry.tick <= tick) {
+						iterator.remove();
+						due.add(entry.lock);
+					}
+				}
+			}
+		}
+		return due;
+	}
+
+	private static class Entry {
+
+		private Lock lock;
+		private long tick;
+
+		public Entry(Lock lock, long tick) {
+			this.lock = lock;
+			this.tick = tick;
+		}
+
+	}
+
+}
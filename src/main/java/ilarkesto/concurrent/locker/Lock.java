@@ -16,28 +16,96 @@ package ilarkesto.concurrent.locker;
 
 import ilarkesto.core.time.DateAndTime;
 import ilarkesto.core.time.TimePeriod;
+import ilarkesto.core.time.Tm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A lock held by one locker exclusively or by several lockers shared. Modified only while the shard of the
+ * <code>Locker</code> is locked.
+ */
 public class Lock {
 
 	private Object object;
-	private Object locker;
+	private List<Object> lockers = new CopyOnWriteArrayList<Object>();
+	private boolean shared;
 	private DateAndTime time;
-	private TimePeriod maxLockTime;
+	private volatile long expiryTime;
+	private volatile boolean released;
 
-	Lock(Object object, Object locker, TimePeriod maxLockTime) {
+	Lock(Object object, Object locker, boolean shared, TimePeriod maxLockTime) {
 		this.object = object;
-		this.locker = locker;
-		this.maxLockTime = maxLockTime;
+		this.shared = shared;
+		this.lockers.add(locker);
 
 		this.time = DateAndTime.now();
+		this.expiryTime = getExpiryTime(maxLockTime);
+	}
+
+	boolean isHeldBy(Object locker) {
+		for (Object l : lockers) {
+			if (l == locker) return true;
+		}
+		return false;
+	}
+
+	boolean isHeldOnlyBy(Object locker) {
+		return lockers.size() == 1 && lockers.get(0) == locker;
+	}
+
+	void addLocker(Object locker, TimePeriod maxLockTime) {
+		if (!isHeldBy(locker)) lockers.add(locker);
+		expiryTime = Math.max(expiryTime, getExpiryTime(maxLockTime));
+	}
+
+	boolean removeLocker(Object locker) {
+		for (Object l : lockers) {
+			if (l == locker) return lockers.remove(l);
+		}
+		return false;
+	}
+
+	boolean hasLockers() {
+		return !lockers.isEmpty();
+	}
+
+	void upgrade(TimePeriod maxLockTime) {
+		shared = false;
+		expiryTime = Math.max(expiryTime, getExpiryTime(maxLockTime));
+	}
+
+	void release() {
+		released = true;
+	}
+
+	boolean isReleased() {
+		return released;
+	}
+
+	long getExpiryTime() {
+		return expiryTime;
 	}
 
 	public Object getObject() {
 		return object;
 	}
 
+	/**
+	 * The exclusive locker or the first of the shared lockers.
+	 */
 	public Object getLocker() {
-		return locker;
+		return lockers.isEmpty() ? null : lockers.get(0);
+	}
+
+	public List<Object> getLockers() {
+		return Collections.unmodifiableList(new ArrayList<Object>(lockers));
+	}
+
+	public boolean isShared() {
+		return shared;
 	}
 
 	public DateAndTime getTime() {
@@ -45,12 +113,19 @@ public class Lock {
 	}
 
 	public boolean isTimedOut() {
-		return time.getPeriodToNow().isGreaterThen(maxLockTime);
+		return Tm.getCurrentTimeMillis() > expiryTime;
 	}
 
 	@Override
 	public String toString() {
-		return object + " locked by " + locker + " since " + time;
+		return object + " locked " + (shared ? "shared by " + lockers : "by " + getLocker()) + " since " + time;
+	}
+
+	private static long getExpiryTime(TimePeriod maxLockTime) {
+		if (maxLockTime == null) return Long.MAX_VALUE;
+		long now = Tm.getCurrentTimeMillis();
+		long millis = maxLockTime.toMillis();
+		return millis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis;
 	}
 
 }
@@ -15,47 +15,323 @@
 package ilarkesto.concurrent.locker;
 
 import ilarkesto.base.Str;
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.logging.Log;
 import ilarkesto.core.time.TimePeriod;
+import ilarkesto.core.time.Tm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Locks objects for lockers, for example entities for the users editing them. The locks are spread over shards
+ * with their own monitors, so lockers of different objects rarely block each other. Locks expire after their lock
+ * time and are removed in the background by a timer wheel, even when nobody asks for them again.
+ * <p>
+ * A lock is either exclusive or shared by several lockers. The only holder of a shared lock can upgrade it to an
+ * exclusive lock.
+ */
 public class Locker {
 
-	private Map<Object, Lock> locks = new HashMap<Object, Lock>();
+	private static final Log log = Log.get(Locker.class);
+
+	private static final int WHEEL_SIZE = 512;
+
+	private Shard[] shards;
+	private long tickMillis;
+	private ExpiryWheel wheel;
+	private volatile ScheduledExecutorService timer;
+
+	private AtomicInteger heldCount = new AtomicInteger();
+	private AtomicLong contendedCount = new AtomicLong();
+	private AtomicLong expiredCount = new AtomicLong();
+
+	public Locker() {
+		this(16, 1000);
+	}
+
+	/**
+	 * @param shardCount rounded up to a power of two
+	 * @param tickMillis resolution of the background expiry
+	 */
+	public Locker(int shardCount, long tickMillis) {
+		int count = 1;
+		while (count < shardCount) {
+			count <<= 1;
+		}
+		shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Shard();
+		}
+		this.tickMillis = tickMillis;
+		wheel = new ExpiryWheel(tickMillis, WHEEL_SIZE);
+	}
 
 	public void lock(Object object, Object locker, boolean allowRelockBySameLocker, TimePeriod lockTime)
 			throws LockingException {
-		if (object == null) throw new IllegalArgumentException("object == null");
-		synchronized (locks) {
-			Lock lock = locks.get(object);
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			Lock lock = tryAcquire(shard, object, locker, false, allowRelockBySameLocker, lockTime);
 			if (lock != null) {
-				if (lock.isTimedOut()) {
-					locks.remove(object);
-				} else {
-					if (allowRelockBySameLocker && lock.getLocker() == locker) {
-						// locked by locker
-						return;
-					}
-					throw new LockingException(lock);
-				}
+				contendedCount.incrementAndGet();
+				throw new LockingException(lock);
+			}
+		}
+	}
+
+	/**
+	 * Like <code>lock()</code>, but waits up to <code>maxWaitMillis</code> for the lock to be released or to expire.
+	 */
+	public void lock(Object object, Object locker, boolean allowRelockBySameLocker, TimePeriod lockTime,
+			long maxWaitMillis) throws LockingException, InterruptedException {
+		acquire(object, locker, false, allowRelockBySameLocker, lockTime, maxWaitMillis);
+	}
+
+	/**
+	 * Locks the object exclusively if it is free or already locked by the locker.
+	 *
+	 * @return <code>false</code> if the object is locked by someone else
+	 */
+	public boolean tryLock(Object object, Object locker, TimePeriod lockTime) {
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			if (tryAcquire(shard, object, locker, false, true, lockTime) == null) return true;
+		}
+		contendedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Locks the object together with other shared lockers. Fails if the object is locked exclusively by someone
+	 * else.
+	 */
+	public void lockShared(Object object, Object locker, TimePeriod lockTime) throws LockingException {
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			Lock lock = tryAcquire(shard, object, locker, true, true, lockTime);
+			if (lock != null) {
+				contendedCount.incrementAndGet();
+				throw new LockingException(lock);
 			}
-			lock = new Lock(object, locker, lockTime);
-			locks.put(object, lock);
 		}
 	}
 
+	public void lockShared(Object object, Object locker, TimePeriod lockTime, long maxWaitMillis)
+			throws LockingException, InterruptedException {
+		acquire(object, locker, true, true, lockTime, maxWaitMillis);
+	}
+
+	/**
+	 * Removes the lock, regardless of who holds it.
+	 */
 	public void unlock(Object object) {
-		synchronized (locks) {
-			locks.remove(object);
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			Lock lock = shard.locks.get(object);
+			if (lock != null) remove(shard, lock);
+		}
+	}
+
+	/**
+	 * Releases the lock of the given locker. A shared lock stays in place for the other lockers.
+	 *
+	 * @return <code>false</code> if the locker did not hold the lock
+	 */
+	public boolean unlock(Object object, Object locker) {
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			Lock lock = shard.locks.get(object);
+			if (lock == null || !lock.removeLocker(locker)) return false;
+			if (lock.hasLockers()) {
+				if (shard.waiting > 0) shard.notifyAll();
+			} else {
+				remove(shard, lock);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the current lock of the object or <code>null</code> if it is not locked.
+	 */
+	public Lock getLock(Object object) {
+		Shard shard = getShard(object);
+		synchronized (shard) {
+			Lock lock = shard.locks.get(object);
+			if (lock == null || lock.isTimedOut()) return null;
+			return lock;
 		}
 	}
 
+	public int getHeldCount() {
+		return heldCount.get();
+	}
+
+	/**
+	 * Number of lock requests which found the object locked by someone else.
+	 */
+	public long getContendedCount() {
+		return contendedCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * Stops the background expiry. Expired locks are still replaced when they are requested again.
+	 */
+	public synchronized void shutdown() {
+		if (timer == null) return;
+		timer.shutdownNow();
+		timer = null;
+	}
+
+	// --- ---
+
+	private void acquire(Object object, Object locker, boolean shared, boolean allowRelockBySameLocker,
+			TimePeriod lockTime, long maxWaitMillis) throws LockingException, InterruptedException {
+		Shard shard = getShard(object);
+		long deadline = Tm.getCurrentTimeMillis() + maxWaitMillis;
+		boolean contended = false;
+		synchronized (shard) {
+			while (true) {
+				Lock lock = tryAcquire(shard, object, locker, shared, allowRelockBySameLocker, lockTime);
+				if (lock == null) return;
+				if (!contended) {
+					contended = true;
+					contendedCount.incrementAndGet();
+				}
+				long now = Tm.getCurrentTimeMillis();
+				if (now >= deadline) throw new LockingException(lock);
+				long expiryTime = lock.getExpiryTime();
+				long wakeUp = expiryTime < deadline ? expiryTime + 1 : deadline;
+				shard.waiting++;
+				try {
+					shard.wait(wakeUp - now);
+				} finally {
+					shard.waiting--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Locks the object if possible. Has to be called while the shard is locked.
+	 *
+	 * @return <code>null</code> if the object is locked now, otherwise the lock which prevents it
+	 */
+	private Lock tryAcquire(Shard shard, Object object, Object locker, boolean shared,
+			boolean allowRelockBySameLocker, TimePeriod lockTime) {
+		if (object == null) throw new IllegalArgumentException("object == null");
+		Lock lock = shard.locks.get(object);
+		if (lock != null && lock.isTimedOut()) {
+			remove(shard, lock);
+			expiredCount.incrementAndGet();
+			lock = null;
+		}
+
+		if (lock == null) {
+			lock = new Lock(object, locker, shared, lockTime);
+			shard.locks.put(object, lock);
+			heldCount.incrementAndGet();
+			startTimer();
+			wheel.schedule(lock);
+			return null;
+		}
+
+		if (shared && lock.isShared()) {
+			lock.addLocker(locker, lockTime);
+			return null;
+		}
+
+		if (lock.isHeldBy(locker)) {
+			if (lock.isShared()) {
+				// upgrade
+				if (lock.isHeldOnlyBy(locker)) {
+					lock.upgrade(lockTime);
+					return null;
+				}
+			} else if (allowRelockBySameLocker) {
+				// locked by locker
+				return null;
+			}
+		}
+
+		return lock;
+	}
+
+	private void remove(Shard shard, Lock lock) {
+		if (shard.locks.get(lock.getObject()) == lock) shard.locks.remove(lock.getObject());
+		lock.release();
+		heldCount.decrementAndGet();
+		if (shard.waiting > 0) shard.notifyAll();
+	}
+
+	private void expire(Lock lock) {
+		Shard shard = getShard(lock.getObject());
+		synchronized (shard) {
+			if (lock.isReleased()) return;
+			if (!lock.isTimedOut()) {
+				// extended in the meantime
+				wheel.schedule(lock);
+				return;
+			}
+			remove(shard, lock);
+			expiredCount.incrementAndGet();
+		}
+	}
+
+	private void startTimer() {
+		if (timer != null) return;
+		synchronized (this) {
+			if (timer != null) return;
+			timer = Executors.newSingleThreadScheduledExecutor(new DeamonThreadFactory());
+			timer.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (Lock lock : wheel.advance()) {
+							expire(lock);
+						}
+					} catch (Throwable ex) {
+						log.error("Expiring locks failed:", ex);
+					}
+				}
+			}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private Shard getShard(Object object) {
+		int h = object == null ? 0 : object.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & (shards.length - 1)];
+	}
+
 	@Override
 	public String toString() {
-		synchronized (locks) {
-			return Str.format(locks.values());
+		List<Lock> locks = new ArrayList<Lock>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				locks.addAll(shard.locks.values());
+			}
 		}
+		return Str.format(locks);
+	}
+
+	private static class Shard {
+
+		private Map<Object, Lock> locks = new HashMap<Object, Lock>();
+		private int waiting;
+
 	}
 
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io;
+
+import ilarkesto.concurrent.ParallelWorkers;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks a directory tree and hands every entry to a <code>Visitor</code> as soon as it is found, without collecting
+ * the tree in memory. Every entry is checked with a single <code>isDirectory()</code> call, whose result is passed
+ * on to the filters and the visitor. With a parallelism above one, subdirectories are listed by several threads,
+ * which pays off on slow network shares.
+ */
+public class FileWalker {
+
+	private static final File DONE = new File("");
+
+	private File root;
+	private FileFilter filter;
+	private FileFilter dirFilter;
+	private boolean recurse = true;
+	private boolean includeDirs;
+	private int parallelism = 1;
+	private ExecutorService executor;
+
+	private volatile boolean cancelled;
+
+	public FileWalker(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Only entries accepted by this filter are visited. Name based filters like <code>SuffixFileFilter</code> do not
+	 * touch the file system.
+	 */
+	public FileWalker setFilter(FileFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Only subdirectories accepted by this filter are descended into.
+	 */
+	public FileWalker setDirFilter(FileFilter dirFilter) {
+		this.dirFilter = dirFilter;
+		return this;
+	}
+
+	public FileWalker setRecurse(boolean recurse) {
+		this.recurse = recurse;
+		return this;
+	}
+
+	public FileWalker setIncludeDirs(boolean includeDirs) {
+		this.includeDirs = includeDirs;
+		return this;
+	}
+
+	/**
+	 * Number of threads listing directories, including the calling thread. The visitor is called concurrently then.
+	 */
+	public FileWalker setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Pool for the additional threads, <code>null</code> creates a pool for each walk.
+	 */
+	public FileWalker setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Stops the walk as soon as possible. Interrupting the walking thread has the same effect.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Walks the tree and returns when all entries are visited or the walk was cancelled.
+	 */
+	public void walk(Visitor visitor) {
+		if (parallelism <= 1 || !recurse) {
+			walkDir(root, visitor);
+		} else {
+			walkParallel(visitor);
+		}
+	}
+
+	private void walkDir(File dir, Visitor visitor) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (checkCancelled()) return;
+			if (visit(file, visitor)) walkDir(file, visitor);
+		}
+	}
+
+	private void walkParallel(final Visitor visitor) {
+		final LinkedBlockingDeque<File> dirs = new LinkedBlockingDeque<File>();
+		final AtomicInteger pending = new AtomicInteger(1);
+		dirs.add(root);
+		Runnable worker = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						File dir = dirs.takeFirst();
+						if (dir == DONE) return;
+						try {
+							if (!checkCancelled()) listDir(dir, visitor, dirs, pending);
+						} finally {
+							if (pending.decrementAndGet() == 0) finish(dirs);
+						}
+					}
+				} catch (InterruptedException ex) {
+					cancelled = true;
+					finish(dirs);
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException ex) {
+					cancelled = true;
+					finish(dirs);
+					throw ex;
+				} catch (Error ex) {
+					cancelled = true;
+					finish(dirs);
+					throw ex;
+				}
+			}
+		};
+		try {
+			ParallelWorkers.run(executor, parallelism, worker);
+		} catch (InterruptedException ex) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void listDir(File dir, Visitor visitor, LinkedBlockingDeque<File> dirs, AtomicInteger pending) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (checkCancelled()) return;
+			if (visit(file, visitor)) {
+				// depth first keeps the queue short
+				pending.incrementAndGet();
+				dirs.addFirst(file);
+			}
+		}
+	}
+
+	private void finish(LinkedBlockingDeque<File> dirs) {
+		for (int i = 0; i < parallelism; i++) {
+			dirs.addLast(DONE);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the file is a directory which has to be walked
+	 */
+	private boolean visit(File file, Visitor visitor) {
+		boolean directory = file.isDirectory();
+		if (directory) {
+			if (includeDirs && (filter == null || filter.accept(file))) visitor.onEntry(file, true);
+			return recurse && (dirFilter == null || dirFilter.accept(file));
+		}
+		if (filter == null || filter.accept(file)) visitor.onEntry(file, false);
+		return false;
+	}
+
+	private boolean checkCancelled() {
+		if (cancelled) return true;
+		if (Thread.currentThread().isInterrupted()) cancelled = true;
+		return cancelled;
+	}
+
+	public static interface Visitor {
+
+		/**
+		 * @param directory result of <code>file.isDirectory()</code>, so that it does not have to be checked again
+		 */
+		void onEntry(File file, boolean directory);
+
+	}
+
+}
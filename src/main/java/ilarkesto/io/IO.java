@@ -38,6 +38,8 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -47,6 +49,8 @@ import java.net.SocketException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -278,6 +282,13 @@ public abstract class IO {
 		} catch (IOException ex) {}
 	}
 
+	public static void closeQuiet(Channel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException ex) {}
+	}
+
 	public static void closeQuiet(Socket socket) {
 		if (socket == null) return;
 		try {
@@ -617,6 +628,61 @@ public abstract class IO {
 		}
 	}
 
+	/**
+	 * Writes the data and forces it to the storage device before returning.
+	 */
+	public static void writeDurable(byte[] data, File file) {
+		createDirectory(file.getParentFile());
+		FileOutputStream out;
+		try {
+			out = new FileOutputStream(file);
+		} catch (FileNotFoundException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing file failed: " + file, ex);
+		} finally {
+			IO.close(out);
+		}
+	}
+
+	/**
+	 * Forces the directory entries of the given directory, i.e. created, renamed and deleted files, to the storage
+	 * device. Needs Java 7 and a platform which supports opening directories, does nothing otherwise.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void forceDirectory(File dir) {
+		FileChannel channel;
+		try {
+			Class pathClass = Class.forName("java.nio.file.Path");
+			Class openOptionClass = Class.forName("java.nio.file.OpenOption");
+			Class standardOpenOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+			Object options = Array.newInstance(openOptionClass, 1);
+			Array.set(options, 0, Enum.valueOf(standardOpenOptionClass, "READ"));
+			Object path = File.class.getMethod("toPath").invoke(dir);
+			channel = (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass()).invoke(null,
+				path, options);
+		} catch (ClassNotFoundException ex) {
+			// before Java 7
+			return;
+		} catch (InvocationTargetException ex) {
+			// platform does not support opening directories
+			return;
+		} catch (Exception ex) {
+			throw new RuntimeException("Forcing directory failed: " + dir, ex);
+		}
+		try {
+			channel.force(true);
+		} catch (IOException ex) {
+			throw new RuntimeException("Forcing directory failed: " + dir, ex);
+		} finally {
+			closeQuiet(channel);
+		}
+	}
+
 	public static void write(byte[] data, File file, long position) {
 		try {
 			RandomAccessFile f = new RandomAccessFile(file, "rw");
@@ -19,19 +19,44 @@ import ilarkesto.io.nio.tcpserver.DataHandler;
 import ilarkesto.io.nio.tcpserver.ServerDataEvent;
 import ilarkesto.io.nio.tcpserver.TcpConnection;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP/1.1 request parser for one connection. Works on the received bytes directly, supports request
+ * bodies with <code>Content-Length</code> or chunked transfer encoding, keep-alive and pipelined requests.
+ * Requests are passed to the server one after another, so responses are sent in request order.
+ */
 public class HttpDataHandler implements DataHandler {
 
 	private static Log log = Log.get(HttpDataHandler.class);
 
-	private static final String CRLF = "\r\n";
+	/**
+	 * Limit for chunk size lines including extensions. They are not part of the header.
+	 */
+	private static final int MAX_CHUNK_LINE_LENGTH = 1024;
 
-	private HttpServer server;
+	private static enum State {
+		START_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, CLOSED
+	}
 
-	private ServerDataEvent event;
+	private HttpServer server;
+	private TcpConnection connection;
+	private State state = State.START_LINE;
 
 	private HttpRequest request;
-	private boolean startLineDone;
-	private boolean headerDone;
+
+	private byte[] line = new byte[256];
+	private int lineLength;
+	/**
+	 * Bytes of the current header or trailer section.
+	 */
+	private int headerSize;
+
+	private byte[] body;
+	private int bodyLength;
+	private ByteArrayOutputStream chunkedBody;
+	private long chunkRemaining;
 
 	public HttpDataHandler(HttpServer server) {
 		super();
@@ -40,131 +65,250 @@ public class HttpDataHandler implements DataHandler {
 
 	@Override
 	public void onDataReceived(ServerDataEvent event) {
-		this.event = event;
-
-		if (request == null) {
-			request = new HttpRequest(event.getConnection());
-			request.setResponseHeaderServer(server.getName());
-		}
-
+		if (connection == null) connection = event.getConnection();
+		ByteBuffer data = event.getBuffer();
 		try {
-			processEvent(event);
+			while (data.hasRemaining() && state != State.CLOSED) {
+				switch (state) {
+					case BODY:
+						readBody(data);
+						break;
+					case CHUNK_DATA:
+						readChunkData(data);
+						break;
+					default:
+						if (!readLine(data)) return;
+						onLineReceived(getLine());
+						lineLength = 0;
+				}
+			}
+		} catch (HttpException ex) {
+			log.info("Invalid request:", connection, ex.getMessage());
+			sendErrorAndClose(ex.getStatusCode(), ex.getMessage());
 		} catch (Throwable ex) {
-			log.error("Processing request failed:", request.getUri() == null ? event.getConnection() : request, ex);
-			request.sendEmptyResponse(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
+			log.error("Processing request failed:", request == null ? connection : request, ex);
+			sendErrorAndClose(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 		}
 	}
 
-	private void processEvent(ServerDataEvent event) {
-		byte[] data = event.getData();
-
-		if (headerDone) {
-			onBodyData(data);
-			return;
-		}
-
-		String s = new String(data);
-
-		int from = 0;
-		int idx = s.indexOf(CRLF);
-		while (idx >= 0) {
-			String line = s.substring(from, idx);
-			onLineReceived(line);
-			if (headerDone) {
-				int len = data.length - idx;
-				byte[] remainingData = new byte[len];
-				System.arraycopy(data, idx, remainingData, 0, len);
-				onBodyData(remainingData);
-				return;
+	/**
+	 * Appends bytes to the current line until LF.
+	 *
+	 * @return <code>true</code> if the line is complete
+	 */
+	private boolean readLine(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			byte b = data.get();
+			if (b == '\n') {
+				if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+				return true;
+			}
+			if (state == State.CHUNK_SIZE || state == State.CHUNK_END) {
+				if (lineLength >= MAX_CHUNK_LINE_LENGTH)
+					throw new HttpException(HttpStatusCode.BAD_REQUEST, "Chunk line exceeds " + MAX_CHUNK_LINE_LENGTH
+							+ " bytes");
+			} else if (++headerSize > server.getMaxHeaderSize()) {
+				throw new HttpException(HttpStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header exceeds "
+						+ server.getMaxHeaderSize() + " bytes");
 			}
-			from = idx + 2;
-			idx = s.indexOf(CRLF, from);
+			if (lineLength == line.length) {
+				byte[] newLine = new byte[line.length * 2];
+				System.arraycopy(line, 0, newLine, 0, lineLength);
+				line = newLine;
+			}
+			line[lineLength++] = b;
 		}
+		return false;
 	}
 
-	private void onBodyData(byte[] data) {}
-
-	private void onLineReceived(String line) {
-		if (!startLineDone) {
-			parseStartLine(line);
-			return;
+	/**
+	 * Decodes the line as ISO-8859-1, which is what HTTP headers are.
+	 */
+	private String getLine() {
+		char[] chars = new char[lineLength];
+		for (int i = 0; i < lineLength; i++) {
+			chars[i] = (char) (line[i] & 0xff);
 		}
+		return new String(chars);
+	}
 
-		if (line.length() == 0) {
-			headerDone = true;
-			onHeaderDone();
-			return;
+	private void onLineReceived(String line) {
+		switch (state) {
+			case START_LINE:
+				// robustness: ignore empty lines between requests
+				if (line.length() > 0) parseStartLine(line);
+				return;
+			case HEADERS:
+				if (line.length() == 0) {
+					onHeaderDone();
+				} else {
+					parseHeaderLine(line);
+				}
+				return;
+			case CHUNK_SIZE:
+				parseChunkSize(line);
+				return;
+			case CHUNK_END:
+				if (line.length() > 0) throw new HttpException(HttpStatusCode.BAD_REQUEST, "CRLF after chunk expected");
+				state = State.CHUNK_SIZE;
+				return;
+			case TRAILERS:
+				if (line.length() == 0) {
+					request.setBody(chunkedBody.toByteArray());
+					chunkedBody = null;
+					onRequestComplete();
+				}
+				return;
+			default:
+				throw new IllegalStateException(state.name());
 		}
-
-		parseHeaderLine(line);
 	}
 
-	private void onHeaderDone() {
-		if (!checkHeaders()) return;
-		server.onHttpRequest(request);
-	}
+	private void parseStartLine(String line) {
+		int methodEnd = line.indexOf(' ');
+		int uriEnd = line.lastIndexOf(' ');
+		if (methodEnd <= 0 || uriEnd <= methodEnd + 1 || uriEnd == line.length() - 1)
+			throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
 
-	private boolean checkHeaders() {
-		if (request.getHeaderContentLenght() != null) {
-			request.sendEmptyResponse(HttpStatusCode.NOT_IMPLEMENTED, "Content-Length");
-			return false;
-		}
-		if (request.getHeaderTransferEncoding() != null) {
-			request.sendEmptyResponse(HttpStatusCode.NOT_IMPLEMENTED, "Transfer-Encoding");
-			return false;
+		request = new HttpRequest(server, connection);
+		request.setResponseHeaderServer(server.getName());
+
+		String methodName = line.substring(0, methodEnd);
+		HttpMethod method;
+		try {
+			method = HttpMethod.valueOf(methodName);
+		} catch (IllegalArgumentException ex) {
+			throw new HttpException(HttpStatusCode.NOT_IMPLEMENTED, "Unknown method: " + methodName);
 		}
-		return true;
+		String version = line.substring(uriEnd + 1);
+		if (!version.startsWith("HTTP/1."))
+			throw new HttpException(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED, version);
+
+		request.setMethod(method);
+		request.setUri(line.substring(methodEnd + 1, uriEnd));
+		request.setVersion(version);
+		state = State.HEADERS;
 	}
 
 	private void parseHeaderLine(String line) {
-		int idx = line.indexOf(":");
-		if (idx <= 0) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid header line: " + line);
-			return;
-		}
+		int idx = line.indexOf(':');
+		if (idx <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t')
+			throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid header line: " + line);
 		String name = line.substring(0, idx);
 		String value = line.substring(idx + 1).trim();
 		request.setHeader(name, value);
 	}
 
-	private void parseStartLine(String line) {
-		if (startLineDone) throw new IllegalStateException("Start line already parsed");
-		startLineDone = true;
-		for (HttpMethod m : HttpMethod.values()) {
-			if (line.startsWith(m.name())) {
-				request.setMethod(m);
-				break;
-			}
+	private void onHeaderDone() {
+		log.debug(request);
+		headerSize = 0;
+		String connection = request.getHeaderConnection();
+		if (connection != null) {
+			connection = connection.toLowerCase();
+			if (connection.contains("close")) request.setKeepAlive(false);
+			if (connection.contains("keep-alive")) request.setKeepAlive(true);
 		}
-		if (request.getMethod() == null) {
-			int idx = line.indexOf(' ');
-			String methodName = idx > 0 ? line.substring(0, idx) : line;
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Unknown method: " + methodName);
+
+		String transferEncoding = request.getHeaderTransferEncoding();
+		if (transferEncoding != null) {
+			if (!transferEncoding.toLowerCase().endsWith("chunked"))
+				throw new HttpException(HttpStatusCode.NOT_IMPLEMENTED, "Transfer-Encoding: " + transferEncoding);
+			sendContinueIfExpected();
+			chunkedBody = new ByteArrayOutputStream();
+			state = State.CHUNK_SIZE;
 			return;
 		}
 
-		int pathIdx = request.getMethod().name().length() + 1;
-		if (pathIdx >= line.length()) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
+		Long contentLength = request.getHeaderContentLength();
+		if (contentLength == null || contentLength == 0) {
+			onRequestComplete();
 			return;
 		}
+		if (contentLength < 0) throw new HttpException(HttpStatusCode.BAD_REQUEST, "Negative Content-Length");
+		checkBodySize(contentLength);
+		sendContinueIfExpected();
+		body = new byte[contentLength.intValue()];
+		bodyLength = 0;
+		state = State.BODY;
+	}
+
+	private void readBody(ByteBuffer data) {
+		int count = Math.min(data.remaining(), body.length - bodyLength);
+		data.get(body, bodyLength, count);
+		bodyLength += count;
+		if (bodyLength < body.length) return;
+		request.setBody(body);
+		body = null;
+		onRequestComplete();
+	}
 
-		int versionIdx = line.indexOf(' ', pathIdx);
-		if (versionIdx > 0 && versionIdx + 1 >= line.length()) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
+	private void parseChunkSize(String line) {
+		int end = line.indexOf(';');
+		String size = (end < 0 ? line : line.substring(0, end)).trim();
+		try {
+			chunkRemaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException ex) {
+			throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid chunk size: " + line);
+		}
+		if (chunkRemaining < 0) throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid chunk size: " + line);
+		if (chunkRemaining == 0) {
+			state = State.TRAILERS;
 			return;
 		}
+		checkBodySize(chunkedBody.size() + chunkRemaining);
+		state = State.CHUNK_DATA;
+	}
 
-		String uri = versionIdx > 0 ? line.substring(pathIdx, versionIdx) : line.substring(pathIdx);
-		String version = versionIdx > 0 ? line.substring(versionIdx + 1) : null;
+	private void readChunkData(ByteBuffer data) {
+		int count = (int) Math.min(data.remaining(), chunkRemaining);
+		chunkedBody.write(data.array(), data.arrayOffset() + data.position(), count);
+		data.position(data.position() + count);
+		chunkRemaining -= count;
+		if (chunkRemaining == 0) state = State.CHUNK_END;
+	}
 
-		request.setUri(uri);
-		request.setVersion(version);
+	private void checkBodySize(long size) {
+		if (size > server.getMaxBodySize())
+			throw new HttpException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE, "Body exceeds "
+					+ server.getMaxBodySize() + " bytes");
+	}
 
-		log.debug(request);
+	private void sendContinueIfExpected() {
+		String expect = request.getHeaderExpect();
+		if (expect == null || !expect.equalsIgnoreCase("100-continue")) return;
+		connection.sendLineCrLf(HttpRequest.PROTOCOL_VERSION + " " + HttpStatusCode.CONTINUE);
+		connection.sendLineCrLf("");
+		connection.flush();
+	}
+
+	private void onRequestComplete() {
+		HttpRequest request = this.request;
+		this.request = null;
+		headerSize = 0;
+		state = State.START_LINE;
+
+		server.onHttpRequest(request);
+		request.finishResponse();
+		if (!request.isKeepAlive()) state = State.CLOSED;
+	}
+
+	private void sendErrorAndClose(HttpStatusCode code, String message) {
+		state = State.CLOSED;
+		if (connection.isClosed()) return;
+		if (request == null) request = new HttpRequest(server, connection);
+		request.setKeepAlive(false);
+		if (request.getVersion() == null) request.setVersion(HttpRequest.PROTOCOL_VERSION);
+		if (request.isResponseHeadersSent()) {
+			connection.close();
+			return;
+		}
+		request.setResponseHeaderServer(server.getName());
+		request.sendEmptyResponse(code, message);
 	}
 
 	@Override
-	public void onConnectionClosed(TcpConnection connection) {}
+	public void onConnectionClosed(TcpConnection connection) {
+		state = State.CLOSED;
+	}
 
 }
@@ -15,5 +15,5 @@
 package ilarkesto.io.nio.httpserver;
 
 public enum HttpMethod {
-	GET
+	GET, HEAD, POST, PUT, DELETE, OPTIONS, PATCH
 }
@@ -16,11 +16,20 @@ package ilarkesto.io.nio.httpserver;
 
 import ilarkesto.core.base.Str;
 import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
 import ilarkesto.io.nio.tcpserver.TcpConnection;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A parsed request and its response. The response has to be complete when the request handler returns, it is
+ * finished automatically. Without a <code>Content-Length</code> response header, HTTP/1.1 responses are sent
+ * chunked.
+ */
 public class HttpRequest<S> {
 
 	static String SERVER = "Ilarkesto/1.1";
@@ -28,15 +37,27 @@ public class HttpRequest<S> {
 
 	private static Log log = Log.get(HttpRequest.class);
 
+	private static final byte[] CRLF = new byte[] { 13, 10 };
+	private static final byte[] LAST_CHUNK = new byte[] { '0', 13, 10, 13, 10 };
+
+	private HttpServer<S> server;
 	private HttpMethod method;
 	private String uri;
+	private String path;
+	private String query;
+	private Map<String, String> parameters;
 	private String version;
 	private TcpConnection connection;
 	private Map<String, String> headers = new HashMap<String, String>();
+	private byte[] body;
+	private boolean keepAlive = true;
 
 	private String responseStatusLine;
+	private boolean responseBodyAllowed = true;
 	private Map<String, String> responseHeaders = new HashMap<String, String>();
 	private boolean responseHeadersSent;
+	private boolean responseChunked;
+	private boolean responseFinished;
 
 	private HttpSession<S> session;
 
@@ -45,11 +66,20 @@ public class HttpRequest<S> {
 		this.connection = connection;
 	}
 
+	HttpRequest(HttpServer<S> server, TcpConnection connection) {
+		this(connection);
+		this.server = server;
+	}
+
 	void setSession(HttpSession<S> session) {
 		this.session = session;
 	}
 
+	/**
+	 * Returns the session of the client, creates a new one if required.
+	 */
 	public HttpSession<S> getSession() {
+		if (session == null && server != null) session = server.getSession(this);
 		return session;
 	}
 
@@ -63,20 +93,49 @@ public class HttpRequest<S> {
 		return Integer.parseInt(value);
 	}
 
+	public String getCookie(String name) {
+		String cookies = getHeader("Cookie");
+		if (cookies == null) return null;
+		for (String cookie : cookies.split(";")) {
+			int idx = cookie.indexOf('=');
+			if (idx < 0) continue;
+			if (cookie.substring(0, idx).trim().equals(name)) return cookie.substring(idx + 1).trim();
+		}
+		return null;
+	}
+
 	void setMethod(HttpMethod method) {
 		this.method = method;
+		if (method == HttpMethod.HEAD) responseBodyAllowed = false;
 	}
 
 	void setUri(String uri) {
 		this.uri = uri;
+		int idx = uri.indexOf('?');
+		path = idx < 0 ? uri : uri.substring(0, idx);
+		query = idx < 0 ? null : uri.substring(idx + 1);
 	}
 
 	void setVersion(String version) {
 		this.version = version;
+		if ("HTTP/1.0".equals(version)) keepAlive = false;
 	}
 
+	/**
+	 * Repeated headers are combined into one comma separated value.
+	 */
 	void setHeader(String name, String value) {
-		headers.put(formatHeaderName(name), value);
+		name = formatHeaderName(name);
+		String existing = headers.get(name);
+		headers.put(name, existing == null ? value : existing + ", " + value);
+	}
+
+	void setBody(byte[] body) {
+		this.body = body;
+	}
+
+	void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
 	}
 
 	private String formatHeaderName(String name) {
@@ -87,14 +146,23 @@ public class HttpRequest<S> {
 		responseHeaders.put(formatHeaderName(name), value);
 	}
 
+	public String getResponseHeader(String name) {
+		return responseHeaders.get(formatHeaderName(name));
+	}
+
 	private void closeConnection() {
 		connection.close();
 	}
 
+	public void setResponseStatus(HttpStatusCode code) {
+		setResponseStatus(code, null);
+	}
+
 	public void setResponseStatus(HttpStatusCode code, String message) {
 		String text = code.getText();
-		if (!Str.isBlank(message)) text += ": " + message;
+		if (!Str.isBlank(message)) text += ": " + message.replace('\r', ' ').replace('\n', ' ');
 		responseStatusLine = PROTOCOL_VERSION + " " + code.getCode() + " " + text;
+		if (!code.isBodyAllowed()) responseBodyAllowed = false;
 	}
 
 	public void sendEmptyResponse(HttpStatusCode code) {
@@ -103,8 +171,26 @@ public class HttpRequest<S> {
 
 	public void sendEmptyResponse(HttpStatusCode code, String statusMessage) {
 		setResponseStatus(code, statusMessage);
+		setResponseHeader("Content-Length", "0");
+		sendResponseHeaders();
+		finishResponse();
+	}
+
+	public void sendResponse(HttpStatusCode code, String contentType, String body) {
+		try {
+			sendResponse(code, contentType, body.getBytes(IO.UTF_8));
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public void sendResponse(HttpStatusCode code, String contentType, byte[] body) {
+		setResponseStatus(code);
+		if (contentType != null) setResponseHeader("Content-Type", contentType);
+		setResponseHeader("Content-Length", String.valueOf(body.length));
 		sendResponseHeaders();
-		closeConnection();
+		sendResponseData(body, 0, body.length);
+		finishResponse();
 	}
 
 	public void sendResponseHeaders() {
@@ -115,8 +201,8 @@ public class HttpRequest<S> {
 			setResponseStatus(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 			log.error("sendHeaders() responseStatusLine==null");
 		}
-		sendLine(responseStatusLine);
 		completeResponseHeaders();
+		sendLine(responseStatusLine);
 		for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
 			sendLine(header.getKey() + ": " + header.getValue());
 		}
@@ -125,8 +211,81 @@ public class HttpRequest<S> {
 		log.debug(responseStatusLine);
 	}
 
+	/**
+	 * Sends a part of the response body. Sends the response headers first, if not sent yet.
+	 */
+	public void sendResponseData(byte[] data, int offset, int length) {
+		if (!responseHeadersSent) sendResponseHeaders();
+		if (!responseBodyAllowed || length == 0) return;
+		if (responseChunked) {
+			connection.sendString(Integer.toHexString(length));
+			connection.sendData(CRLF, 0, CRLF.length);
+			connection.sendData(data, offset, length);
+			connection.sendData(CRLF, 0, CRLF.length);
+		} else {
+			connection.sendData(data, offset, length);
+		}
+	}
+
+	/**
+	 * Sends a part of a file as response body with <code>FileChannel.transferTo()</code>. Takes ownership of the
+	 * channel. Sends the response headers first, if not sent yet.
+	 */
+	public void sendResponseFile(FileChannel channel, long position, long length) {
+		if (!responseHeadersSent) sendResponseHeaders();
+		if (!responseBodyAllowed || length == 0) {
+			IO.closeQuiet(channel);
+			return;
+		}
+		if (responseChunked) {
+			connection.sendString(Long.toHexString(length));
+			connection.sendData(CRLF, 0, CRLF.length);
+			connection.sendFile(channel, position, length);
+			connection.sendData(CRLF, 0, CRLF.length);
+		} else {
+			connection.sendFile(channel, position, length);
+		}
+	}
+
+	/**
+	 * Completes the response. Called automatically after the request handler returned.
+	 */
+	public void finishResponse() {
+		if (responseFinished) return;
+		if (!responseHeadersSent) {
+			if (responseStatusLine == null) setResponseStatus(HttpStatusCode.NO_CONTENT);
+			if (responseBodyAllowed) setResponseHeader("Content-Length", "0");
+			sendResponseHeaders();
+		}
+		if (responseChunked) connection.sendData(LAST_CHUNK, 0, LAST_CHUNK.length);
+		responseFinished = true;
+		if (!keepAlive) closeConnection();
+	}
+
+	public boolean isResponseFinished() {
+		return responseFinished;
+	}
+
+	public boolean isResponseHeadersSent() {
+		return responseHeadersSent;
+	}
+
 	private void completeResponseHeaders() {
 		completeResponseHeader("Server", SERVER);
+		if (!keepAlive) {
+			setResponseHeader("Connection", "close");
+		} else if (!responseHeaders.containsKey("content-length") && responseBodyAllowed) {
+			if (isHttp11()) {
+				setResponseHeader("Transfer-Encoding", "chunked");
+				responseChunked = true;
+			} else {
+				// HTTP/1.0 without length: the end of the body is the end of the connection
+				keepAlive = false;
+				setResponseHeader("Connection", "close");
+			}
+		} else if (!isHttp11()) {
+			setResponseHeader("Connection", "keep-alive");
+		}
 	}
 
 	private void completeResponseHeader(String name, String defaultValue) {
@@ -146,14 +305,76 @@ public class HttpRequest<S> {
 		return uri;
 	}
 
+	/**
+	 * Returns the URI without the query string.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Returns the decoded query parameter.
+	 */
+	public String getParameter(String name) {
+		if (parameters == null) parameters = parseParameters(query);
+		return parameters.get(name);
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public String getBodyAsString() {
+		if (body == null) return null;
+		try {
+			return new String(body, IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 	public String getVersion() {
 		return version;
 	}
 
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public TcpConnection getConnection() {
+		return connection;
+	}
+
+	private boolean isHttp11() {
+		return PROTOCOL_VERSION.equals(version);
+	}
+
+	private static Map<String, String> parseParameters(String query) {
+		Map<String, String> ret = new HashMap<String, String>();
+		if (Str.isBlank(query)) return ret;
+		for (String pair : query.split("&")) {
+			int idx = pair.indexOf('=');
+			String name = idx < 0 ? pair : pair.substring(0, idx);
+			String value = idx < 0 ? "" : pair.substring(idx + 1);
+			try {
+				ret.put(URLDecoder.decode(name, IO.UTF_8), URLDecoder.decode(value, IO.UTF_8));
+			} catch (UnsupportedEncodingException ex) {
+				throw new RuntimeException(ex);
+			} catch (IllegalArgumentException ex) {
+				throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid query parameter: " + pair);
+			}
+		}
+		return ret;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append(method.name());
+		sb.append(method == null ? "?" : method.name());
 		sb.append(" ");
 		sb.append(uri);
 		sb.append(" ");
@@ -171,8 +392,30 @@ public class HttpRequest<S> {
 		return getHeader("Transfer-Encoding");
 	}
 
+	public Long getHeaderContentLength() {
+		String value = getHeader("Content-Length");
+		if (value == null) return null;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid Content-Length: " + value);
+		}
+	}
+
+	/**
+	 * @deprecated use <code>getHeaderContentLength()</code>
+	 */
+	@Deprecated
 	public Integer getHeaderContentLenght() {
-		return getHeaderAsInteger("Content-Lenght");
+		return getHeaderAsInteger("Content-Length");
+	}
+
+	public String getHeaderConnection() {
+		return getHeader("Connection");
+	}
+
+	public String getHeaderExpect() {
+		return getHeader("Expect");
 	}
 
 	// --- response header fields ---
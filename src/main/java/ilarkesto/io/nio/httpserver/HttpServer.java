@@ -15,53 +15,203 @@
 package ilarkesto.io.nio.httpserver;
 
 import ilarkesto.concurrent.TaskManager;
+import ilarkesto.core.logging.Log;
+import ilarkesto.core.time.Tm;
 import ilarkesto.io.nio.tcpserver.DataHandler;
 import ilarkesto.io.nio.tcpserver.PerConnectionDataHandler;
 import ilarkesto.io.nio.tcpserver.PerConnectionDataHandler.HandlerFacotry;
 import ilarkesto.io.nio.tcpserver.TcpConnection;
 import ilarkesto.io.nio.tcpserver.TcpServer;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Embedded HTTP/1.1 server on top of <code>TcpServer</code>. Requests are routed to the handler registered for
+ * the exact path, then to the handler with the longest matching prefix (registered as <code>"/prefix/*"</code>),
+ * then to the general handlers in registration order. The first handler returning <code>true</code> wins.
+ */
 public class HttpServer<S> {
 
+	private static Log log = Log.get(HttpServer.class);
+
 	private TcpServer server;
 	private String name;
 
-	private Set<HttpSession<S>> sessions = new HashSet<HttpSession<S>>();
+	private Map<String, HttpRequestHandler> handlersByPath = new ConcurrentHashMap<String, HttpRequestHandler>();
+	private volatile List<PrefixRoute> prefixRoutes = new ArrayList<PrefixRoute>();
+	private List<HttpRequestHandler> handlers = new CopyOnWriteArrayList<HttpRequestHandler>();
+
+	private Map<String, HttpSession<S>> sessions = new ConcurrentHashMap<String, HttpSession<S>>();
+	private String sessionCookieName = "ILARKESTO_SESSION";
+	private long sessionTimeout = 30 * Tm.MINUTE;
+	private volatile long nextSessionCleanup;
+
+	private int maxHeaderSize = 16 * 1024;
+	private int maxBodySize = 8 * 1024 * 1024;
 
 	public HttpServer(int port, String serverName) {
 		this.name = serverName;
 		server = new TcpServer(port, new PerConnectionDataHandler(new LocalHandlerFactory()));
 	}
 
+	// --- routing ---
+
+	/**
+	 * Registers a handler for an exact path or, if the path ends with <code>/*</code>, for all paths with that
+	 * prefix.
+	 */
+	public synchronized HttpServer<S> addHandler(String path, HttpRequestHandler handler) {
+		if (!path.endsWith("/*")) {
+			handlersByPath.put(path, handler);
+			return this;
+		}
+		List<PrefixRoute> routes = new ArrayList<PrefixRoute>(prefixRoutes);
+		routes.add(new PrefixRoute(path.substring(0, path.length() - 1), handler));
+		Collections.sort(routes, PrefixRoute.LONGEST_FIRST);
+		prefixRoutes = routes;
+		return this;
+	}
+
+	/**
+	 * Registers a handler which is asked for all requests not handled by a path handler.
+	 */
+	public HttpServer<S> addHandler(HttpRequestHandler handler) {
+		handlers.add(handler);
+		return this;
+	}
+
 	void onHttpRequest(HttpRequest request) {
-		updateSession(request);
-		request.sendEmptyResponse(HttpStatusCode.NOT_FOUND);
+		try {
+			if (!route(request)) sendError(request, HttpStatusCode.NOT_FOUND, null);
+		} catch (HttpException ex) {
+			sendError(request, ex.getStatusCode(), ex.getMessage());
+		} catch (RuntimeException ex) {
+			log.error("Processing request failed:", request, ex);
+			sendError(request, HttpStatusCode.INTERNAL_SERVER_ERROR, null);
+		}
+	}
+
+	private boolean route(HttpRequest request) {
+		String path = request.getPath();
+		HttpRequestHandler handler = handlersByPath.get(path);
+		if (handler != null && handler.onHttpRequest(request)) return true;
+		for (PrefixRoute route : prefixRoutes) {
+			if (path.startsWith(route.prefix) && route.handler.onHttpRequest(request)) return true;
+		}
+		for (HttpRequestHandler generalHandler : handlers) {
+			if (generalHandler.onHttpRequest(request)) return true;
+		}
+		return false;
 	}
 
-	private void updateSession(HttpRequest request) {
-		HttpSession<S> session = getSession("todo");
+	private void sendError(HttpRequest request, HttpStatusCode code, String message) {
+		if (request.isResponseHeadersSent()) {
+			// response is broken, the client notices by the closed connection
+			request.setKeepAlive(false);
+			return;
+		}
+		request.sendEmptyResponse(code, message);
+	}
+
+	// --- sessions ---
+
+	/**
+	 * Returns the session identified by the session cookie of the request. Creates a new session and sets the
+	 * cookie if there is no valid session.
+	 */
+	HttpSession<S> getSession(HttpRequest<S> request) {
+		removeExpiredSessions();
+		String id = request.getCookie(sessionCookieName);
+		HttpSession<S> session = id == null ? null : sessions.get(id);
+		if (session != null && session.getIdleTime() > sessionTimeout) {
+			sessions.remove(id);
+			session = null;
+		}
 		if (session == null) {
+			if (request.isResponseHeadersSent())
+				throw new IllegalStateException("Response headers already sent, session cookie not possible: "
+						+ request);
 			session = new HttpSession<S>();
-			// TODO create session bean
+			session.setBean(createSessionBean(session));
+			sessions.put(session.getId(), session);
+			request.setResponseHeader("Set-Cookie", sessionCookieName + "=" + session.getId() + "; Path=/; HttpOnly");
+			log.debug("Session created:", session.getId());
 		}
-		request.setSession(session);
 		session.touch();
+		return session;
 	}
 
-	private HttpSession<S> getSession(String id) {
-		for (HttpSession<S> session : sessions) {
-			if (session.getId().equals(id)) return session;
-		}
+	/**
+	 * Creates the bean for a new session. Returns <code>null</code> by default.
+	 */
+	protected S createSessionBean(HttpSession<S> session) {
 		return null;
 	}
 
+	private void removeExpiredSessions() {
+		long now = Tm.getCurrentTimeMillis();
+		if (now < nextSessionCleanup) return;
+		nextSessionCleanup = now + Tm.MINUTE;
+		Iterator<HttpSession<S>> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getIdleTime() > sessionTimeout) iterator.remove();
+		}
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public HttpServer<S> setSessionTimeout(long sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+		return this;
+	}
+
+	public HttpServer<S> setSessionCookieName(String sessionCookieName) {
+		this.sessionCookieName = sessionCookieName;
+		return this;
+	}
+
+	// --- ---
+
+	public HttpServer<S> setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+		return this;
+	}
+
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	public HttpServer<S> setMaxBodySize(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+
+	public int getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	public HttpServer<S> setSelectorThreads(int selectorThreads) {
+		server.setSelectorThreads(selectorThreads);
+		return this;
+	}
+
 	public void start(TaskManager taskManager) {
 		server.start(taskManager);
 	}
 
+	public void stop() {
+		server.stop();
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -79,4 +229,24 @@ public class HttpServer<S> {
 		}
 	}
 
+	private static class PrefixRoute {
+
+		private static final Comparator<PrefixRoute> LONGEST_FIRST = new Comparator<PrefixRoute>() {
+
+			@Override
+			public int compare(PrefixRoute a, PrefixRoute b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		};
+
+		private String prefix;
+		private HttpRequestHandler handler;
+
+		public PrefixRoute(String prefix, HttpRequestHandler handler) {
+			this.prefix = prefix;
+			this.handler = handler;
+		}
+
+	}
+
 }
@@ -22,7 +22,7 @@ public class HttpSession<S> {
 
 	private String id = UUID.randomUUID().toString();
 	private long startTime = Tm.getCurrentTimeMillis();
-	private long lastAccessTime = Tm.getCurrentTimeMillis();
+	private volatile long lastAccessTime = Tm.getCurrentTimeMillis();
 
 	private S bean;
 
@@ -15,8 +15,13 @@
 package ilarkesto.io.nio.httpserver;
 
 public enum HttpStatusCode {
-	BAD_REQUEST(400, "Bad Request"), NOT_FOUND(404, "Not Found"), INTERNAL_SERVER_ERROR(500, "Internal Server Error"), NOT_IMPLEMENTED(
-			501, "Not Implemented");
+	CONTINUE(100, "Continue"), OK(200, "OK"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"),
+	NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404,
+			"Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), LENGTH_REQUIRED(411, "Length Required"),
+	PRECONDITION_FAILED(412, "Precondition Failed"), REQUEST_ENTITY_TOO_LARGE(413, "Request Entity Too Large"),
+	REQUESTED_RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), REQUEST_HEADER_FIELDS_TOO_LARGE(431,
+			"Request Header Fields Too Large"), INTERNAL_SERVER_ERROR(500, "Internal Server Error"), NOT_IMPLEMENTED(
+			501, "Not Implemented"), HTTP_VERSION_NOT_SUPPORTED(505, "HTTP Version Not Supported");
 
 	private int code;
 	private String text;
@@ -34,6 +39,13 @@ public enum HttpStatusCode {
 		return text;
 	}
 
+	/**
+	 * 1xx, 204 and 304 responses never have a body.
+	 */
+	public boolean isBodyAllowed() {
+		return code >= 200 && code != 204 && code != 304;
+	}
+
 	@Override
 	public String toString() {
 		return code + " " + text;
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.httpserver;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+import ilarkesto.io.zip.GZIPOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Serves the files of a directory below a path prefix. Large files are sent with
+ * <code>FileChannel.transferTo()</code> directly into the socket. Small files are cached in memory, compressible
+ * ones also gzipped. Supports single byte ranges and validation by <code>ETag</code> and
+ * <code>If-Modified-Since</code>.
+ *
+ * <pre>
+ * server.addHandler(&quot;/static/*&quot;, new StaticFileHandler(&quot;/static/&quot;, dir));
+ * </pre>
+ */
+public class StaticFileHandler implements HttpRequestHandler {
+
+	private static Log log = Log.get(StaticFileHandler.class);
+
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+
+	static {
+		MIME_TYPES.put("html", "text/html; charset=UTF-8");
+		MIME_TYPES.put("htm", "text/html; charset=UTF-8");
+		MIME_TYPES.put("css", "text/css; charset=UTF-8");
+		MIME_TYPES.put("txt", "text/plain; charset=UTF-8");
+		MIME_TYPES.put("js", "application/javascript; charset=UTF-8");
+		MIME_TYPES.put("json", "application/json; charset=UTF-8");
+		MIME_TYPES.put("xml", "application/xml");
+		MIME_TYPES.put("svg", "image/svg+xml");
+		MIME_TYPES.put("png", "image/png");
+		MIME_TYPES.put("jpg", "image/jpeg");
+		MIME_TYPES.put("jpeg", "image/jpeg");
+		MIME_TYPES.put("gif", "image/gif");
+		MIME_TYPES.put("ico", "image/x-icon");
+		MIME_TYPES.put("webp", "image/webp");
+		MIME_TYPES.put("pdf", "application/pdf");
+		MIME_TYPES.put("zip", "application/zip");
+		MIME_TYPES.put("woff", "font/woff");
+		MIME_TYPES.put("woff2", "font/woff2");
+		MIME_TYPES.put("mp4", "video/mp4");
+	}
+
+	private String pathPrefix;
+	private File root;
+	private String rootPath;
+
+	private int maxCachedFileSize = 64 * 1024;
+	private long maxCacheSize = 16 * 1024 * 1024;
+	private String cacheControl;
+
+	private LinkedHashMap<File, CachedFile> cache = new LinkedHashMap<File, CachedFile>(16, 0.75f, true);
+	private long cacheSize;
+
+	public StaticFileHandler(String pathPrefix, File root) {
+		this.pathPrefix = pathPrefix.endsWith("/") ? pathPrefix : pathPrefix + "/";
+		try {
+			this.root = root.getCanonicalFile();
+		} catch (IOException ex) {
+			throw new RuntimeException("Resolving directory failed: " + root, ex);
+		}
+		this.rootPath = this.root.getPath() + File.separator;
+	}
+
+	@Override
+	public boolean onHttpRequest(HttpRequest request) {
+		HttpMethod method = request.getMethod();
+		if (method != HttpMethod.GET && method != HttpMethod.HEAD) return false;
+		String path = request.getPath();
+		if (!path.startsWith(pathPrefix)) return false;
+		File file = resolve(path.substring(pathPrefix.length()));
+		if (file == null) return false;
+		serve(request, file);
+		return true;
+	}
+
+	private File resolve(String relativePath) {
+		String decoded;
+		try {
+			// '+' is not a space in paths
+			decoded = URLDecoder.decode(relativePath.replace("+", "%2B"), IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		} catch (IllegalArgumentException ex) {
+			throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid path: " + relativePath);
+		}
+		if (decoded.indexOf('\0') >= 0) throw new HttpException(HttpStatusCode.BAD_REQUEST, "Invalid path");
+		for (String segment : decoded.split("[/\\\\]")) {
+			if (segment.equals("..")) throw new HttpException(HttpStatusCode.FORBIDDEN, relativePath);
+		}
+
+		File file = new File(root, decoded);
+		if (file.isDirectory()) file = new File(file, "index.html");
+		if (!file.isFile()) return null;
+		try {
+			// symbolic links must not lead out of the root directory
+			if (!file.getCanonicalPath().startsWith(rootPath))
+				throw new HttpException(HttpStatusCode.FORBIDDEN, relativePath);
+		} catch (IOException ex) {
+			return null;
+		}
+		return file;
+	}
+
+	private void serve(HttpRequest request, File file) {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+		String gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+
+		if (isNotModified(request, etag, gzipEtag, lastModified)) {
+			request.setResponseHeader("ETag", etag);
+			request.setResponseStatus(HttpStatusCode.NOT_MODIFIED);
+			request.sendResponseHeaders();
+			return;
+		}
+
+		request.setResponseHeader("Last-Modified", formatDate(lastModified));
+		request.setResponseHeader("Accept-Ranges", "bytes");
+		request.setResponseHeader("Content-Type", getMimeType(file.getName()));
+		if (cacheControl != null) request.setResponseHeader("Cache-Control", cacheControl);
+
+		CachedFile cached = length <= maxCachedFileSize ? getCachedFile(file, length, lastModified) : null;
+
+		String range = request.getHeader("Range");
+		if (range != null && isIfRangeValid(request, etag, lastModified)) {
+			long[] bounds = parseRange(range, length);
+			if (bounds != null) {
+				request.setResponseHeader("ETag", etag);
+				if (bounds[0] > bounds[1]) {
+					request.setResponseHeader("Content-Range", "bytes */" + length);
+					request.sendEmptyResponse(HttpStatusCode.REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				long count = bounds[1] - bounds[0] + 1;
+				request.setResponseStatus(HttpStatusCode.PARTIAL_CONTENT);
+				request.setResponseHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+				request.setResponseHeader("Content-Length", String.valueOf(count));
+				sendBody(request, file, cached == null ? null : cached.data, bounds[0], count);
+				return;
+			}
+		}
+
+		request.setResponseStatus(HttpStatusCode.OK);
+		if (cached != null && cached.gzip != null) {
+			request.setResponseHeader("Vary", "Accept-Encoding");
+			if (isGzipAccepted(request)) {
+				request.setResponseHeader("ETag", gzipEtag);
+				request.setResponseHeader("Content-Encoding", "gzip");
+				request.setResponseHeader("Content-Length", String.valueOf(cached.gzip.length));
+				sendBody(request, file, cached.gzip, 0, cached.gzip.length);
+				return;
+			}
+		}
+		request.setResponseHeader("ETag", etag);
+		request.setResponseHeader("Content-Length", String.valueOf(length));
+		sendBody(request, file, cached == null ? null : cached.data, 0, length);
+	}
+
+	private void sendBody(HttpRequest request, File file, byte[] data, long position, long count) {
+		if (request.getMethod() == HttpMethod.HEAD) {
+			request.sendResponseHeaders();
+			return;
+		}
+		if (data != null) {
+			request.sendResponseData(data, (int) position, (int) count);
+			return;
+		}
+		FileChannel channel;
+		try {
+			channel = new FileInputStream(file).getChannel();
+		} catch (IOException ex) {
+			throw new HttpException(HttpStatusCode.NOT_FOUND, null);
+		}
+		request.sendResponseFile(channel, position, count);
+	}
+
+	private boolean isNotModified(HttpRequest request, String etag, String gzipEtag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			return ifNoneMatch.equals("*") || ifNoneMatch.contains(etag) || ifNoneMatch.contains(gzipEtag);
+		Long ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+		return ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	private boolean isIfRangeValid(HttpRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+		Long date = parseDate(ifRange);
+		return date != null && lastModified / 1000 == date / 1000;
+	}
+
+	/**
+	 * Parses a single byte range. Returns <code>null</code> for invalid or multiple ranges, which are answered
+	 * with the whole file. Returns start &gt; end for unsatisfiable ranges.
+	 */
+	static long[] parseRange(String range, long length) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+		String spec = range.substring(6).trim();
+		int idx = spec.indexOf('-');
+		if (idx < 0) return null;
+		try {
+			long start;
+			long end;
+			if (idx == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix == 0) return new long[] { 1, 0 };
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, idx));
+				end = length - 1;
+				if (idx < spec.length() - 1) end = Math.min(end, Long.parseLong(spec.substring(idx + 1)));
+				if (end < start && start < length) return null;
+			}
+			if (start >= length) return new long[] { 1, 0 };
+			return new long[] { start, end };
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private static boolean isGzipAccepted(HttpRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.contains("gzip");
+	}
+
+	// --- cache ---
+
+	private CachedFile getCachedFile(File file, long length, long lastModified) {
+		synchronized (cache) {
+			CachedFile cached = cache.get(file);
+			if (cached != null && cached.length == length && cached.lastModified == lastModified) return cached;
+		}
+
+		byte[] data = IO.readFileToByteArray(file);
+		if (data.length != length) return null;
+		CachedFile cached = new CachedFile(data, lastModified);
+		if (isCompressible(getMimeType(file.getName()))) {
+			byte[] gzip = gzip(data);
+			// not worth it for already compressed content
+			if (gzip.length < data.length * 9 / 10) cached.gzip = gzip;
+		}
+
+		synchronized (cache) {
+			CachedFile previous = cache.put(file, cached);
+			if (previous != null) cacheSize -= previous.getSize();
+			cacheSize += cached.getSize();
+			Iterator<CachedFile> iterator = cache.values().iterator();
+			while (cacheSize > maxCacheSize && iterator.hasNext()) {
+				cacheSize -= iterator.next().getSize();
+				iterator.remove();
+			}
+		}
+		log.debug("File cached:", file, cached.gzip == null ? "" : "(gzip)");
+		return cached;
+	}
+
+	private static byte[] gzip(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(data);
+			gzip.close();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	private static boolean isCompressible(String mimeType) {
+		return mimeType.startsWith("text/") || mimeType.startsWith("application/javascript")
+				|| mimeType.startsWith("application/json") || mimeType.startsWith("application/xml")
+				|| mimeType.startsWith("image/svg");
+	}
+
+	private static String getMimeType(String filename) {
+		String extension = IO.getFileExtension(filename);
+		String mimeType = extension == null ? null : MIME_TYPES.get(extension.toLowerCase());
+		return mimeType == null ? "application/octet-stream" : mimeType;
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+
+	private static Long parseDate(String s) {
+		if (s == null) return null;
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(s).getTime();
+		} catch (ParseException ex) {
+			return null;
+		}
+	}
+
+	// --- configuration ---
+
+	public StaticFileHandler setMaxCachedFileSize(int maxCachedFileSize) {
+		this.maxCachedFileSize = maxCachedFileSize;
+		return this;
+	}
+
+	public StaticFileHandler setMaxCacheSize(long maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+		return this;
+	}
+
+	public StaticFileHandler setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+		return this;
+	}
+
+	private static class CachedFile {
+
+		private byte[] data;
+		private byte[] gzip;
+		private long length;
+		private long lastModified;
+
+		public CachedFile(byte[] data, long lastModified) {
+			this.data = data;
+			this.length = data.length;
+			this.lastModified = lastModified;
+		}
+
+		public long getSize() {
+			return data.length + (gzip == null ? 0 : gzip.length);
+		}
+
+	}
+
+}
@@ -22,6 +22,7 @@ public class ChangeRequest {
 	public static final int CHANGEOPS = 2;
 
 	public SocketChannel socket;
+	public TcpConnection connection;
 	public int type;
 	public int ops;
 
@@ -31,4 +32,9 @@ public class ChangeRequest {
 		this.ops = ops;
 	}
 
+	public ChangeRequest(TcpConnection connection, int type, int ops) {
+		this(connection.socketChannel, type, ops);
+		this.connection = connection;
+	}
+
 }
@@ -14,11 +14,14 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import java.nio.ByteBuffer;
+
 public class EchoDataHandler implements DataHandler {
 
 	@Override
 	public void onDataReceived(ServerDataEvent event) {
-		event.getConnection().sendData(event.getData());
+		ByteBuffer data = event.getBuffer();
+		event.getConnection().sendData(data.array(), data.arrayOffset() + data.position(), data.remaining());
 	}
 
 	@Override
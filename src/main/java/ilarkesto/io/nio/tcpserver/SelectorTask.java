@@ -21,41 +21,70 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Selector loop for a share of the connections of a <code>TcpServer</code>. The accepting loop owns the server
+ * socket and hands new connections round-robin to all loops of the server. Each connection is attached to its
+ * <code>SelectionKey</code>.
+ */
 public class SelectorTask extends ALoopTask {
 
 	private Log log = Log.get(getClass());
 
-	private WorkerTask worker;
+	private WorkerPool worker;
 	private int port;
+	private boolean acceptor;
+	private SelectorTask[] peers;
+	private int nextPeer;
 
 	private InetAddress hostAddress;
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
 
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private BufferPool readBufferPool = BufferPool.INPUT;
+	private BufferPool bufferPool = BufferPool.OUTPUT;
+
+	private Queue<ChangeRequest> changeRequests = new ConcurrentLinkedQueue<ChangeRequest>();
 
-	private List changeRequests = new LinkedList();
-	private List<TcpConnection> connections = new LinkedList<TcpConnection>();
+	/**
+	 * Creates the accepting loop.
+	 */
+	public SelectorTask(int port, WorkerPool worker) {
+		this(port, worker, true);
+	}
 
-	public SelectorTask(int port, WorkerTask worker) {
+	SelectorTask(int port, WorkerPool worker, boolean acceptor) {
 		this.port = port;
 		this.worker = worker;
+		this.acceptor = acceptor;
+		this.peers = new SelectorTask[] { this };
+		try {
+			selector = SelectorProvider.provider().openSelector();
+		} catch (IOException ex) {
+			throw new RuntimeException("Opening selector failed.", ex);
+		}
+	}
+
+	/**
+	 * Loops which get a share of the accepted connections, including this one.
+	 */
+	void setPeers(SelectorTask[] peers) {
+		this.peers = peers;
 	}
 
 	@Override
 	protected void beforeLoop() throws InterruptedException {
+		if (!acceptor) return;
 		try {
-			selector = initSelector();
+			initServerChannel();
 		} catch (IOException ex) {
 			throw new RuntimeException("Initializing selector failed.", ex);
 		}
@@ -64,19 +93,23 @@ public class SelectorTask extends ALoopTask {
 
 	@Override
 	protected void iteration() throws InterruptedException {
-		synchronized (this.changeRequests) {
-			Iterator changes = this.changeRequests.iterator();
-			while (changes.hasNext()) {
-				ChangeRequest change = (ChangeRequest) changes.next();
-				switch (change.type) {
-					case ChangeRequest.CHANGEOPS:
-						SelectionKey key = change.socket.keyFor(this.selector);
-						if (key.isValid()) {
-							key.interestOps(change.ops);
-						}
-				}
+		ChangeRequest change;
+		while ((change = changeRequests.poll()) != null) {
+			switch (change.type) {
+				case ChangeRequest.REGISTER:
+					try {
+						change.socket.register(selector, change.ops, change.connection);
+					} catch (IOException ex) {
+						log.warn("Registering client connection failed:", change.connection, ex);
+						closeConnectionInternal(change.connection);
+					}
+					break;
+				case ChangeRequest.CHANGEOPS:
+					SelectionKey key = change.socket.keyFor(selector);
+					if (key != null && key.isValid()) {
+						key.interestOps(change.ops);
+					}
 			}
-			this.changeRequests.clear();
 		}
 
 		try {
@@ -84,10 +117,14 @@ public class SelectorTask extends ALoopTask {
 		} catch (IOException ex) {
 			throw new RuntimeException("Selector.select() failed.");
 		}
+		if (isAbortRequested()) {
+			closeSelector();
+			return;
+		}
 
-		Iterator selectedKeys = this.selector.selectedKeys().iterator();
+		Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
 		while (selectedKeys.hasNext()) {
-			SelectionKey key = (SelectionKey) selectedKeys.next();
+			SelectionKey key = selectedKeys.next();
 			selectedKeys.remove();
 
 			if (!key.isValid()) {
@@ -100,13 +137,16 @@ public class SelectorTask extends ALoopTask {
 				} catch (IOException ex) {
 					throw new RuntimeException("Accepting connection failed.", ex);
 				}
-			} else if (key.isReadable()) {
+				continue;
+			}
+			if (key.isReadable()) {
 				try {
 					read(key);
 				} catch (IOException ex) {
 					throw new RuntimeException("Reading failed.", ex);
 				}
-			} else if (key.isWritable()) {
+			}
+			if (key.isValid() && key.isWritable()) {
 				try {
 					this.write(key);
 				} catch (IOException ex) {
@@ -122,117 +162,129 @@ public class SelectorTask extends ALoopTask {
 	}
 
 	void sendChangeRequestForWrite(SocketChannel socket) {
-		synchronized (changeRequests) {
-			changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-		}
+		changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_READ
+				| SelectionKey.OP_WRITE));
 	}
 
 	void wakeupSelector() {
 		selector.wakeup();
 	}
 
+	@Override
+	public void abort() {
+		super.abort();
+		selector.wakeup();
+	}
+
 	private void write(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		TcpConnection connection = getConnectionByChannel(socketChannel);
-		// Write until there's not more data ...
-		while (!connection.pendingData.isEmpty()) {
-			ByteBuffer data = connection.pendingData.peek();
-			if (data == TcpConnection.CLOSE_CONNECTION) {
+		TcpConnection connection = (TcpConnection) key.attachment();
+		int result;
+		try {
+			result = connection.writePending();
+		} catch (IOException ex) {
+			log.debug("Writing to client failed:", connection, ex);
+			closeConnection(key);
+			return;
+		}
+		switch (result) {
+			case TcpConnection.WRITE_COMPLETE:
+				// no more data, wait for the next flush
+				key.interestOps(SelectionKey.OP_READ);
+				break;
+			case TcpConnection.WRITE_COMPLETE_CLOSE:
 				log.debug("Closing client connection:", connection);
-				closeConnectionInternal(connection);
-				return;
-			}
-			socketChannel.write(data);
-			if (data.remaining() > 0) {
-				// ... or the socket's buffer fills up
+				closeConnection(key);
 				break;
-			}
-			connection.pendingData.remove(data);
-		}
-		if (connection.pendingData.isEmpty()) {
-			// We wrote away all data, so we're no longer interested
-			// in writing on this socket. Switch back to waiting for
-			// data.
-			key.interestOps(SelectionKey.OP_READ);
+			default:
+				// socket buffer is full, keep waiting for OP_WRITE
 		}
 	}
 
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
-		TcpConnection connection = getConnectionByChannel(socketChannel);
+		TcpConnection connection = (TcpConnection) key.attachment();
 
-		this.readBuffer.clear();
+		ByteBuffer readBuffer = readBufferPool.acquire();
 
 		int numRead;
 		try {
-			numRead = socketChannel.read(this.readBuffer);
+			numRead = socketChannel.read(readBuffer);
 		} catch (IOException e) {
+			readBufferPool.release(readBuffer);
 			log.debug("Client forcibly closed connection:", connection);
 			closeConnection(key);
 			return;
 		}
 
-		if (numRead == -1) {
+		if (numRead <= 0) {
+			readBufferPool.release(readBuffer);
+			if (numRead == 0) return;
 			log.debug("Client closed connection:", connection);
 			closeConnection(key);
 			return;
 		}
 
-		worker.processData(connection, readBuffer.array(), numRead);
-	}
-
-	private TcpConnection getConnectionByKey(SelectionKey key) {
-		return getConnectionByChannel(key.channel());
-	}
-
-	private TcpConnection getConnectionByChannel(SelectableChannel channel) {
-		synchronized (connections) {
-			for (TcpConnection connection : connections) {
-				if (connection.socketChannel == channel) return connection;
-			}
-		}
-		throw new IllegalStateException("No TcpConnection found for channel " + channel);
+		readBuffer.flip();
+		worker.processData(connection, readBuffer, readBufferPool);
 	}
 
 	private void closeConnection(SelectionKey key) {
 		key.cancel();
-		closeConnectionInternal(getConnectionByKey(key));
+		closeConnectionInternal((TcpConnection) key.attachment());
 	}
 
 	private void closeConnectionInternal(TcpConnection connection) {
-		synchronized (connections) {
-			connections.remove(connection);
-		}
 		try {
 			connection.socketChannel.close();
 		} catch (IOException ex) {
 			// nop
 		}
-		worker.processData(connection, null, -1);
+		connection.releaseOutput();
+		worker.processConnectionClosed(connection);
 	}
 
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		TcpConnection tcpConnection = new TcpConnection(this, socketChannel);
-		synchronized (connections) {
-			connections.add(tcpConnection);
+		SocketChannel socketChannel;
+		while ((socketChannel = serverSocketChannel.accept()) != null) {
+			socketChannel.configureBlocking(false);
+			SelectorTask target = peers[nextPeer];
+			nextPeer = (nextPeer + 1) % peers.length;
+			TcpConnection tcpConnection = new TcpConnection(target, socketChannel, bufferPool);
+			log.debug("Client connected:", tcpConnection);
+			if (target == this) {
+				socketChannel.register(selector, SelectionKey.OP_READ, tcpConnection);
+			} else {
+				target.register(tcpConnection);
+			}
 		}
+	}
 
-		log.debug("Client connected:", tcpConnection);
-
-		socketChannel.configureBlocking(false);
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+	private void register(TcpConnection connection) {
+		changeRequests.add(new ChangeRequest(connection, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+		selector.wakeup();
 	}
 
-	private Selector initSelector() throws IOException {
-		Selector socketSelector = SelectorProvider.provider().openSelector();
+	private void initServerChannel() throws IOException {
 		serverChannel = ServerSocketChannel.open();
 		serverChannel.configureBlocking(false);
 		InetSocketAddress isa = new InetSocketAddress(hostAddress, port);
 		serverChannel.socket().bind(isa);
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-		return socketSelector;
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	private void closeSelector() {
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			log.warn("Closing selector failed:", ex);
+		}
+		if (serverChannel == null) return;
+		try {
+			serverChannel.close();
+		} catch (IOException ex) {
+			log.warn("Closing server channel failed:", port, ex);
+		}
 	}
 
 	public int getPort() {
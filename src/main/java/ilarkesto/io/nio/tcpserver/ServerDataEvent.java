@@ -14,22 +14,58 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import java.nio.ByteBuffer;
+
 public class ServerDataEvent {
 
 	private TcpConnection connection;
 	private byte[] data;
+	private ByteBuffer buffer;
+	private BufferPool pool;
 
 	public ServerDataEvent(TcpConnection connection, byte[] data) {
 		this.connection = connection;
 		this.data = data;
 	}
 
+	ServerDataEvent(TcpConnection connection, ByteBuffer buffer, BufferPool pool) {
+		this.connection = connection;
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+
 	public TcpConnection getConnection() {
 		return connection;
 	}
 
+	/**
+	 * Returns a copy of the received data. Use <code>getBuffer()</code> to avoid the copy.
+	 */
 	public byte[] getData() {
+		if (data == null && buffer != null) {
+			data = new byte[buffer.remaining()];
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position(), data, 0, data.length);
+		}
 		return data;
 	}
 
+	/**
+	 * Returns the received data without copying. The buffer is reused after the <code>DataHandler</code>
+	 * returned, so it must not be kept.
+	 */
+	public ByteBuffer getBuffer() {
+		if (buffer == null && data != null) buffer = ByteBuffer.wrap(data);
+		return buffer == null ? null : buffer.duplicate();
+	}
+
+	boolean isConnectionClosed() {
+		return data == null && buffer == null;
+	}
+
+	void release() {
+		if (pool == null) return;
+		pool.release(buffer);
+		pool = null;
+	}
+
 }
@@ -14,14 +14,33 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import ilarkesto.io.IO;
+
+import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Output is assembled in pooled direct buffers and sent with the next <code>flush()</code>, which is called
+ * automatically after the <code>DataHandler</code> returned. The selector writes all pending buffers with one
+ * gathering write and is woken up at most once per flush. Output sent by other threads than the worker running the
+ * <code>DataHandler</code> is flushed immediately.
+ */
 public class TcpConnection {
 
-	static final ByteBuffer CLOSE_CONNECTION = ByteBuffer.wrap(new byte[0]);
+	public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	static final int WRITE_INCOMPLETE = 0;
+	static final int WRITE_COMPLETE = 1;
+	static final int WRITE_COMPLETE_CLOSE = 2;
+
+	private static final byte[] CRLF = new byte[] { 13, 10 };
 
 	SelectorTask server;
 	SocketChannel socketChannel;
@@ -29,37 +48,312 @@ public class TcpConnection {
 	int remotePort;
 	int localPort;
 
-	ConcurrentLinkedQueue<ByteBuffer> pendingData = new ConcurrentLinkedQueue<ByteBuffer>();
-	boolean closed;
+	ConcurrentLinkedQueue<ServerDataEvent> inbox = new ConcurrentLinkedQueue<ServerDataEvent>();
+	AtomicBoolean dispatching = new AtomicBoolean();
+	/**
+	 * The worker draining the inbox. Its output is flushed once after the drain.
+	 */
+	volatile Thread dispatchThread;
 
-	TcpConnection(SelectorTask server, SocketChannel socketChannel) {
+	private BufferPool bufferPool;
+	private int maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+
+	private Object outputLock = new Object();
+	private ByteBuffer outputBuffer;
+	private LinkedList<Object> pendingData = new LinkedList<Object>();
+	private long pendingBytes;
+	private boolean writeRequested;
+	private boolean closed;
+	private boolean disconnected;
+
+	TcpConnection(SelectorTask server, SocketChannel socketChannel, BufferPool bufferPool) {
 		this.server = server;
 		this.socketChannel = socketChannel;
+		this.bufferPool = bufferPool;
 		Socket socket = getSocket();
 		remoteHost = socket.getInetAddress().getHostAddress();
 		remotePort = socket.getPort();
 		localPort = socket.getLocalPort();
 	}
 
+	/**
+	 * Buffers the data. <code>null</code> closes the connection.
+	 */
 	public void sendData(byte[] data) {
-		if (closed) throw new IllegalStateException("Connection already closed: " + toString());
-		server.sendChangeRequestForWrite(socketChannel);
-		pendingData.add(data == null ? CLOSE_CONNECTION : ByteBuffer.wrap(data));
-		server.wakeupSelector();
+		if (data == null) {
+			close();
+			return;
+		}
+		sendData(data, 0, data.length);
+	}
+
+	public void sendData(byte[] data, int offset, int length) {
+		boolean full;
+		synchronized (outputLock) {
+			checkOpen();
+			full = appendData(data, offset, length);
+		}
+		onDataAppended(full);
 	}
 
 	public void sendString(String s) {
-		sendData(s.getBytes());
+		boolean full;
+		synchronized (outputLock) {
+			checkOpen();
+			full = appendString(s);
+		}
+		onDataAppended(full);
 	}
 
 	public void sendLineCrLf(String line) {
-		sendString(line);
-		sendData(new byte[] { 13, 10 });
+		boolean full;
+		synchronized (outputLock) {
+			checkOpen();
+			full = appendString(line);
+			full |= appendData(CRLF, 0, CRLF.length);
+		}
+		onDataAppended(full);
+	}
+
+	/**
+	 * Sends a part of a file with <code>FileChannel.transferTo()</code>, without copying it through the heap. The
+	 * connection takes ownership of the channel and closes it after the transfer.
+	 */
+	public void sendFile(FileChannel channel, long position, long length) {
+		synchronized (outputLock) {
+			if (closed || disconnected || length <= 0) {
+				IO.closeQuiet(channel);
+				checkOpen();
+				return;
+			}
+			enqueueOutputBuffer();
+			pendingData.add(new FileRegion(channel, position, length));
+			pendingBytes += length;
+		}
+		onDataAppended(false);
 	}
 
+	/**
+	 * Hands all buffered output to the selector.
+	 */
+	public void flush() {
+		synchronized (outputLock) {
+			if (disconnected) return;
+			enqueueOutputBuffer();
+			if (pendingData.isEmpty() && !closed) return;
+		}
+		requestWrite();
+	}
+
+	/**
+	 * Closes the connection after all buffered output has been sent.
+	 */
 	public void close() {
-		sendData(null);
-		closed = true;
+		synchronized (outputLock) {
+			if (closed) return;
+			closed = true;
+		}
+		flush();
+	}
+
+	public boolean isClosed() {
+		synchronized (outputLock) {
+			return closed || disconnected;
+		}
+	}
+
+	/**
+	 * Back-pressure signal: <code>true</code> if more output is pending than allowed by
+	 * <code>setMaxPendingBytes()</code>. Producers should stop sending until
+	 * <code>awaitUncongested()</code> returns.
+	 */
+	public boolean isCongested() {
+		synchronized (outputLock) {
+			return pendingBytes > maxPendingBytes;
+		}
+	}
+
+	/**
+	 * Blocks until the pending output dropped below the limit or the connection was closed. Must not be called
+	 * by the selector thread.
+	 *
+	 * @return <code>false</code> if the timeout elapsed
+	 */
+	public boolean awaitUncongested(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (outputLock) {
+			while (pendingBytes > maxPendingBytes && !disconnected) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				outputLock.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	public void setMaxPendingBytes(int maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	// --- selector ---
+
+	/**
+	 * Called by the selector thread. Writes the pending buffers with one gathering write.
+	 */
+	int writePending() throws IOException {
+		while (true) {
+			ByteBuffer[] buffers = null;
+			FileRegion region = null;
+			synchronized (outputLock) {
+				if (disconnected) return WRITE_COMPLETE;
+				if (pendingData.isEmpty()) {
+					writeRequested = false;
+					return closed ? WRITE_COMPLETE_CLOSE : WRITE_COMPLETE;
+				}
+				if (pendingData.getFirst() instanceof FileRegion) {
+					region = (FileRegion) pendingData.getFirst();
+				} else {
+					buffers = getLeadingBuffers();
+				}
+			}
+
+			long written = region != null ? region.transferTo(socketChannel) : socketChannel.write(buffers);
+
+			synchronized (outputLock) {
+				while (!pendingData.isEmpty() && isWritten(pendingData.getFirst())) {
+					release(pendingData.removeFirst());
+				}
+				pendingBytes -= written;
+				if (written > 0) outputLock.notifyAll();
+			}
+			// socket buffer is full
+			if (written == 0) return WRITE_INCOMPLETE;
+		}
+	}
+
+	private ByteBuffer[] getLeadingBuffers() {
+		int count = 0;
+		for (Object data : pendingData) {
+			if (!(data instanceof ByteBuffer)) break;
+			count++;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		Iterator<Object> iterator = pendingData.iterator();
+		for (int i = 0; i < count; i++) {
+			buffers[i] = (ByteBuffer) iterator.next();
+		}
+		return buffers;
+	}
+
+	private boolean isWritten(Object data) {
+		if (data instanceof FileRegion) return ((FileRegion) data).remaining == 0;
+		return !((ByteBuffer) data).hasRemaining();
+	}
+
+	private void release(Object data) {
+		if (data instanceof FileRegion) {
+			((FileRegion) data).close();
+		} else {
+			bufferPool.release((ByteBuffer) data);
+		}
+	}
+
+	/**
+	 * Called by the selector thread after the socket was closed.
+	 */
+	void releaseOutput() {
+		synchronized (outputLock) {
+			disconnected = true;
+			if (outputBuffer != null) bufferPool.release(outputBuffer);
+			outputBuffer = null;
+			for (Object data : pendingData) {
+				release(data);
+			}
+			pendingData.clear();
+			pendingBytes = 0;
+			outputLock.notifyAll();
+		}
+	}
+
+	// --- ---
+
+	private boolean appendData(byte[] data, int offset, int length) {
+		boolean full = false;
+		while (length > 0) {
+			full |= prepareOutputBuffer();
+			int count = Math.min(length, outputBuffer.remaining());
+			outputBuffer.put(data, offset, count);
+			offset += count;
+			length -= count;
+		}
+		return full;
+	}
+
+	private boolean appendString(String s) {
+		boolean full = false;
+		int length = s.length();
+		int i = 0;
+		ascii: while (i < length) {
+			full |= prepareOutputBuffer();
+			int end = Math.min(length, i + outputBuffer.remaining());
+			for (; i < end; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) break ascii;
+				outputBuffer.put((byte) c);
+			}
+		}
+		if (i < length) {
+			byte[] rest = s.substring(i).getBytes();
+			full |= appendData(rest, 0, rest.length);
+		}
+		return full;
+	}
+
+	/**
+	 * Full buffers are handed to the selector right away. Output of other threads than the dispatching worker is
+	 * flushed, since no drain would flush it.
+	 */
+	private void onDataAppended(boolean full) {
+		if (Thread.currentThread() != dispatchThread) {
+			flush();
+			return;
+		}
+		if (full) requestWrite();
+	}
+
+	private void requestWrite() {
+		synchronized (outputLock) {
+			if (writeRequested || disconnected) return;
+			writeRequested = true;
+		}
+		server.sendChangeRequestForWrite(socketChannel);
+		server.wakeupSelector();
+	}
+
+	/**
+	 * Makes sure <code>outputBuffer</code> has space left.
+	 *
+	 * @return <code>true</code> if a full buffer was enqueued
+	 */
+	private boolean prepareOutputBuffer() {
+		if (outputBuffer != null && outputBuffer.hasRemaining()) return false;
+		boolean enqueued = enqueueOutputBuffer();
+		outputBuffer = bufferPool.acquire();
+		return enqueued;
+	}
+
+	private boolean enqueueOutputBuffer() {
+		if (outputBuffer == null) return false;
+		if (outputBuffer.position() == 0) return false;
+		outputBuffer.flip();
+		pendingData.add(outputBuffer);
+		pendingBytes += outputBuffer.remaining();
+		outputBuffer = null;
+		return true;
+	}
+
+	private void checkOpen() {
+		if (closed || disconnected) throw new IllegalStateException("Connection already closed: " + toString());
 	}
 
 	Socket getSocket() {
@@ -82,4 +376,30 @@ public class TcpConnection {
 		return socketChannel.hashCode();
 	}
 
+	private static class FileRegion {
+
+		private FileChannel channel;
+		private long position;
+		private long remaining;
+
+		public FileRegion(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		public long transferTo(SocketChannel target) throws IOException {
+			if (position >= channel.size()) throw new IOException("File truncated during transfer");
+			long transferred = channel.transferTo(position, remaining, target);
+			position += transferred;
+			remaining -= transferred;
+			return transferred;
+		}
+
+		public void close() {
+			IO.closeQuiet(channel);
+		}
+
+	}
+
 }
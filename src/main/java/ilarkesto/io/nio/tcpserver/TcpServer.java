@@ -19,31 +19,59 @@ import ilarkesto.concurrent.TaskManager;
 // http://rox-xmlrpc.sourceforge.net/niotut/
 public class TcpServer {
 
-	private SelectorTask selectorTask;
-	private WorkerTask workerTask;
+	private int port;
+	private WorkerPool workerPool;
+	private int selectorThreads = 1;
+	private SelectorTask[] selectorTasks;
 
 	public TcpServer(int port, DataHandler dataHandler) {
-		workerTask = new WorkerTask(dataHandler);
-		selectorTask = new SelectorTask(port, workerTask);
+		this(port, dataHandler, Runtime.getRuntime().availableProcessors());
 	}
 
-	public void start(TaskManager taskManager) {
-		taskManager.start(workerTask);
-		taskManager.start(selectorTask);
+	public TcpServer(int port, DataHandler dataHandler, int workerThreads) {
+		this.port = port;
+		workerPool = new WorkerPool(dataHandler, workerThreads);
 	}
 
-	public void stop() {
-		selectorTask.abort();
-		workerTask.abort();
+	/**
+	 * Number of selector loops the connections are distributed over. One of them also accepts new connections.
+	 */
+	public TcpServer setSelectorThreads(int selectorThreads) {
+		if (selectorTasks != null) throw new IllegalStateException("Server already started: " + toString());
+		this.selectorThreads = Math.max(1, selectorThreads);
+		return this;
+	}
+
+	public synchronized void start(TaskManager taskManager) {
+		if (selectorTasks != null) throw new IllegalStateException("Server already started: " + toString());
+		selectorTasks = new SelectorTask[selectorThreads];
+		selectorTasks[0] = new SelectorTask(port, workerPool);
+		for (int i = 1; i < selectorTasks.length; i++) {
+			selectorTasks[i] = new SelectorTask(port, workerPool, false);
+		}
+		selectorTasks[0].setPeers(selectorTasks);
+
+		workerPool.start();
+		for (SelectorTask selectorTask : selectorTasks) {
+			taskManager.start(selectorTask);
+		}
+	}
+
+	public synchronized void stop() {
+		if (selectorTasks == null) return;
+		for (SelectorTask selectorTask : selectorTasks) {
+			selectorTask.abort();
+		}
+		workerPool.stop();
 	}
 
 	public int getPort() {
-		return selectorTask.getPort();
+		return port;
 	}
 
 	@Override
 	public String toString() {
-		return getClass().getSimpleName() + ":" + selectorTask.getPort();
+		return getClass().getSimpleName() + ":" + port;
 	}
 
 }
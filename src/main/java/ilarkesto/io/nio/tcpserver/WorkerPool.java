@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.tcpserver;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.logging.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the <code>DataHandler</code> on a pool of threads. Events of one connection are processed one after
+ * another in the order they were read, different connections are processed in parallel. Each connection has its
+ * own lock-free inbox which is drained by at most one worker at a time.
+ */
+public class WorkerPool {
+
+	private static final Log log = Log.get(WorkerPool.class);
+
+	/**
+	 * Events of one connection processed before the worker is handed to the next connection.
+	 */
+	private static final int MAX_EVENTS_PER_RUN = 64;
+
+	private DataHandler handler;
+	private int threads;
+	private ExecutorService executor;
+
+	public WorkerPool(DataHandler handler, int threads) {
+		this.handler = handler;
+		this.threads = threads;
+	}
+
+	public synchronized void start() {
+		if (executor != null) return;
+		executor = Executors.newFixedThreadPool(threads, new DeamonThreadFactory());
+	}
+
+	public synchronized void stop() {
+		if (executor == null) return;
+		executor.shutdown();
+		executor = null;
+	}
+
+	/**
+	 * Called by the selector thread. The buffer is returned to its pool after the handler processed it.
+	 */
+	void processData(TcpConnection connection, ByteBuffer data, BufferPool pool) {
+		dispatch(new ServerDataEvent(connection, data, pool));
+	}
+
+	void processConnectionClosed(TcpConnection connection) {
+		dispatch(new ServerDataEvent(connection, null));
+	}
+
+	private void dispatch(ServerDataEvent event) {
+		TcpConnection connection = event.getConnection();
+		connection.inbox.offer(event);
+		schedule(connection);
+	}
+
+	private void schedule(final TcpConnection connection) {
+		if (!connection.dispatching.compareAndSet(false, true)) return;
+		ExecutorService executor = this.executor;
+		if (executor == null) {
+			connection.dispatching.set(false);
+			log.warn("Worker pool not running. Ignoring data for connection:", connection);
+			return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				drain(connection);
+			}
+		});
+	}
+
+	private void drain(TcpConnection connection) {
+		connection.dispatchThread = Thread.currentThread();
+		try {
+			ServerDataEvent event;
+			int count = 0;
+			while (count < MAX_EVENTS_PER_RUN && (event = connection.inbox.poll()) != null) {
+				process(event);
+				count++;
+			}
+			connection.flush();
+		} finally {
+			connection.dispatchThread = null;
+			connection.dispatching.set(false);
+		}
+		// events which arrived after the last poll() could not schedule a run
+		if (!connection.inbox.isEmpty()) schedule(connection);
+	}
+
+	private void process(ServerDataEvent event) {
+		try {
+			if (event.isConnectionClosed()) {
+				handler.onConnectionClosed(event.getConnection());
+			} else {
+				handler.onDataReceived(event);
+			}
+		} catch (Throwable ex) {
+			log.error("Processing data failed:", event.getConnection(), ex);
+		} finally {
+			event.release();
+		}
+	}
+
+}
@@ -97,30 +97,91 @@ public class Json {
 
 	public static String escapeString(String s) {
 		if (s == null) return "";
-		s = s.replace("\\", "\\\\");
-		s = s.replace("\"", "\\\"");
-		s = s.replace("\t", "\\t");
-		s = s.replace("\r", "\\r");
-		s = s.replace("\n", "\\n");
-		s = s.replace("/", "\\/");
-		return s;
+		int len = s.length();
+		int idx = 0;
+		while (idx < len && !isEscapeRequired(s.charAt(idx))) {
+			idx++;
+		}
+		if (idx == len) return s;
+		StringBuilder sb = new StringBuilder(len + 16);
+		sb.append(s, 0, idx);
+		for (int i = idx; i < len; i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append('\\').append(ch);
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (ch < 0x20) {
+						sb.append("\\u00").append(Character.forDigit(ch >> 4, 16));
+						sb.append(Character.forDigit(ch & 0xf, 16));
+					} else {
+						sb.append(ch);
+					}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isEscapeRequired(char ch) {
+		return ch < 0x20 || ch == '"' || ch == '\\' || ch == '/';
 	}
 
 	public static String parseString(String s) {
-		int idx = s.indexOf("\\u");
-		while (idx >= 0) {
-			String code = s.substring(idx + 2, idx + 6);
-			char ch = (char) Integer.parseInt(code, 16);
-			s = s.replace("\\u" + code, String.valueOf(ch));
-			idx = s.indexOf("\\u", idx);
+		int idx = s.indexOf('\\');
+		if (idx < 0) return s;
+		int len = s.length();
+		StringBuilder sb = new StringBuilder(len);
+		sb.append(s, 0, idx);
+		for (int i = idx; i < len; i++) {
+			char ch = s.charAt(i);
+			if (ch != '\\' || i + 1 >= len) {
+				sb.append(ch);
+				continue;
+			}
+			char escaped = s.charAt(++i);
+			switch (escaped) {
+				case 'n':
+					sb.append('\n');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'u':
+					if (i + 4 >= len) throw new ParseException("Incomplete unicode escape in <" + s + ">");
+					sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+					i += 4;
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(escaped);
+					break;
+				default:
+					sb.append('\\').append(escaped);
+			}
 		}
-		s = s.replace("\\\\", "\\");
-		s = s.replace("\\\"", "\"");
-		s = s.replace("\\t", "\t");
-		s = s.replace("\\r", "\r");
-		s = s.replace("\\n", "\n");
-		s = s.replace("\\/", "/");
-		return s;
+		return sb.toString();
 	}
 
 	public static Number parseNumber(String s) throws NumberFormatException {
@@ -152,27 +213,6 @@ public class Json {
 		return value.toString();
 	}
 
-	static int getFirstNonWhitespaceIndex(String s, int offset) {
-		int len = s.length();
-		for (int i = offset; i < len; i++) {
-			if (!isWhitespace(s.charAt(i))) return i;
-		}
-		return -1;
-	}
-
-	static int getFirstQuoting(String s, int offset) {
-		int len = s.length();
-		for (int i = offset; i < len; i++) {
-			char ch = s.charAt(i);
-			if (ch == '\\') {
-				i++;
-				continue;
-			}
-			if (ch == '"') return i;
-		}
-		return -1;
-	}
-
 	public static interface JsonWrapper {
 
 		JsonObject getJson();
@@ -21,23 +21,22 @@ import ilarkesto.core.time.DateAndTime;
 import ilarkesto.core.time.Time;
 import ilarkesto.io.IO;
 import ilarkesto.json.JsonSaxParser.ContentHandler;
+import ilarkesto.json.JsonTypeCodec.FieldCodec;
 import ilarkesto.json.JsonSaxParser.ParseException;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
-import java.io.StringWriter;
-import java.lang.reflect.Field;
-import java.util.ArrayList;
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 
 public class JsonMapper {
 
@@ -45,7 +44,7 @@ public class JsonMapper {
 
 	public static <T> T deserialize(File file, Class<T> type, TypeResolver typeResolver) throws IOException,
 			ParseException {
-		BufferedReader in = new BufferedReader(new FileReader(file));
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), IO.UTF_8));
 		T ret = deserialize(in, type, typeResolver);
 		IO.close(in);
 		return ret;
@@ -75,69 +74,83 @@ public class JsonMapper {
 	}
 
 	public static void serialize(Object object, PrintWriter out, int indent) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		JsonWriter writer = new JsonWriter(buffer);
+		try {
+			serialize(object, writer, indent);
+		} finally {
+			writer.finish();
+		}
+		try {
+			out.print(buffer.toString(IO.UTF_8));
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Writes the object as UTF-8 encoded JSON to the stream. The stream is flushed, but not closed.
+	 */
+	public static void serialize(Object object, OutputStream out) {
+		JsonWriter writer = new JsonWriter(out);
+		try {
+			serialize(object, writer, 0);
+		} finally {
+			writer.finish();
+		}
+	}
+
+	public static void serialize(Object object, JsonWriter out, int indent) {
 		if (object == null || object instanceof String || object instanceof Number || object instanceof Boolean) {
-			Json.printValue(object, out, 0);
+			out.writeValue(object, 0);
 			return;
 		}
 
 		if (object instanceof Date || object instanceof Time || object instanceof DateAndTime) {
-			Json.printValue(object.toString(), out, 0);
+			out.writeString(object.toString());
 			return;
 		}
 
 		// TODO array handling
 
 		if (object instanceof Iterable) {
-			out.print("[ ");
+			out.writeAscii("[ ");
 			boolean first = true;
 			for (Object item : ((Iterable) object)) {
 				if (first) {
 					first = false;
 				} else {
-					out.print(", ");
+					out.writeAscii(", ");
 				}
 				serialize(item, out, indent);
 			}
-			out.print(" ]");
+			out.writeAscii(" ]");
 			return;
 		}
 
-		out.print('{');
+		out.writeRaw('{');
 		indent++;
 		boolean first = true;
-		for (Field field : Reflect.getSerializableFields(object)) {
+		for (FieldCodec field : JsonTypeCodec.get(object.getClass()).getSerializableFields()) {
 			if (first) {
 				first = false;
 			} else {
-				out.print(',');
+				out.writeRaw(',');
 			}
 			nlindent(out, indent);
-			out.print('\"');
-			out.print(Json.escapeString(field.getName()));
-			out.print("\": ");
-			Object fieldValue;
-			if (!field.isAccessible()) field.setAccessible(true);
-			try {
-				fieldValue = field.get(object);
-			} catch (Exception ex) {
-				throw new RuntimeException("Reading field value from " + field.getClass() + "." + field.getName()
-						+ " failed.", ex);
-			}
-			serialize(fieldValue, out, indent);
+			out.writeString(field.getName());
+			out.writeAscii(": ");
+			serialize(field.get(object), out, indent);
 		}
 		indent--;
 		nlindent(out, indent);
-		out.print('}');
-	}
-
-	private static void nlindent(PrintWriter out, int indent) {
-		out.print('\n');
-		indent(out, indent);
+		out.writeRaw('}');
 	}
 
-	private static void indent(PrintWriter out, int indent) {
+	private static void nlindent(JsonWriter out, int indent) {
+		out.writeRaw('\n');
 		for (int i = 0; i < indent; i++)
-			out.print(' ');
+			out.writeRaw(' ');
 	}
 
 	public static void serialize(Object object, File file) throws IOException {
@@ -149,9 +162,12 @@ public class JsonMapper {
 		file.getParentFile().mkdirs();
 
 		File tempFile = new File(file.getPath() + ".tmp");
-		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)));
-		serialize(object, out);
-		out.close();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+		try {
+			serialize(object, out);
+		} finally {
+			out.close();
+		}
 
 		try {
 			IO.delete(file);
@@ -162,11 +178,13 @@ public class JsonMapper {
 	}
 
 	public static String serialize(Object object) {
-		StringWriter stringWriter = new StringWriter();
-		PrintWriter out = new PrintWriter(stringWriter);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		serialize(object, out);
-		out.close();
-		return stringWriter.toString();
+		try {
+			return out.toString(IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
 	}
 
 	public static abstract class TypeResolver {
@@ -190,9 +208,9 @@ public class JsonMapper {
 
 	private static class ObjectMappingContentHandler<T> implements ContentHandler {
 
-		private Class<T> objectType;
+		private JsonTypeCodec codec;
 		private T object;
-		private String currentAttributeName;
+		private FieldCodec currentField;
 		private Collection currentArray;
 		private ObjectMappingContentHandler subHandler;
 		private ObjectMappingContentHandler parent;
@@ -200,7 +218,7 @@ public class JsonMapper {
 
 		public ObjectMappingContentHandler(Class<T> type, TypeResolver typeResolver) {
 			super();
-			this.objectType = type;
+			this.codec = JsonTypeCodec.get(type);
 			this.typeResolver = typeResolver;
 		}
 
@@ -209,40 +227,41 @@ public class JsonMapper {
 
 		@Override
 		public boolean onBeginObject() throws ParseException, IOException {
-			// log.info(objectType, "------->", "onBeginObject");
 			if (subHandler != null) {
 				subHandler.onBeginObject();
 				return true;
 			}
 			if (object == null) {
-				// log.debug("Instantiating:", objectType);
-				object = Reflect.newInstance(objectType);
+				object = (T) codec.newInstance();
 				return true;
 			}
-			Class resolvedType = currentArray == null ? Reflect.getDeclaredField(objectType, currentAttributeName)
-					.getType() : typeResolver.resolveArrayType(object, currentAttributeName);
+			Class resolvedType = currentArray == null ? currentField.getType() : resolveArrayType();
 			if (resolvedType == null)
-				throw new IllegalStateException("Type could not be resolved: " + objectType.getSimpleName() + "."
-						+ currentAttributeName);
+				throw new IllegalStateException("Type could not be resolved: " + codec + "." + currentField.getName());
 			subHandler = new ObjectMappingContentHandler(resolvedType, typeResolver);
 			subHandler.parent = this;
 			subHandler.onBeginObject();
 			return true;
 		}
 
+		private Class resolveArrayType() {
+			if (typeResolver == TypeResolver.NONE && currentField.getElementType() != null)
+				return currentField.getElementType();
+			Class type = typeResolver.resolveArrayType(object, currentField.getName());
+			return type != null ? type : currentField.getElementType();
+		}
+
 		@Override
 		public boolean onEndObject() throws ParseException, IOException {
-			// log.info(objectType, "------->", "onEndObject");
 			if (subHandler != null) {
 				subHandler.onEndObject();
 				return true;
 			}
 			if (parent != null) {
-				// log.info(objectType, "------->", "ending current object in parent");
 				if (parent.currentArray != null) {
 					parent.currentArray.add(getObject());
 				} else {
-					Reflect.setFieldValue(parent.object, parent.currentAttributeName, getObject());
+					parent.currentField.set(parent.object, getObject());
 				}
 				parent.subHandler = null;
 				return true;
@@ -252,50 +271,38 @@ public class JsonMapper {
 
 		@Override
 		public boolean onBeginAttribute(String attributeName) throws ParseException, IOException {
-			// log.info(objectType, "------->", "onBeginAttribute", attributeName);
 			if (subHandler != null) {
 				subHandler.onBeginAttribute(attributeName);
 				return true;
 			}
-			currentAttributeName = attributeName;
+			currentField = codec.getField(attributeName);
 			return true;
 		}
 
 		@Override
 		public boolean onEndAttribute() throws ParseException, IOException {
-			// log.info(objectType, "------->", "onEndAttribute");
 			if (subHandler != null) {
 				subHandler.onEndAttribute();
 				return true;
 			}
-			currentAttributeName = null;
+			currentField = null;
 			return true;
 		}
 
 		@Override
 		public boolean onBeginArray() throws ParseException, IOException {
-			// log.info(objectType, "------->", "onBeginArray");
 			if (subHandler != null) {
 				subHandler.onBeginArray();
 				return true;
 			}
 
-			Field field = Reflect.getDeclaredField(object.getClass(), currentAttributeName);
-			Class<?> fieldType = field.getType();
-			if (fieldType.isAssignableFrom(List.class)) {
-				currentArray = new ArrayList();
-			} else if (fieldType.isAssignableFrom(Set.class)) {
-				currentArray = new HashSet();
-			} else {
-				throw new IllegalStateException("Unsupported collection type: " + fieldType.getName());
-			}
-			Reflect.setFieldValue(object, currentAttributeName, currentArray);
+			currentArray = currentField.newCollection();
+			currentField.set(object, currentArray);
 			return true;
 		}
 
 		@Override
 		public boolean onEndArray() throws ParseException, IOException {
-			// log.info(objectType, "------->", "onEndArray");
 			if (subHandler != null) {
 				subHandler.onEndArray();
 				return true;
@@ -307,33 +314,17 @@ public class JsonMapper {
 
 		@Override
 		public boolean onPrimitiveValue(Object value) throws ParseException, IOException {
-			// log.info(objectType, "------->", "onPrimitiveValue", value);
 			if (subHandler != null) {
 				subHandler.onPrimitiveValue(value);
 				return true;
 			}
 
 			if (currentArray != null) {
-				currentArray.add(value);
+				currentArray.add(JsonTypeCodec.convert(value, currentField.getElementType()));
 				return true;
 			}
 
-			if (value instanceof String) {
-				String s = (String) value;
-				Field field = Reflect.getDeclaredField(object.getClass(), currentAttributeName);
-				if (field != null) {
-					Class<?> fieldType = field.getType();
-					if (fieldType.equals(Date.class)) {
-						value = new Date(s);
-					} else if (fieldType.equals(Time.class)) {
-						value = new Time(s);
-					} else if (fieldType.equals(DateAndTime.class)) {
-						value = new DateAndTime(s);
-					}
-				}
-			}
-
-			Reflect.setFieldValue(object, currentAttributeName, value);
+			currentField.set(object, value);
 			return true;
 		}
 
@@ -1,18 +1,20 @@
 package ilarkesto.json;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import ilarkesto.io.IO;
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
@@ -39,18 +41,13 @@ public class JsonObject {
 	}
 
 	private final Map<String, Object> elements = new LinkedHashMap<String, Object>();
-	private int idx = -1;
 	private JsonObject parent;
 	private File file;
 
 	public JsonObject() {}
 
-	private JsonObject(String json, int offset) {
-		parse(json, offset);
-	}
-
 	public JsonObject(String json) {
-		this(json, 0);
+		new JsonParser(json).parseObject(this);
 	}
 
 	public JsonObject(Map<?, ?> map) {
@@ -62,7 +59,7 @@ public class JsonObject {
 
 	public static JsonObject parse(String json) {
 		if (json == null || json.length() == 0) return new JsonObject();
-		return new JsonObject(json, 0);
+		return new JsonParser(json).parseObject();
 	}
 
 	public File getFile() {
@@ -80,7 +77,7 @@ public class JsonObject {
 		}
 		JsonObject object;
 		try {
-			object = parse(load(file));
+			object = load(file);
 		} catch (ParseException ex) {
 			if (!createEmptyIfNoFile) throw ex;
 			object = new JsonObject();
@@ -97,11 +94,11 @@ public class JsonObject {
 			if (createemptyIfNoResource) return new JsonObject();
 			return null;
 		}
-		return parse(load(is));
+		return load(is);
 	}
 
 	public static JsonObject loadFromStream(InputStream is) {
-		return parse(load(is));
+		return load(is);
 	}
 
 	public void assignFile(File file) {
@@ -134,6 +131,10 @@ public class JsonObject {
 		return elements.keySet();
 	}
 
+	Map<String, Object> getElements() {
+		return elements;
+	}
+
 	public Object get(String name) {
 		return elements.get(name);
 	}
@@ -321,6 +322,17 @@ public class JsonObject {
 		return put(name, new JsonObject());
 	}
 
+	/**
+	 * Puts a value created by <code>JsonParser</code>, which is already adopted.
+	 */
+	void putParsed(String name, Object value) {
+		elements.put(name, value);
+	}
+
+	void adoptParsed(JsonObject child) {
+		child.parent = this;
+	}
+
 	private Object adopt(Object childToAdopt) {
 		Object child = Json.convertValue(childToAdopt);
 		if (child instanceof JsonObject) {
@@ -383,122 +395,24 @@ public class JsonObject {
 		return toString(-1);
 	}
 
-	// --- parsing ---
+	// --- IO ---
 
-	private int parse(String json, int offset) {
-		if (json.length() < 2) throw new ParseException("Empty string is invalid", json, 0);
-		idx = offset;
-		parseWhitespace(json, "'{'");
-		if (json.charAt(idx) != '{') throw new ParseException("Expecting '{'", json, idx);
-		idx++;
-		parseWhitespace(json, "elements or '}'");
-		boolean first = true;
-		while (json.charAt(idx) != '}') {
-			if (first) {
-				first = false;
-			} else {
-				if (json.charAt(idx) == ',') {
-					idx++;
-				} else {
-					throw new ParseException("Expecting ','", json, idx);
-				}
-			}
-			parseElement(json);
-			parseWhitespace(json, "',' or '}'");
-		}
-		idx++;
-		return idx;
-	}
-
-	private void parseWhitespace(String json, String expectation) {
-		idx = Json.getFirstNonWhitespaceIndex(json, idx);
-		if (idx < 0) throw new ParseException("Expecting " + expectation, json, idx);
-	}
-
-	private void parseElement(String json) {
-		parseWhitespace(json, "\"");
-		if (json.charAt(idx) != '"') throw new ParseException("Expecting '\"'", json, idx);
-		idx++;
-		int nameEndIdx = Json.getFirstQuoting(json, idx);
-		if (nameEndIdx < 0) throw new ParseException("Unclosed element name", json, idx);
-		String name = json.substring(idx, nameEndIdx);
-		idx = nameEndIdx + 1;
-		parseWhitespace(json, "':'");
-		if (json.charAt(idx) != ':')
-			throw new ParseException("Expecting ':' after element name \"" + name + "\"", json, idx);
-		idx++;
-		parseWhitespace(json, "element value");
-		Object value = parseValue(json);
-		put(name, value);
-	}
-
-	private Object parseValue(String json) {
-		if (json.startsWith("null", idx)) {
-			idx += 4;
-			return null;
-		} else if (json.startsWith("true", idx)) {
-			idx += 4;
-			return true;
-		} else if (json.startsWith("false", idx)) {
-			idx += 5;
-			return false;
-		} else if (json.charAt(idx) == '"') {
-			idx++;
-			int valueEndIdx = Json.getFirstQuoting(json, idx);
-			if (valueEndIdx < 0) throw new ParseException("Unclosed element string value", json, idx);
-			String value = json.substring(idx, valueEndIdx);
-			idx = valueEndIdx + 1;
-			return Json.parseString(value);
-		} else if (json.charAt(idx) == '{') {
-			JsonObject value = new JsonObject(json, idx);
-			idx = value.idx;
-			return value;
-		} else if (json.charAt(idx) == '[') {
-			List list = new ArrayList();
-			idx++;
-			while (true) {
-				parseWhitespace(json, "array");
-				if (json.charAt(idx) == ']') break;
-				Object value = parseValue(json);
-				list.add(value);
-				parseWhitespace(json, "array");
-				if (json.charAt(idx) == ']') break;
-				if (json.charAt(idx) != ',') throw new ParseException("Expecting array separator ','", json, idx);
-				idx++;
-			}
-			idx++;
-			return list;
-		} else {
-			int len = json.length();
-			int endIdx = idx;
-			while (endIdx < len) {
-				endIdx++;
-				char endCh = json.charAt(endIdx);
-				if (endCh == ',' || endCh == '}' || endCh == ']' || Json.isWhitespace(endCh)) {
-					break;
-				}
-			}
-			String sNumber = json.substring(idx, endIdx);
-			Number number;
-			try {
-				number = Json.parseNumber(sNumber);
-			} catch (NumberFormatException ex) {
-				throw new ParseException("Expecting number in <" + sNumber + ">", json, idx);
-			}
-			idx = endIdx;
-			return number;
-		}
+	/**
+	 * Writes UTF-8 encoded JSON to the stream. The stream is flushed, but not closed.
+	 */
+	public void write(OutputStream out, boolean formated) {
+		write(new JsonWriter(out), formated);
 	}
 
-	// --- IO ---
+	public void write(WritableByteChannel out, boolean formated) {
+		write(new JsonWriter(out), formated);
+	}
 
-	public void write(OutputStream out, boolean formated) {
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-		write(writer, formated);
+	private void write(JsonWriter out, boolean formated) {
 		try {
-			writer.flush();
-		} catch (IOException ex) {
-			throw new RuntimeException("Writing failed", ex);
+			out.writeObject(this, formated ? 0 : -1);
+		} finally {
+			out.finish();
 		}
 	}
 
@@ -511,14 +425,16 @@ public class JsonObject {
 		if (!dir.exists()) {
 			if (!dir.mkdirs()) throw new RuntimeException("Creating directory failed: " + dir.getAbsolutePath());
 		}
-		PrintWriter out;
+		OutputStream out = null;
 		try {
-			out = new PrintWriter(new FileWriter(file));
+			out = new FileOutputStream(file);
+			write(out, formated);
+			out.close();
 		} catch (IOException ex) {
 			throw new RuntimeException("Writing file failed: " + file.getAbsolutePath(), ex);
+		} finally {
+			IO.closeQuiet(out);
 		}
-		write(out, formated);
-		out.close();
 	}
 
 	public void write(PrintWriter out, boolean formated) {
@@ -527,31 +443,30 @@ public class JsonObject {
 		out.flush();
 	}
 
-	private static String load(File file) {
-		if (!file.exists()) return null;
+	private static JsonObject load(File file) {
 		try {
 			return load(new FileInputStream(file));
-		} catch (Exception ex) {
-			throw new RuntimeException("Loading file failed: +" + file.getAbsolutePath(), ex);
+		} catch (IOException ex) {
+			throw new RuntimeException("Loading file failed: " + file.getAbsolutePath(), ex);
 		}
 	}
 
-	private static String load(InputStream is) {
-		BufferedReader in = null;
+	private static JsonObject load(InputStream is) {
+		Reader in;
 		try {
-			in = new BufferedReader(new InputStreamReader(is));
-			StringBuilder sb = new StringBuilder();
-			String line = null;
-			while ((line = in.readLine()) != null) {
-				sb.append(line).append('\n');
-			}
-			return sb.toString();
-		} catch (Exception ex) {
-			throw new RuntimeException("Loading JSON failed", ex);
+			in = new InputStreamReader(is, IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			JsonParser parser = new JsonParser(in).setInternKeys(true);
+			// empty files are empty objects
+			if (parser.isEndOfInput()) return new JsonObject();
+			return parser.parseObject();
 		} finally {
-			if (in != null) try {
+			try {
 				in.close();
-			} catch (Exception e) {}
+			} catch (IOException ex) {}
 		}
 	}
 
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass parser which builds a <code>JsonObject</code> directly from a <code>Reader</code> or a
+ * <code>String</code>. Escapes are decoded while reading, no intermediate substrings are created.
+ */
+public class JsonParser {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_INTERNED_KEY_LENGTH = 64;
+
+	private Reader in;
+	private char[] buffer;
+	private int pos;
+	private int limit;
+	private long bufferOffset;
+
+	private StringBuilder sb = new StringBuilder();
+	private Map<String, String> keys;
+
+	public JsonParser(Reader in) {
+		this.in = in;
+		this.buffer = new char[BUFFER_SIZE];
+	}
+
+	public JsonParser(String json) {
+		this.buffer = json.toCharArray();
+		this.limit = buffer.length;
+	}
+
+	/**
+	 * Let the parser share one <code>String</code> instance for equal element names. Saves memory on large
+	 * documents with many objects of the same structure.
+	 */
+	public JsonParser setInternKeys(boolean internKeys) {
+		keys = internKeys ? new HashMap<String, String>() : null;
+		return this;
+	}
+
+	/**
+	 * Tests if the remaining input contains nothing but whitespace.
+	 */
+	public boolean isEndOfInput() {
+		while (true) {
+			if (pos >= limit && !fill()) return true;
+			if (!Json.isWhitespace(buffer[pos])) return false;
+			pos++;
+		}
+	}
+
+	public JsonObject parseObject() {
+		JsonObject json = new JsonObject();
+		parseObject(json);
+		return json;
+	}
+
+	void parseObject(JsonObject json) {
+		skipWhitespace("'{'");
+		if (next() != '{') throw error("Expecting '{'", 1);
+		skipWhitespace("elements or '}'");
+		if (peek() == '}') {
+			pos++;
+			return;
+		}
+		while (true) {
+			skipWhitespace("'\"'");
+			if (next() != '"') throw error("Expecting '\"'", 1);
+			String name = parseKey();
+			if (name.length() == 0) throw error("Empty element name", 1);
+			skipWhitespace("':'");
+			if (next() != ':') throw error("Expecting ':' after element name \"" + name + "\"", 1);
+			skipWhitespace("element value");
+			json.putParsed(name, parseValue(json));
+			skipWhitespace("',' or '}'");
+			char ch = next();
+			if (ch == '}') return;
+			if (ch != ',') throw error("Expecting ','", 1);
+		}
+	}
+
+	private Object parseValue(JsonObject owner) {
+		char ch = peek();
+		switch (ch) {
+			case '"':
+				pos++;
+				return parseString();
+			case '{':
+				JsonObject child = new JsonObject();
+				owner.adoptParsed(child);
+				parseObject(child);
+				return child;
+			case '[':
+				pos++;
+				return parseArray(owner);
+			case 'n':
+				expectLiteral("null");
+				return null;
+			case 't':
+				expectLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				expectLiteral("false");
+				return Boolean.FALSE;
+			default:
+				return parseNumber();
+		}
+	}
+
+	private List parseArray(JsonObject owner) {
+		List list = new ArrayList();
+		skipWhitespace("array");
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			skipWhitespace("array");
+			list.add(parseValue(owner));
+			skipWhitespace("array");
+			char ch = next();
+			if (ch == ']') return list;
+			if (ch != ',') throw error("Expecting array separator ','", 1);
+		}
+	}
+
+	private String parseKey() {
+		if (keys == null) return parseString();
+		String key = parseString();
+		if (key.length() > MAX_INTERNED_KEY_LENGTH) return key;
+		String existing = keys.get(key);
+		if (existing != null) return existing;
+		keys.put(key, key);
+		return key;
+	}
+
+	private String parseString() {
+		// fast path: string without escapes inside the current buffer
+		for (int i = pos; i < limit; i++) {
+			char ch = buffer[i];
+			if (ch == '"') {
+				String s = new String(buffer, pos, i - pos);
+				pos = i + 1;
+				return s;
+			}
+			if (ch == '\\') break;
+		}
+
+		sb.setLength(0);
+		while (true) {
+			if (pos >= limit && !fill()) throw error("Unclosed string value", 0);
+			char ch = buffer[pos++];
+			if (ch == '"') return sb.toString();
+			if (ch != '\\') {
+				sb.append(ch);
+				continue;
+			}
+			if (pos >= limit && !fill()) throw error("Unclosed string value", 0);
+			char escaped = buffer[pos++];
+			switch (escaped) {
+				case 'n':
+					sb.append('\n');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'u':
+					sb.append(parseUnicodeEscape());
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(escaped);
+					break;
+				default:
+					sb.append('\\').append(escaped);
+			}
+		}
+	}
+
+	private char parseUnicodeEscape() {
+		int code = 0;
+		for (int i = 0; i < 4; i++) {
+			if (pos >= limit && !fill()) throw error("Unclosed unicode escape", 0);
+			int digit = Character.digit(buffer[pos++], 16);
+			if (digit < 0) throw error("Invalid unicode escape", 1);
+			code = (code << 4) | digit;
+		}
+		return (char) code;
+	}
+
+	private Number parseNumber() {
+		sb.setLength(0);
+		boolean floatingPoint = false;
+		while (pos < limit || fill()) {
+			char ch = buffer[pos];
+			if (ch == ',' || ch == '}' || ch == ']' || Json.isWhitespace(ch)) break;
+			if (ch == '.' || ch == 'e' || ch == 'E') floatingPoint = true;
+			sb.append(ch);
+			pos++;
+		}
+		if (sb.length() == 0) throw error("Expecting element value", 0);
+		String s = sb.toString();
+		try {
+			if (floatingPoint) return Double.parseDouble(s);
+			return Long.parseLong(s);
+		} catch (NumberFormatException ex) {
+			throw error("Expecting number in <" + s + ">", s.length());
+		}
+	}
+
+	private void expectLiteral(String literal) {
+		int len = literal.length();
+		for (int i = 0; i < len; i++) {
+			if (pos >= limit && !fill()) throw error("Expecting " + literal, 0);
+			if (buffer[pos++] != literal.charAt(i)) throw error("Expecting " + literal, 1);
+		}
+	}
+
+	private void skipWhitespace(String expectation) {
+		while (true) {
+			if (pos >= limit && !fill()) throw error("Expecting " + expectation, 0);
+			if (!Json.isWhitespace(buffer[pos])) return;
+			pos++;
+		}
+	}
+
+	private char peek() {
+		if (pos >= limit && !fill()) throw error("Unexpected end of input", 0);
+		return buffer[pos];
+	}
+
+	private char next() {
+		char ch = peek();
+		pos++;
+		return ch;
+	}
+
+	private boolean fill() {
+		if (in == null) return false;
+		bufferOffset += limit;
+		pos = 0;
+		limit = 0;
+		try {
+			int read;
+			do {
+				read = in.read(buffer);
+			} while (read == 0);
+			if (read < 0) return false;
+			limit = read;
+			return true;
+		} catch (IOException ex) {
+			throw new RuntimeException("Reading JSON failed", ex);
+		}
+	}
+
+	private ParseException error(String message, int charsBack) {
+		return new ParseException(message + " at " + (bufferOffset + pos - charsBack));
+	}
+
+}
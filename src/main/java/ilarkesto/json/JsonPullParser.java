@@ -0,0 +1,509 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pull parser for UTF-8 encoded JSON. Input can be fed incrementally in chunks of any size, for example from a
+ * non-blocking channel. <code>nextToken()</code> returns <code>NEED_MORE_INPUT</code> when the next token is not
+ * complete yet and continues where it stopped after more input was fed. Numbers are available as primitives,
+ * without boxing.
+ * <p>
+ * The value of the current token is valid until the next call of <code>nextToken()</code> or <code>feed()</code>.
+ * Several top level values may follow each other in the input.
+ */
+public class JsonPullParser {
+
+	public static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL,
+		NEED_MORE_INPUT, END
+	}
+
+	private static final byte IN_OBJECT = 1;
+	private static final byte IN_ARRAY = 2;
+
+	private static final int EXPECT_VALUE = 0;
+	private static final int EXPECT_VALUE_OR_END = 1;
+	private static final int EXPECT_NAME = 2;
+	private static final int EXPECT_NAME_OR_END = 3;
+	private static final int EXPECT_COLON = 4;
+	private static final int EXPECT_COMMA_OR_END = 5;
+
+	private byte[] data = new byte[1024];
+	private int pos;
+	private int limit;
+	private long consumed;
+	private boolean endOfInput;
+
+	private byte[] stack = new byte[32];
+	private int depth;
+	private int expect = EXPECT_VALUE;
+
+	private Token token;
+	private int valueStart;
+	private int valueEnd;
+	private boolean valueEscaped;
+	private boolean valueIntegral;
+	private long longValue;
+
+	// resume state of an incomplete string
+	private int stringScanOffset = -1;
+
+	// target depth of an unfinished skipValue()
+	private int skipDepth = -1;
+
+	private char[] chars = new char[64];
+
+	// --- input ---
+
+	public JsonPullParser feed(byte[] bytes, int offset, int length) {
+		if (endOfInput) throw new IllegalStateException("End of input already signaled");
+		ensureSpace(length);
+		System.arraycopy(bytes, offset, data, limit, length);
+		limit += length;
+		return this;
+	}
+
+	public JsonPullParser feed(byte[] bytes) {
+		return feed(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Consumes all remaining bytes of the buffer.
+	 */
+	public JsonPullParser feed(ByteBuffer buffer) {
+		if (endOfInput) throw new IllegalStateException("End of input already signaled");
+		int length = buffer.remaining();
+		ensureSpace(length);
+		buffer.get(data, limit, length);
+		limit += length;
+		return this;
+	}
+
+	/**
+	 * Signals that no more input will be fed. Incomplete tokens are errors from now on.
+	 */
+	public JsonPullParser endOfInput() {
+		endOfInput = true;
+		return this;
+	}
+
+	private void ensureSpace(int length) {
+		token = null;
+		if (limit + length <= data.length) return;
+		int remaining = limit - pos;
+		byte[] target = remaining + length <= data.length ? data : new byte[Math.max(data.length * 2,
+			remaining + length)];
+		System.arraycopy(data, pos, target, 0, remaining);
+		data = target;
+		consumed += pos;
+		limit = remaining;
+		pos = 0;
+	}
+
+	// --- tokens ---
+
+	public Token nextToken() {
+		token = scanToken();
+		return token;
+	}
+
+	public Token getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns the current depth of nested objects and arrays.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	private Token scanToken() {
+		while (true) {
+			while (pos < limit && Json.isWhitespace((char) data[pos])) {
+				pos++;
+			}
+			if (pos >= limit) {
+				if (!endOfInput) return Token.NEED_MORE_INPUT;
+				if (depth == 0 && expect == EXPECT_VALUE) return Token.END;
+				throw error("Unexpected end of input");
+			}
+			int tokenStart = pos;
+			byte b = data[pos];
+			switch (expect) {
+				case EXPECT_COMMA_OR_END:
+					pos++;
+					if (b == ',') {
+						expect = stack[depth - 1] == IN_OBJECT ? EXPECT_NAME : EXPECT_VALUE;
+						continue;
+					}
+					if (b == '}' && stack[depth - 1] == IN_OBJECT) return endStructure(Token.END_OBJECT);
+					if (b == ']' && stack[depth - 1] == IN_ARRAY) return endStructure(Token.END_ARRAY);
+					pos--;
+					throw error(stack[depth - 1] == IN_OBJECT ? "Expecting ',' or '}'" : "Expecting ',' or ']'");
+				case EXPECT_COLON:
+					if (b != ':') throw error("Expecting ':'");
+					pos++;
+					expect = EXPECT_VALUE;
+					continue;
+				case EXPECT_NAME_OR_END:
+					if (b == '}') {
+						pos++;
+						return endStructure(Token.END_OBJECT);
+					}
+					// continue with name
+				case EXPECT_NAME:
+					if (b != '"') throw error("Expecting '\"'");
+					if (!scanString(tokenStart)) return Token.NEED_MORE_INPUT;
+					expect = EXPECT_COLON;
+					return Token.NAME;
+				case EXPECT_VALUE_OR_END:
+					if (b == ']') {
+						pos++;
+						return endStructure(Token.END_ARRAY);
+					}
+					// continue with value
+				default:
+					return scanValue(tokenStart, b);
+			}
+		}
+	}
+
+	private Token scanValue(int tokenStart, byte b) {
+		switch (b) {
+			case '{':
+				pos++;
+				push(IN_OBJECT);
+				expect = EXPECT_NAME_OR_END;
+				return Token.BEGIN_OBJECT;
+			case '[':
+				pos++;
+				push(IN_ARRAY);
+				expect = EXPECT_VALUE_OR_END;
+				return Token.BEGIN_ARRAY;
+			case '"':
+				if (!scanString(tokenStart)) return Token.NEED_MORE_INPUT;
+				return valueScanned(Token.STRING);
+			case 't':
+				if (!scanLiteral(tokenStart, "true")) return Token.NEED_MORE_INPUT;
+				return valueScanned(Token.TRUE);
+			case 'f':
+				if (!scanLiteral(tokenStart, "false")) return Token.NEED_MORE_INPUT;
+				return valueScanned(Token.FALSE);
+			case 'n':
+				if (!scanLiteral(tokenStart, "null")) return Token.NEED_MORE_INPUT;
+				return valueScanned(Token.NULL);
+			default:
+				if (b != '-' && (b < '0' || b > '9')) throw error("Expecting value");
+				if (!scanNumber(tokenStart)) return Token.NEED_MORE_INPUT;
+				return valueScanned(Token.NUMBER);
+		}
+	}
+
+	private Token valueScanned(Token token) {
+		expect = depth == 0 ? EXPECT_VALUE : EXPECT_COMMA_OR_END;
+		return token;
+	}
+
+	private Token endStructure(Token token) {
+		depth--;
+		return valueScanned(token);
+	}
+
+	private void push(byte context) {
+		if (depth == stack.length) {
+			byte[] newStack = new byte[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, depth);
+			stack = newStack;
+		}
+		stack[depth++] = context;
+	}
+
+	private boolean scanString(int tokenStart) {
+		boolean escaped = false;
+		int i = tokenStart + 1;
+		if (stringScanOffset > 0) {
+			i = tokenStart + stringScanOffset;
+			escaped = valueEscaped;
+		}
+		while (i < limit) {
+			byte b = data[i];
+			if (b == '\\') {
+				escaped = true;
+				i += 2;
+				continue;
+			}
+			if (b == '"') {
+				valueStart = tokenStart + 1;
+				valueEnd = i;
+				valueEscaped = escaped;
+				pos = i + 1;
+				stringScanOffset = -1;
+				return true;
+			}
+			i++;
+		}
+		if (endOfInput) throw error("Unclosed string");
+		// remember where to continue, at the backslash if the input ended inside an escape sequence
+		stringScanOffset = (i > limit ? i - 2 : i) - tokenStart;
+		valueEscaped = escaped;
+		pos = tokenStart;
+		return false;
+	}
+
+	private boolean scanLiteral(int tokenStart, String literal) {
+		int len = literal.length();
+		for (int i = 0; i < len; i++) {
+			if (tokenStart + i >= limit) {
+				if (endOfInput) throw error("Expecting " + literal);
+				pos = tokenStart;
+				return false;
+			}
+			if (data[tokenStart + i] != literal.charAt(i)) {
+				pos = tokenStart + i;
+				throw error("Expecting " + literal);
+			}
+		}
+		pos = tokenStart + len;
+		return true;
+	}
+
+	private boolean scanNumber(int tokenStart) {
+		int i = tokenStart;
+		boolean negative = data[i] == '-';
+		if (negative) i++;
+		boolean integral = true;
+		long value = 0;
+		while (i < limit) {
+			byte b = data[i];
+			if (b >= '0' && b <= '9') {
+				if (integral) {
+					long next = value * 10 - (b - '0');
+					if (value < Long.MIN_VALUE / 10 || next > value) {
+						integral = false;
+					} else {
+						value = next;
+					}
+				}
+			} else if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+				integral = false;
+			} else {
+				break;
+			}
+			i++;
+		}
+		if (i >= limit && !endOfInput) {
+			pos = tokenStart;
+			return false;
+		}
+		if (!isValidNumber(tokenStart, i)) {
+			pos = tokenStart;
+			throw error("Invalid number");
+		}
+		valueStart = tokenStart;
+		valueEnd = i;
+		valueIntegral = integral && (negative || value != Long.MIN_VALUE);
+		longValue = negative ? value : -value;
+		pos = i;
+		return true;
+	}
+
+	/**
+	 * Checks the number grammar: <code>-? (0 | [1-9][0-9]*) (.[0-9]+)? ([eE][+-]?[0-9]+)?</code>
+	 */
+	private boolean isValidNumber(int start, int end) {
+		int i = start;
+		if (data[i] == '-') i++;
+		if (i < end && data[i] == '0') {
+			i++;
+		} else {
+			int digitsEnd = skipDigits(i, end);
+			if (digitsEnd == i) return false;
+			i = digitsEnd;
+		}
+		if (i < end && data[i] == '.') {
+			int digitsEnd = skipDigits(++i, end);
+			if (digitsEnd == i) return false;
+			i = digitsEnd;
+		}
+		if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+			i++;
+			if (i < end && (data[i] == '+' || data[i] == '-')) i++;
+			int digitsEnd = skipDigits(i, end);
+			if (digitsEnd == i) return false;
+			i = digitsEnd;
+		}
+		return i == end;
+	}
+
+	private int skipDigits(int i, int end) {
+		while (i < end && data[i] >= '0' && data[i] <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	// --- values ---
+
+	/**
+	 * Returns the decoded name or string value, or the text of a number or literal.
+	 */
+	public String getString() {
+		if (token == null) throw new IllegalStateException("No current token");
+		switch (token) {
+			case NAME:
+			case STRING:
+				return decodeString();
+			case NUMBER:
+				return getAscii();
+			case TRUE:
+				return "true";
+			case FALSE:
+				return "false";
+			case NULL:
+				return null;
+			default:
+				throw new IllegalStateException("No value for token " + token);
+		}
+	}
+
+	public long getLong() {
+		checkNumber();
+		if (valueIntegral) return longValue;
+		return (long) Double.parseDouble(getAscii());
+	}
+
+	public int getInt() {
+		return (int) getLong();
+	}
+
+	public double getDouble() {
+		checkNumber();
+		if (valueIntegral) return longValue;
+		return Double.parseDouble(getAscii());
+	}
+
+	/**
+	 * Checks if the current number is integral and fits into a <code>long</code>.
+	 */
+	public boolean isIntegral() {
+		checkNumber();
+		return valueIntegral;
+	}
+
+	public boolean getBoolean() {
+		if (token == Token.TRUE) return true;
+		if (token == Token.FALSE) return false;
+		throw new IllegalStateException("Current token is not a boolean: " + token);
+	}
+
+	/**
+	 * Skips the current value. If the current token begins an object or array, all its content is skipped. Returns
+	 * <code>false</code> if more input is required; call it again after feeding.
+	 */
+	public boolean skipValue() {
+		if (skipDepth < 0) {
+			if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) return true;
+			skipDepth = depth - 1;
+		}
+		while (depth > skipDepth) {
+			if (nextToken() == Token.NEED_MORE_INPUT) return false;
+		}
+		skipDepth = -1;
+		return true;
+	}
+
+	private void checkNumber() {
+		if (token != Token.NUMBER) throw new IllegalStateException("Current token is not a number: " + token);
+	}
+
+	private String getAscii() {
+		int len = valueEnd - valueStart;
+		char[] buffer = getChars(len);
+		for (int i = 0; i < len; i++) {
+			buffer[i] = (char) data[valueStart + i];
+		}
+		return new String(buffer, 0, len);
+	}
+
+	private String decodeString() {
+		char[] buffer = getChars(valueEnd - valueStart);
+		int count = 0;
+		int i = valueStart;
+		while (i < valueEnd) {
+			int b = data[i++];
+			if (b >= 0) {
+				if (b == '\\' && valueEscaped) {
+					byte escaped = data[i++];
+					switch (escaped) {
+						case 'n':
+							buffer[count++] = '\n';
+							break;
+						case 't':
+							buffer[count++] = '\t';
+							break;
+						case 'r':
+							buffer[count++] = '\r';
+							break;
+						case 'b':
+							buffer[count++] = '\b';
+							break;
+						case 'f':
+							buffer[count++] = '\f';
+							break;
+						case 'u':
+							int code = 0;
+							for (int j = 0; j < 4; j++) {
+								int digit = i < valueEnd ? Character.digit((char) data[i++], 16) : -1;
+								if (digit < 0) throw new ParseException("Invalid unicode escape");
+								code = (code << 4) | digit;
+							}
+							buffer[count++] = (char) code;
+							break;
+						default:
+							buffer[count++] = (char) escaped;
+					}
+				} else {
+					buffer[count++] = (char) b;
+				}
+			} else if ((b & 0xe0) == 0xc0 && i < valueEnd) {
+				buffer[count++] = (char) (((b & 0x1f) << 6) | (data[i++] & 0x3f));
+			} else if ((b & 0xf0) == 0xe0 && i + 1 < valueEnd) {
+				buffer[count++] = (char) (((b & 0x0f) << 12) | ((data[i++] & 0x3f) << 6) | (data[i++] & 0x3f));
+			} else if ((b & 0xf8) == 0xf0 && i + 2 < valueEnd) {
+				int codePoint = ((b & 0x07) << 18) | ((data[i++] & 0x3f) << 12) | ((data[i++] & 0x3f) << 6)
+						| (data[i++] & 0x3f);
+				codePoint -= 0x10000;
+				buffer[count++] = (char) (0xd800 + (codePoint >> 10));
+				buffer[count++] = (char) (0xdc00 + (codePoint & 0x3ff));
+			} else {
+				buffer[count++] = '\ufffd';
+			}
+		}
+		return new String(buffer, 0, count);
+	}
+
+	private char[] getChars(int length) {
+		if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+		return chars;
+	}
+
+	private ParseException error(String message) {
+		return new ParseException(message + " at " + (consumed + pos));
+	}
+
+}
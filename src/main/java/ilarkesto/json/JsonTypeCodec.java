@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import ilarkesto.core.time.Date;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.core.time.Time;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Field table of a class for <code>JsonMapper</code>. Built once per class, so that mapping doesn't need to look up
+ * fields reflectively per object or value.
+ */
+class JsonTypeCodec {
+
+	private static final Map<Class, JsonTypeCodec> codecs = new ConcurrentHashMap<Class, JsonTypeCodec>();
+
+	private Class type;
+	private Constructor constructor;
+	private List<FieldCodec> serializableFields = new ArrayList<FieldCodec>();
+	private Map<String, FieldCodec> fieldsByName = new HashMap<String, FieldCodec>();
+
+	public static JsonTypeCodec get(Class type) {
+		JsonTypeCodec codec = codecs.get(type);
+		if (codec == null) {
+			codec = new JsonTypeCodec(type);
+			codecs.put(type, codec);
+		}
+		return codec;
+	}
+
+	private JsonTypeCodec(Class type) {
+		this.type = type;
+		Class c = type;
+		while (c != null && c != Object.class) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)) continue;
+				FieldCodec fieldCodec = new FieldCodec(field);
+				// fields of subclasses hide fields of superclasses
+				if (!fieldsByName.containsKey(field.getName())) fieldsByName.put(field.getName(), fieldCodec);
+				if (!Modifier.isTransient(modifiers)) serializableFields.add(fieldCodec);
+			}
+			c = c.getSuperclass();
+		}
+		serializableFields = Collections.unmodifiableList(serializableFields);
+	}
+
+	public Object newInstance() {
+		if (constructor == null) {
+			try {
+				Constructor c = type.getDeclaredConstructor();
+				c.setAccessible(true);
+				constructor = c;
+			} catch (NoSuchMethodException ex) {
+				throw new RuntimeException("Default constructor missing: " + type.getName(), ex);
+			}
+		}
+		try {
+			return constructor.newInstance();
+		} catch (Exception ex) {
+			throw new RuntimeException("Instantiating " + type.getName() + " failed", ex);
+		}
+	}
+
+	public List<FieldCodec> getSerializableFields() {
+		return serializableFields;
+	}
+
+	public FieldCodec getField(String name) {
+		FieldCodec field = fieldsByName.get(name);
+		if (field == null) throw new RuntimeException("Field does not exist: " + type.getName() + "." + name);
+		return field;
+	}
+
+	@Override
+	public String toString() {
+		return "JsonTypeCodec(" + type.getName() + ")";
+	}
+
+	static Object convert(Object value, Class type) {
+		if (value == null || type == null) return value;
+		if (value instanceof String) {
+			if (type == Date.class) return new Date((String) value);
+			if (type == Time.class) return new Time((String) value);
+			if (type == DateAndTime.class) return new DateAndTime((String) value);
+			return value;
+		}
+		if (value instanceof Long) {
+			if (type == int.class || type == Integer.class) return ((Long) value).intValue();
+		}
+		return value;
+	}
+
+	static class FieldCodec {
+
+		private Field field;
+		private Class type;
+		private Class elementType;
+
+		private FieldCodec(Field field) {
+			this.field = field;
+			this.type = field.getType();
+			field.setAccessible(true);
+
+			Type genericType = field.getGenericType();
+			if (genericType instanceof ParameterizedType && Collection.class.isAssignableFrom(type)) {
+				Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+				if (arguments.length == 1 && arguments[0] instanceof Class) elementType = (Class) arguments[0];
+			}
+		}
+
+		public String getName() {
+			return field.getName();
+		}
+
+		public Class getType() {
+			return type;
+		}
+
+		/**
+		 * Element type of a collection field from its generic declaration or <code>null</code>.
+		 */
+		public Class getElementType() {
+			return elementType;
+		}
+
+		public Object get(Object object) {
+			try {
+				return field.get(object);
+			} catch (Exception ex) {
+				throw new RuntimeException("Reading field value from " + field.getDeclaringClass().getName() + "."
+						+ field.getName() + " failed.", ex);
+			}
+		}
+
+		/**
+		 * Sets a parsed JSON value. Strings are converted to dates and times, longs to ints, like the field type
+		 * requires.
+		 */
+		public void set(Object object, Object value) {
+			try {
+				field.set(object, convert(value, type));
+			} catch (Exception ex) {
+				throw new RuntimeException("Setting field value " + field.getDeclaringClass().getName() + "."
+						+ field.getName() + " failed.", ex);
+			}
+		}
+
+		public Collection newCollection() {
+			if (type.isAssignableFrom(List.class)) return new ArrayList();
+			if (type.isAssignableFrom(Set.class)) return new HashSet();
+			throw new IllegalStateException("Unsupported collection type: " + type.getName());
+		}
+
+	}
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import ilarkesto.json.Json.JsonWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Streaming JSON generator which encodes directly to UTF-8 bytes. Strings are escaped and encoded in one pass into
+ * a buffer, which is reused per thread. Call <code>finish()</code> when done, to flush the output and return the
+ * buffer.
+ */
+public class JsonWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+	private static final byte[] LONG_MIN_VALUE = String.valueOf(Long.MIN_VALUE).getBytes();
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+	private OutputStream out;
+	private WritableByteChannel channel;
+	private ByteBuffer byteBuffer;
+	private byte[] buffer;
+	private int pos;
+
+	public JsonWriter(OutputStream out) {
+		this.out = out;
+		acquireBuffer();
+	}
+
+	public JsonWriter(WritableByteChannel channel) {
+		this.channel = channel;
+		acquireBuffer();
+	}
+
+	// --- values ---
+
+	/**
+	 * Writes a value like <code>Json.printValue()</code> does. <code>indentation</code> &lt; 0 means unformated.
+	 */
+	public JsonWriter writeValue(Object value, int indentation) {
+		if (value == null) return writeRaw(NULL);
+		if (value instanceof String) return writeString((String) value);
+		if (value instanceof Iterable) return writeArray((Iterable) value, indentation);
+		if (value instanceof JsonObject) return writeObject((JsonObject) value, indentation);
+		if (value instanceof JsonWrapper) return writeObject(((JsonWrapper) value).getJson(), indentation);
+		if (value instanceof Boolean) return writeBoolean((Boolean) value);
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return writeLong(((Number) value).longValue());
+		if (value instanceof Number) return writeAscii(value.toString());
+		return writeText(value.toString(), false);
+	}
+
+	public JsonWriter writeObject(JsonObject json, int indentation) {
+		if (Json.isShort(json.getElements().values())) indentation = -1;
+		writeRaw('{');
+		if (indentation >= 0) indentation++;
+		boolean first = true;
+		for (Map.Entry<String, Object> element : json.getElements().entrySet()) {
+			if (first) {
+				first = false;
+			} else {
+				writeRaw(',');
+			}
+			if (indentation >= 0) writeRaw('\n');
+			indent(indentation);
+			writeString(element.getKey());
+			writeRaw(':');
+			if (indentation >= 0) writeRaw(' ');
+			writeValue(element.getValue(), indentation);
+		}
+		if (indentation >= 0) {
+			indentation--;
+			writeRaw('\n');
+			indent(indentation);
+		}
+		return writeRaw('}');
+	}
+
+	public JsonWriter writeArray(Iterable values, int indentation) {
+		writeRaw('[');
+		if (indentation >= 0) indentation++;
+		boolean indentArray = indentation > 0 && !Json.isShort(values);
+		boolean first = true;
+		for (Object value : values) {
+			if (first) {
+				first = false;
+			} else {
+				writeRaw(',');
+			}
+			if (indentArray) {
+				writeRaw('\n');
+				indent(indentation);
+			}
+			writeValue(value, indentation);
+		}
+		if (indentArray) writeRaw('\n');
+		if (indentation >= 0) indentation--;
+		indent(indentation);
+		return writeRaw(']');
+	}
+
+	/**
+	 * Writes the string quoted, escaped and UTF-8 encoded.
+	 */
+	public JsonWriter writeString(String s) {
+		writeRaw('"');
+		writeText(s, true);
+		return writeRaw('"');
+	}
+
+	private JsonWriter writeText(String s, boolean escape) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char ch = s.charAt(i);
+			ensureCapacity(6);
+			if (ch < 0x80 && !escape) {
+				buffer[pos++] = (byte) ch;
+			} else if (ch < 0x80) {
+				switch (ch) {
+					case '"':
+					case '\\':
+					case '/':
+						buffer[pos++] = '\\';
+						buffer[pos++] = (byte) ch;
+						break;
+					case '\n':
+						buffer[pos++] = '\\';
+						buffer[pos++] = 'n';
+						break;
+					case '\r':
+						buffer[pos++] = '\\';
+						buffer[pos++] = 'r';
+						break;
+					case '\t':
+						buffer[pos++] = '\\';
+						buffer[pos++] = 't';
+						break;
+					default:
+						if (ch < 0x20) {
+							buffer[pos++] = '\\';
+							buffer[pos++] = 'u';
+							buffer[pos++] = '0';
+							buffer[pos++] = '0';
+							buffer[pos++] = HEX[ch >> 4];
+							buffer[pos++] = HEX[ch & 0xf];
+						} else {
+							buffer[pos++] = (byte) ch;
+						}
+				}
+			} else if (ch < 0x800) {
+				buffer[pos++] = (byte) (0xc0 | (ch >> 6));
+				buffer[pos++] = (byte) (0x80 | (ch & 0x3f));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+				buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+				buffer[pos++] = '?';
+			} else {
+				buffer[pos++] = (byte) (0xe0 | (ch >> 12));
+				buffer[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (ch & 0x3f));
+			}
+		}
+		return this;
+	}
+
+	public JsonWriter writeLong(long value) {
+		if (value == Long.MIN_VALUE) return writeRaw(LONG_MIN_VALUE);
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[pos++] = '-';
+			value = -value;
+		}
+		int start = pos;
+		do {
+			buffer[pos++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			byte b = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = b;
+		}
+		return this;
+	}
+
+	public JsonWriter writeBoolean(boolean value) {
+		return writeRaw(value ? TRUE : FALSE);
+	}
+
+	public JsonWriter writeNull() {
+		return writeRaw(NULL);
+	}
+
+	// --- raw output ---
+
+	/**
+	 * Writes a structural character like <code>'{'</code> or <code>','</code> without escaping.
+	 */
+	public JsonWriter writeRaw(char ch) {
+		ensureCapacity(1);
+		buffer[pos++] = (byte) ch;
+		return this;
+	}
+
+	/**
+	 * Writes ASCII text without escaping. Used for numbers and formating.
+	 */
+	public JsonWriter writeAscii(String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			ensureCapacity(1);
+			buffer[pos++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	private JsonWriter writeRaw(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+		pos += bytes.length;
+		return this;
+	}
+
+	private void indent(int indentation) {
+		for (int i = 0; i < indentation; i++) {
+			writeRaw('\t');
+		}
+	}
+
+	// --- buffer ---
+
+	/**
+	 * Writes the buffered bytes to the target and flushes it.
+	 */
+	public void flush() {
+		writeBuffer();
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				throw new RuntimeException("Writing JSON failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Flushes and returns the buffer for reuse. The target is not closed.
+	 */
+	public void finish() {
+		if (buffer == null) return;
+		try {
+			flush();
+		} finally {
+			byteBuffer.clear();
+			buffers.set(byteBuffer);
+			byteBuffer = null;
+			buffer = null;
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (buffer == null) throw new IllegalStateException("JsonWriter already finished");
+		if (pos + bytes > buffer.length) writeBuffer();
+	}
+
+	private void writeBuffer() {
+		if (pos == 0) return;
+		try {
+			if (out != null) {
+				out.write(buffer, 0, pos);
+			} else {
+				byteBuffer.clear();
+				byteBuffer.limit(pos);
+				while (byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer);
+				}
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing JSON failed", ex);
+		}
+		pos = 0;
+	}
+
+	private void acquireBuffer() {
+		byteBuffer = buffers.get();
+		if (byteBuffer == null) {
+			byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		} else {
+			// nested writers on the same thread get their own buffer
+			buffers.set(null);
+		}
+		buffer = byteBuffer.array();
+	}
+
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json.jsondb;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+import ilarkesto.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Local <code>AJsonDb</code> which appends documents to segment files in a directory. An in-memory id index points
+ * to the latest version of each document. Optional indexes on JSON paths answer <code>PathValueFilter</code>
+ * queries without loading all documents. Serialized documents are kept in a bounded LRU cache, every load returns
+ * a new instance, so concurrent changes are detected by the <code>_rev</code> check.
+ */
+public class FileJsonDb extends AJsonDb {
+
+	private static final Log log = Log.get(FileJsonDb.class);
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final byte OP_SAVE = 1;
+	private static final byte OP_DELETE = 2;
+	private static final int PARALLEL_LOAD_THRESHOLD = 32;
+
+	private File dir;
+	private long segmentSize = 8 * 1024 * 1024;
+	private int loaderThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private boolean syncWrites = true;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private List<Segment> segments = new ArrayList<Segment>();
+	private Map<String, Location> locations = new ConcurrentHashMap<String, Location>();
+	private Map<String, PathIndex> indexes = new ConcurrentHashMap<String, PathIndex>();
+	private long garbageBytes;
+	private ExecutorService executor;
+
+	private Map<String, byte[]> cache;
+
+	public FileJsonDb(File dir) {
+		this.dir = dir;
+		setCacheSize(1000);
+		open();
+	}
+
+	// --- configuration ---
+
+	public FileJsonDb setCacheSize(final int cacheSize) {
+		cache = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > cacheSize;
+			}
+		});
+		return this;
+	}
+
+	public FileJsonDb setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	public FileJsonDb setLoaderThreads(int loaderThreads) {
+		this.loaderThreads = loaderThreads;
+		return this;
+	}
+
+	/**
+	 * Force every write to disk before returning. Enabled by default.
+	 */
+	public FileJsonDb setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+		return this;
+	}
+
+	// --- indexes ---
+
+	/**
+	 * Indexes the scalar values at the given JSON path. The index is built immediately and maintained on every
+	 * save and delete. The documents are read on the calling thread, since the loader threads would block on the
+	 * write lock.
+	 */
+	public void addIndex(String... path) {
+		String key = getIndexKey(path);
+		lock.writeLock().lock();
+		try {
+			if (indexes.containsKey(key)) return;
+			PathIndex index = new PathIndex(path);
+			for (Map.Entry<String, Location> entry : locations.entrySet()) {
+				index.update(entry.getKey(), parse(entry.getValue().read()));
+			}
+			indexes.put(key, index);
+			log.info("Index created:", key, "for", locations.size(), "documents");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static String getIndexKey(String[] path) {
+		return Arrays.asList(path).toString();
+	}
+
+	// --- AJsonDb ---
+
+	@Override
+	public JsonObject loadDocumentById(String id) {
+		byte[] data = cache.get(id);
+		if (data != null) return parse(data);
+		lock.readLock().lock();
+		try {
+			Location location = locations.get(id);
+			if (location == null) return null;
+			data = location.read();
+			cache.put(id, data);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return parse(data);
+	}
+
+	/**
+	 * Loads larger batches in parallel. Missing documents are returned as <code>null</code>.
+	 */
+	@Override
+	public List<JsonObject> loadDocumentsByIds(Collection<String> ids) {
+		if (ids.size() < PARALLEL_LOAD_THRESHOLD || loaderThreads < 2) return super.loadDocumentsByIds(ids);
+
+		List<String> idList = new ArrayList<String>(ids);
+		int chunkSize = Math.max(PARALLEL_LOAD_THRESHOLD / 2, idList.size() / (loaderThreads * 4) + 1);
+		List<Future<List<JsonObject>>> futures = new ArrayList<Future<List<JsonObject>>>();
+		for (int i = 0; i < idList.size(); i += chunkSize) {
+			final List<String> chunk = idList.subList(i, Math.min(idList.size(), i + chunkSize));
+			futures.add(getExecutor().submit(new Callable<List<JsonObject>>() {
+
+				@Override
+				public List<JsonObject> call() {
+					return FileJsonDb.super.loadDocumentsByIds(chunk);
+				}
+			}));
+		}
+
+		List<JsonObject> documents = new ArrayList<JsonObject>(idList.size());
+		for (Future<List<JsonObject>> future : futures) {
+			try {
+				documents.addAll(future.get());
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			} catch (ExecutionException ex) {
+				throw new JsonDbException("Loading documents failed", ex.getCause());
+			}
+		}
+		return documents;
+	}
+
+	@Override
+	public List<JsonObject> loadDocumentsByFilter(DocumentFilter filter) {
+		if (filter instanceof PathValueFilter) {
+			PathValueFilter pathFilter = (PathValueFilter) filter;
+			PathIndex index = indexes.get(getIndexKey(pathFilter.getPath()));
+			if (index != null) {
+				List<JsonObject> result = new ArrayList<JsonObject>();
+				for (JsonObject document : loadDocumentsByIds(index.getIds(pathFilter.getValue()))) {
+					// verify, the document could have been changed after the index lookup
+					if (document != null && filter.matches(document)) result.add(document);
+				}
+				return result;
+			}
+		}
+
+		List<JsonObject> result = new ArrayList<JsonObject>();
+		for (JsonObject document : loadAllDocuments()) {
+			if (document != null && filter.matches(document)) result.add(document);
+		}
+		return result;
+	}
+
+	@Override
+	public List<DocumentReference> listAllDocuments() {
+		List<String> ids = new ArrayList<String>(locations.keySet());
+		Collections.sort(ids);
+		List<DocumentReference> references = new ArrayList<DocumentReference>(ids.size());
+		for (String id : ids) {
+			references.add(new DocumentReference(id));
+		}
+		return references;
+	}
+
+	/**
+	 * Saves the document. A missing <code>_id</code> is generated. The <code>_rev</code> of the document has to
+	 * match the stored one, like in CouchDB, and is incremented.
+	 */
+	@Override
+	public void saveDocument(JsonObject document) {
+		lock.writeLock().lock();
+		try {
+			String id = document.getString("_id");
+			if (id == null) id = document.put("_id", UUID.randomUUID().toString());
+			Location existing = locations.get(id);
+			String rev = document.getString("_rev");
+			if (existing != null && !existing.rev.equals(rev))
+				throw new JsonDbException("Document update conflict: " + id + " has revision " + existing.rev
+						+ ", not " + rev);
+			if (existing == null && rev != null) throw new JsonDbException("Document does not exist: " + id);
+			String newRev = String.valueOf(existing == null ? 1 : Long.parseLong(existing.rev) + 1);
+			document.put("_rev", newRev);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			document.write(out, false);
+			byte[] data = out.toByteArray();
+			Location location = append(OP_SAVE, id, newRev, data);
+			locations.put(id, location);
+			if (existing != null) garbageBytes += existing.getRecordSize();
+			for (PathIndex index : indexes.values()) {
+				index.update(id, document);
+			}
+			cache.put(id, data);
+			log.debug("Document saved:", id, newRev);
+			compactIfWasteful();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteDocument(JsonObject document) {
+		deleteDocumentById(getId(document));
+	}
+
+	@Override
+	public void deleteDocumentById(String id) {
+		lock.writeLock().lock();
+		try {
+			Location existing = locations.remove(id);
+			if (existing == null) return;
+			Location tombstone = append(OP_DELETE, id, existing.rev, new byte[0]);
+			garbageBytes += existing.getRecordSize() + tombstone.getRecordSize();
+			for (PathIndex index : indexes.values()) {
+				index.remove(id);
+			}
+			cache.remove(id);
+			log.debug("Document deleted:", id);
+			compactIfWasteful();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int getDocumentCount() {
+		return locations.size();
+	}
+
+	// --- files ---
+
+	private void open() {
+		IO.createDirectory(dir);
+		File[] files = dir.listFiles();
+		List<File> segmentFiles = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX)) segmentFiles.add(file);
+			}
+		}
+		Collections.sort(segmentFiles);
+		for (File file : segmentFiles) {
+			Segment segment = new Segment(file);
+			segments.add(segment);
+			segment.scan();
+		}
+		if (segments.isEmpty()) segments.add(new Segment(new File(dir, getSegmentName(1))));
+		log.info("JSON database opened:", dir, locations.size(), "documents in", segments.size(), "segments");
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			if (executor != null) executor.shutdown();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Location append(byte op, String id, String rev, byte[] data) {
+		Segment segment = segments.get(segments.size() - 1);
+		if (segment.length >= segmentSize) {
+			segment = new Segment(new File(dir, getSegmentName(segment.number + 1)));
+			segments.add(segment);
+		}
+		return segment.append(op, id, rev, data);
+	}
+
+	/**
+	 * Needs the write lock, since <code>garbageBytes</code> and the segments are changed under it.
+	 */
+	private void compactIfWasteful() {
+		if (garbageBytes < segmentSize) return;
+		long totalBytes = 0;
+		for (Segment segment : segments) {
+			totalBytes += segment.length;
+		}
+		if (garbageBytes * 2 < totalBytes) return;
+		compact();
+	}
+
+	/**
+	 * Rewrites all current documents into new segments and deletes the old segments. The new segments are forced
+	 * to disk before, regardless of <code>setSyncWrites()</code>.
+	 */
+	public void compact() {
+		lock.writeLock().lock();
+		try {
+			List<Segment> oldSegments = new ArrayList<Segment>(segments);
+			Segment current = new Segment(new File(dir, getSegmentName(oldSegments.get(oldSegments.size() - 1).number
+					+ 1)));
+			segments.add(current);
+			for (Map.Entry<String, Location> entry : locations.entrySet()) {
+				Location location = entry.getValue();
+				locations.put(entry.getKey(), append(OP_SAVE, entry.getKey(), location.rev, location.read()));
+			}
+			for (Segment segment : segments) {
+				if (!oldSegments.contains(segment)) segment.force();
+			}
+			for (Segment segment : oldSegments) {
+				segments.remove(segment);
+				segment.close();
+				IO.delete(segment.file);
+			}
+			log.info("JSON database compacted:", dir, "->", segments.size(), "segments, released", garbageBytes,
+				"bytes");
+			garbageBytes = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) executor = Executors.newFixedThreadPool(loaderThreads, new DeamonThreadFactory());
+		return executor;
+	}
+
+	private static String getSegmentName(int number) {
+		String s = String.valueOf(number);
+		char[] padding = new char[Math.max(0, 10 - s.length())];
+		Arrays.fill(padding, '0');
+		return new String(padding) + s + SEGMENT_SUFFIX;
+	}
+
+	private static JsonObject parse(byte[] data) {
+		return JsonObject.loadFromStream(new ByteArrayInputStream(data));
+	}
+
+	private static String getId(JsonObject document) {
+		String id = document.getString("_id");
+		if (id == null) throw new JsonDbException("Document without _id: " + document);
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return "FileJsonDb(" + dir + ")";
+	}
+
+	private class Segment {
+
+		private File file;
+		private int number;
+		private FileChannel channel;
+		private long length;
+
+		public Segment(File file) {
+			this.file = file;
+			String name = file.getName();
+			this.number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			try {
+				channel = new RandomAccessFile(file, "rw").getChannel();
+				length = channel.size();
+			} catch (IOException ex) {
+				throw new JsonDbException("Opening segment failed: " + file, ex);
+			}
+		}
+
+		/**
+		 * Reads all records into the id index. A torn or corrupt tail is truncated.
+		 */
+		private void scan() {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long position = 0;
+			while (position + HEADER_SIZE <= length) {
+				header.clear();
+				readFully(header, position);
+				header.flip();
+				int payloadLength = header.getInt();
+				long checksum = header.getLong();
+				if (payloadLength < 0 || position + HEADER_SIZE + payloadLength > length) break;
+				ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+				readFully(payload, position + HEADER_SIZE);
+				CRC32 crc = new CRC32();
+				crc.update(payload.array());
+				if (crc.getValue() != checksum) break;
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+				try {
+					byte op = in.readByte();
+					String id = in.readUTF();
+					String rev = in.readUTF();
+					int dataLength = in.readInt();
+					Location previous = locations.remove(id);
+					if (previous != null) garbageBytes += previous.getRecordSize();
+					if (op == OP_SAVE) {
+						int dataOffset = payloadLength - dataLength;
+						locations.put(id, new Location(this, rev, position + HEADER_SIZE + dataOffset, dataLength,
+								HEADER_SIZE + payloadLength));
+					} else {
+						garbageBytes += HEADER_SIZE + payloadLength;
+					}
+				} catch (IOException ex) {
+					throw new JsonDbException("Reading segment failed: " + file, ex);
+				}
+				position += HEADER_SIZE + payloadLength;
+			}
+			if (position < length) {
+				log.warn("Incomplete record in segment. Truncating:", file, "at", position);
+				try {
+					channel.truncate(position);
+				} catch (IOException ex) {
+					throw new JsonDbException("Truncating segment failed: " + file, ex);
+				}
+				length = position;
+			}
+		}
+
+		private Location append(byte op, String id, String rev, byte[] data) {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(data.length + id.length() + 16);
+			DataOutputStream out = new DataOutputStream(payload);
+			try {
+				out.writeByte(op);
+				out.writeUTF(id);
+				out.writeUTF(rev);
+				out.writeInt(data.length);
+				out.write(data);
+				out.flush();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+			record.putInt(bytes.length);
+			record.putLong(crc.getValue());
+			record.put(bytes);
+			record.flip();
+
+			long position = length;
+			try {
+				while (record.hasRemaining()) {
+					channel.write(record, position + record.position());
+				}
+				if (syncWrites) channel.force(false);
+			} catch (IOException ex) {
+				throw new JsonDbException("Writing segment failed: " + file, ex);
+			}
+			length += record.limit();
+			return new Location(this, rev, position + HEADER_SIZE + bytes.length - data.length, data.length,
+					record.limit());
+		}
+
+		private void force() {
+			try {
+				channel.force(false);
+			} catch (IOException ex) {
+				throw new JsonDbException("Writing segment failed: " + file, ex);
+			}
+		}
+
+		private void readFully(ByteBuffer buffer, long position) {
+			try {
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read < 0) throw new JsonDbException("Unexpected end of segment: " + file);
+				}
+			} catch (IOException ex) {
+				throw new JsonDbException("Reading segment failed: " + file, ex);
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				log.warn("Closing segment failed:", file, ex);
+			}
+		}
+
+	}
+
+	private static class Location {
+
+		private Segment segment;
+		private String rev;
+		private long dataPosition;
+		private int dataLength;
+		private int recordSize;
+
+		public Location(Segment segment, String rev, long dataPosition, int dataLength, int recordSize) {
+			this.segment = segment;
+			this.rev = rev;
+			this.dataPosition = dataPosition;
+			this.dataLength = dataLength;
+			this.recordSize = recordSize;
+		}
+
+		public byte[] read() {
+			ByteBuffer buffer = ByteBuffer.allocate(dataLength);
+			segment.readFully(buffer, dataPosition);
+			return buffer.array();
+		}
+
+		public int getRecordSize() {
+			return recordSize;
+		}
+
+	}
+
+	private static class PathIndex {
+
+		private String[] path;
+		private Map<Object, Set<String>> idsByValue = new HashMap<Object, Set<String>>();
+		private Map<String, List<Object>> valuesById = new HashMap<String, List<Object>>();
+
+		public PathIndex(String[] path) {
+			this.path = path;
+		}
+
+		public synchronized void update(String id, JsonObject document) {
+			remove(id);
+			List<Object> values = PathValueFilter.getValues(document, path);
+			if (values.isEmpty()) return;
+			valuesById.put(id, values);
+			for (Object value : values) {
+				Set<String> ids = idsByValue.get(value);
+				if (ids == null) {
+					ids = new HashSet<String>();
+					idsByValue.put(value, ids);
+				}
+				ids.add(id);
+			}
+		}
+
+		public synchronized void remove(String id) {
+			List<Object> values = valuesById.remove(id);
+			if (values == null) return;
+			for (Object value : values) {
+				Set<String> ids = idsByValue.get(value);
+				if (ids == null) continue;
+				ids.remove(id);
+				if (ids.isEmpty()) idsByValue.remove(value);
+			}
+		}
+
+		public synchronized List<String> getIds(Object value) {
+			Set<String> ids = idsByValue.get(value);
+			if (ids == null) return Collections.emptyList();
+			return new ArrayList<String>(ids);
+		}
+
+	}
+
+}
@@ -20,4 +20,8 @@ public class JsonDbException extends RuntimeException {
 		super(message, cause);
 	}
 
+	public JsonDbException(String message) {
+		super(message);
+	}
+
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json.jsondb;
+
+import ilarkesto.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches documents which have the given value at a JSON path. If the path points to an array, any element may
+ * match. <code>FileJsonDb</code> answers this filter from an index, if there is one for the path.
+ */
+public class PathValueFilter implements DocumentFilter {
+
+	private String[] path;
+	private Object value;
+
+	public PathValueFilter(Object value, String... path) {
+		if (path.length == 0) throw new IllegalArgumentException("path required");
+		this.path = path;
+		this.value = normalize(value);
+	}
+
+	@Override
+	public boolean matches(JsonObject document) {
+		for (Object documentValue : getValues(document, path)) {
+			if (value == null ? documentValue == null : value.equals(documentValue)) return true;
+		}
+		return false;
+	}
+
+	public String[] getPath() {
+		return path;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns the normalized scalar values at the path. Arrays are flattened, objects are ignored.
+	 */
+	static List<Object> getValues(JsonObject document, String[] path) {
+		JsonObject parent = document;
+		for (int i = 0; i < path.length - 1; i++) {
+			Object child = parent.get(path[i]);
+			if (!(child instanceof JsonObject)) return Collections.emptyList();
+			parent = (JsonObject) child;
+		}
+		String name = path[path.length - 1];
+		if (!parent.contains(name)) return Collections.emptyList();
+		Object value = parent.get(name);
+		if (!(value instanceof List)) {
+			if (value instanceof JsonObject) return Collections.emptyList();
+			return Collections.singletonList(normalize(value));
+		}
+		List<Object> ret = new ArrayList<Object>();
+		for (Object element : (List) value) {
+			if (element instanceof JsonObject || element instanceof List) continue;
+			ret.add(normalize(element));
+		}
+		return ret;
+	}
+
+	/**
+	 * Integral numbers are compared as <code>Long</code>, other numbers as <code>Double</code>.
+	 */
+	static Object normalize(Object value) {
+		if (!(value instanceof Number)) return value;
+		if (value instanceof Long) return value;
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).longValue();
+		double d = ((Number) value).doubleValue();
+		if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < Long.MAX_VALUE) return (long) d;
+		return d;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(path) + " = " + value;
+	}
+
+}
@@ -97,7 +97,10 @@ public class DatobGenerator<D extends DatobModel> extends ABeanGenerator<D> {
 		ln("        }");
 		ln("    }");
 
-		if (isLegacyBean(bean)) writeRepairDeadReferences();
+		if (isLegacyBean(bean)) {
+			writeRepairDeadReferences();
+			writeCollectReferencedIds();
+		}
 
 		writeEnsureIntegrity();
 
@@ -173,6 +176,30 @@ public class DatobGenerator<D extends DatobModel> extends ABeanGenerator<D> {
 		s("    }").ln();
 	}
 
+	private void writeCollectReferencedIds() {
+		if (bean.getProperties().isEmpty()) return;
+		ln();
+		s("    protected void collectReferencedIds(Collection<String> ids) {").ln();
+		s("        super.collectReferencedIds(ids);").ln();
+		for (PropertyModel p : bean.getProperties()) {
+			if (p.isValueObject()) {
+				if (p.isCollection()) {
+					s("        collectReferencedIdsOfValueObjects(").s(getFieldName(p)).s(", ids);").ln();
+				} else {
+					s("        if (").s(getFieldName(p)).s(" != null) ").s(getFieldName(p))
+							.s(".collectReferencedIds(ids);").ln();
+				}
+			}
+			if (!p.isReference()) continue;
+			if (p.isCollection()) {
+				s("        if (").s(getFieldName(p)).s(" != null) ids.addAll(").s(getFieldName(p)).s(");").ln();
+			} else {
+				s("        if (").s(getFieldName(p)).s(" != null) ids.add(").s(getFieldName(p)).s(");").ln();
+			}
+		}
+		s("    }").ln();
+	}
+
 	private void writeRepairDeadReferences() {
 		if (!bean.getProperties().isEmpty()) {
 			ln();
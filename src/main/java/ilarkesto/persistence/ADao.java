@@ -36,7 +36,9 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -117,6 +119,118 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 		return transactionService.getEntitiesCount(getEntityTypeFilter(), (Predicate<AEntity>) predicate);
 	}
 
+	// --- indexes ---
+
+	private Map<String, AEntityIndex<E, ?>> indexes = new HashMap<String, AEntityIndex<E, ?>>();
+
+	/**
+	 * Registers a secondary index. It is built from the committed entities on first use and updated whenever a
+	 * transaction which saves or deletes entities of this dao is committed. Queries add the uncommitted entities
+	 * of the current thread's transaction.
+	 */
+	public final synchronized void addIndex(AEntityIndex<E, ?> index) {
+		indexes.put(index.getName(), index);
+	}
+
+	public final synchronized Collection<AEntityIndex<E, ?>> getIndexes() {
+		return new ArrayList<AEntityIndex<E, ?>>(indexes.values());
+	}
+
+	/**
+	 * Drops all index data. The indexes are rebuilt on next use.
+	 */
+	public final void clearIndexes() {
+		for (AEntityIndex<E, ?> index : getIndexes()) {
+			index.clear();
+		}
+	}
+
+	public final <K> Set<E> getEntitiesByIndex(String indexName, K key) {
+		AEntityIndex<E, K> index = (AEntityIndex<E, K>) getBuiltIndex(indexName);
+		Set<E> result = index.get(key);
+		for (E entity : getUncommittedEntities()) {
+			if (index.matches(entity, key)) result.add(entity);
+		}
+		for (Iterator<E> iterator = result.iterator(); iterator.hasNext();) {
+			E entity = iterator.next();
+			if (!index.matches(entity, key) || !isIndexedEntityExisting(entity)) iterator.remove();
+		}
+		return result;
+	}
+
+	public final <K> E getEntityByIndex(String indexName, K key) {
+		Set<E> entities = getEntitiesByIndex(indexName, key);
+		return entities.isEmpty() ? null : entities.iterator().next();
+	}
+
+	/**
+	 * Returns the entities with indexed values from <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive). Requires a <code>SortedEntityIndex</code>.
+	 */
+	public final <K extends Comparable<K>> Set<E> getEntitiesByIndexRange(String indexName, K from, K to) {
+		AEntityIndex<E, ?> index = getBuiltIndex(indexName);
+		if (!(index instanceof SortedEntityIndex)) throw new IllegalArgumentException("Index not sorted: " + index);
+		SortedEntityIndex<E, K> sortedIndex = (SortedEntityIndex<E, K>) index;
+		Set<E> result = sortedIndex.getRange(from, to);
+		for (E entity : getUncommittedEntities()) {
+			if (sortedIndex.matchesRange(entity, from, to)) result.add(entity);
+		}
+		for (Iterator<E> iterator = result.iterator(); iterator.hasNext();) {
+			E entity = iterator.next();
+			if (!sortedIndex.matchesRange(entity, from, to) || !isIndexedEntityExisting(entity)) iterator.remove();
+		}
+		return result;
+	}
+
+	private AEntityIndex<E, ?> getBuiltIndex(String indexName) {
+		AEntityIndex<E, ?> index;
+		synchronized (this) {
+			index = indexes.get(indexName);
+		}
+		if (index == null) throw new IllegalArgumentException("Index does not exist: " + getEntityName() + "."
+				+ indexName);
+		// scanning under the index monitor, so that commits published meanwhile are not skipped by update()
+		synchronized (index) {
+			if (!index.isBuilt()) index.build(getCommittedEntities());
+		}
+		return index;
+	}
+
+	private boolean isIndexedEntityExisting(E entity) {
+		// entities deleted in the current transaction are still indexed
+		return transactionService.getById(entity.getId()) != null;
+	}
+
+	Set<E> getCommittedEntities() {
+		return (Set<E>) transactionService.getCommittedEntities(getEntityTypeFilter());
+	}
+
+	private Set<E> getUncommittedEntities() {
+		return (Set<E>) transactionService.getUncommittedEntities(getEntityTypeFilter());
+	}
+
+	/**
+	 * Called by the <code>DaoService</code> after a transaction which saved the entity was committed.
+	 */
+	void updateIndexes(E entity) {
+		if (indexes.isEmpty()) return;
+		for (AEntityIndex<E, ?> index : getIndexes()) {
+			if (index.isBuilt()) index.update(entity);
+		}
+	}
+
+	/**
+	 * Called by the <code>DaoService</code> after a transaction which deleted the entity was committed.
+	 */
+	void removeFromIndexes(E entity) {
+		if (indexes.isEmpty()) return;
+		for (AEntityIndex<E, ?> index : getIndexes()) {
+			if (index.isBuilt()) index.remove(entity);
+		}
+	}
+
+	// --- queries ---
+
 	public E getEntity(Predicate<E> predicate) {
 		return (E) transactionService.getEntity(getEntityTypeFilter(), (Predicate<AEntity>) predicate);
 	}
@@ -186,6 +300,16 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 		daoService.fireEntityDeleted(entity);
 	}
 
+	/**
+	 * Deletes the entities and repairs references to them in one pass.
+	 */
+	public void deleteEntities(Collection<E> entities) {
+		for (E entity : entities) {
+			transactionService.deleteEntity(entity);
+		}
+		daoService.fireEntitiesDeleted(entities);
+	}
+
 	public void saveEntity(E entity) {
 		transactionService.saveEntity(entity);
 		daoService.fireEntitySaved(entity);
@@ -198,6 +322,10 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 	}
 
 	public E newEntityInstance() {
+		return newEntityInstance((String) null);
+	}
+
+	public E newEntityInstance(String id) {
 		E entity;
 		try {
 			entity = (E) getEntityClass().newInstance();
@@ -206,17 +334,13 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 		} catch (IllegalAccessException ex) {
 			throw new RuntimeException(ex);
 		}
+		// set the id before registering, since the transaction indexes entities by id
+		if (id != null) entity.setId(id);
 		entity.setLastModified(DateAndTime.now());
 		transactionService.registerEntity(entity);
 		return entity;
 	}
 
-	public E newEntityInstance(String id) {
-		E entity = newEntityInstance();
-		entity.setId(id);
-		return entity;
-	}
-
 	public void ensureIntegrity() {
 		if (!initialized) throw new RuntimeException("Not initialized!");
 		Class clazz = getEntityClass();
@@ -235,10 +359,22 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 
 	@Override
 	public void entityDeleted(EntityEvent event) {
-		AEntity entity = event.getEntity();
-		for (AEntity e : getEntities()) {
+		Collection<AEntity> batch = event.getBatch();
+		if (batch == null) {
+			repairDeadReferences(Collections.singleton(event.getEntity().getId()));
+			return;
+		}
+		// the whole batch is repaired with the event of its first entity
+		if (batch.iterator().next() != event.getEntity()) return;
+		repairDeadReferences(Persist.getIdsAsList(batch));
+	}
+
+	private void repairDeadReferences(Collection<String> deletedIds) {
+		for (AEntity e : daoService.getReferrers(this, deletedIds)) {
 			try {
-				e.repairDeadReferences(entity.getId());
+				for (String id : deletedIds) {
+					e.repairDeadReferences(id);
+				}
 			} catch (EnsureIntegrityCompletedException ex) {
 				continue;
 			}
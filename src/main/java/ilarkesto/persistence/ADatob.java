@@ -71,6 +71,13 @@ public abstract class ADatob implements Searchable {
 
 	protected void repairDeadReferences(String entityId) {}
 
+	/**
+	 * Adds the ids of all entities referenced by this datob. Subclasses overriding
+	 * <code>repairDeadReferences()</code> need to override this method too, otherwise their entities are
+	 * repaired by a full scan on every deletion.
+	 */
+	protected void collectReferencedIds(Collection<String> ids) {}
+
 	public void ensureIntegrity() {}
 
 	@Override
@@ -119,6 +126,12 @@ public abstract class ADatob implements Searchable {
 			vo.repairDeadReferences(entityId);
 	}
 
+	protected static void collectReferencedIdsOfValueObjects(Collection<? extends ADatob> valueObjects,
+			Collection<String> ids) {
+		for (ADatob vo : valueObjects)
+			vo.collectReferencedIds(ids);
+	}
+
 	protected final <S extends AStructure> Set<S> cloneValueObjects(Collection<S> strucktures,
 			StructureManager<S> manager) {
 		Set<S> ret = new HashSet<S>();
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index on a property of the entities of one <code>ADao</code>. The dao keeps it up to date when
+ * entities are saved or deleted. If the indexed value is a collection, the entity is indexed under each
+ * element. <code>null</code> values are not indexed.
+ */
+public abstract class AEntityIndex<E extends AEntity, K> {
+
+	private String name;
+	private Map<K, Set<E>> entitiesByKey;
+	private Map<E, Collection<K>> keysByEntity = new HashMap<E, Collection<K>>();
+	private boolean built;
+
+	public AEntityIndex(String name) {
+		this.name = name;
+		this.entitiesByKey = createMap();
+	}
+
+	protected abstract Map<K, Set<E>> createMap();
+
+	/**
+	 * Returns the indexed value of the entity. Either a single key or a collection of keys.
+	 */
+	protected abstract Object getValue(E entity);
+
+	public final String getName() {
+		return name;
+	}
+
+	public final synchronized boolean isBuilt() {
+		return built;
+	}
+
+	/**
+	 * Tests if the entity is currently indexed under the key. Used to filter out entries which became stale
+	 * since the last update.
+	 */
+	public final boolean matches(E entity, K key) {
+		return getKeys(entity).contains(key);
+	}
+
+	synchronized void build(Collection<E> entities) {
+		clear();
+		for (E entity : entities) {
+			update(entity);
+		}
+		built = true;
+	}
+
+	synchronized void clear() {
+		entitiesByKey.clear();
+		keysByEntity.clear();
+		built = false;
+	}
+
+	synchronized void update(E entity) {
+		Collection<K> newKeys = getKeys(entity);
+		Collection<K> oldKeys = keysByEntity.get(entity);
+		if (oldKeys != null) {
+			if (oldKeys.equals(newKeys)) return;
+			for (K key : oldKeys) {
+				removeEntry(key, entity);
+			}
+		}
+		if (newKeys.isEmpty()) {
+			keysByEntity.remove(entity);
+			return;
+		}
+		keysByEntity.put(entity, newKeys);
+		for (K key : newKeys) {
+			Set<E> entities = entitiesByKey.get(key);
+			if (entities == null) {
+				entities = new HashSet<E>();
+				entitiesByKey.put(key, entities);
+			}
+			entities.add(entity);
+		}
+	}
+
+	synchronized void remove(E entity) {
+		Collection<K> keys = keysByEntity.remove(entity);
+		if (keys == null) return;
+		for (K key : keys) {
+			removeEntry(key, entity);
+		}
+	}
+
+	synchronized Set<E> get(K key) {
+		Set<E> entities = entitiesByKey.get(key);
+		if (entities == null) return new HashSet<E>(0);
+		return new HashSet<E>(entities);
+	}
+
+	protected final synchronized Set<E> getAll(Collection<Set<E>> entitySets) {
+		Set<E> ret = new HashSet<E>();
+		for (Set<E> entities : entitySets) {
+			ret.addAll(entities);
+		}
+		return ret;
+	}
+
+	protected final Map<K, Set<E>> getEntitiesByKey() {
+		return entitiesByKey;
+	}
+
+	private void removeEntry(K key, E entity) {
+		Set<E> entities = entitiesByKey.get(key);
+		if (entities == null) return;
+		entities.remove(entity);
+		if (entities.isEmpty()) entitiesByKey.remove(key);
+	}
+
+	final Collection<K> getKeys(E entity) {
+		Object value = getValue(entity);
+		if (value == null) return Collections.emptySet();
+		if (value instanceof Collection) {
+			Collection<K> keys = new HashSet<K>();
+			for (Object element : (Collection) value) {
+				if (element != null) keys.add((K) element);
+			}
+			return keys;
+		}
+		Collection<K> keys = new ArrayList<K>(1);
+		keys.add((K) value);
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + ":" + name;
+	}
+
+}
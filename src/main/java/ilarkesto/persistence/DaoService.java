@@ -20,11 +20,11 @@ import ilarkesto.core.time.Date;
 import ilarkesto.core.time.DateAndTime;
 import ilarkesto.core.time.Time;
 import ilarkesto.di.Context;
-import ilarkesto.fp.Predicate;
 import ilarkesto.id.IdentifiableResolver;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -75,32 +75,16 @@ public class DaoService implements IdentifiableResolver<AEntity> {
 		return getEntityById(id);
 	}
 
-	public AEntity getEntityById(final String id) {
+	public AEntity getEntityById(String id) {
 		if (id == null) throw new IllegalArgumentException("id == null");
-		AEntity entity = transactionService.getEntity(null, new Predicate<AEntity>() {
-
-			@Override
-			public boolean test(AEntity e) {
-				return id.equals(e.getId());
-			}
-
-		});
-
+		AEntity entity = transactionService.getById(id);
 		if (entity == null) throw new EntityDoesNotExistException(id);
 		return entity;
 	}
 
-	public boolean containsEntityWithId(final String id) {
+	public boolean containsEntityWithId(String id) {
 		if (id == null) throw new IllegalArgumentException("id == null");
-		AEntity entity = transactionService.getEntity(null, new Predicate<AEntity>() {
-
-			@Override
-			public boolean test(AEntity e) {
-				return id.equals(e.getId());
-			}
-
-		});
-		return entity != null;
+		return transactionService.getById(id) != null;
 	}
 
 	@Override
@@ -147,6 +131,65 @@ public class DaoService implements IdentifiableResolver<AEntity> {
 			listener.entityDeleted(event);
 	}
 
+	/**
+	 * Fires one event per entity. The events carry the whole batch, so that dead references can be repaired
+	 * once for all of them.
+	 */
+	public void fireEntitiesDeleted(Collection<? extends AEntity> entities) {
+		if (listeners == null || entities.isEmpty()) return;
+		Collection<AEntity> batch = Collections.unmodifiableCollection(new ArrayList<AEntity>(entities));
+		for (AEntity entity : batch) {
+			EntityEvent event = new EntityEvent(this, entity, batch);
+			for (DaoListener listener : listeners)
+				listener.entityDeleted(event);
+		}
+	}
+
+	// --- indexes ---
+
+	/**
+	 * Updates the indexes and the reference index from the entities of a committed transaction. Runs after the
+	 * entity store published them, so an index which is built concurrently either sees the entities or gets
+	 * updated afterwards.
+	 */
+	private void onTransactionCommitted(TransactionEvent event) {
+		for (AEntity entity : event.getSavedEntities()) {
+			ADao dao = daos.get(entity.getClass());
+			if (dao != null) dao.updateIndexes(entity);
+			referenceIndex.update(entity);
+		}
+		for (AEntity entity : event.getDeletedEntities()) {
+			ADao dao = daos.get(entity.getClass());
+			if (dao != null) dao.removeFromIndexes(entity);
+			referenceIndex.remove(entity);
+		}
+	}
+
+	// --- references ---
+
+	private EntityReferenceIndex referenceIndex = new EntityReferenceIndex();
+
+	/**
+	 * Returns the entities of the dao which might reference one of the given entities. Committed referrers come
+	 * from the reference index, uncommitted ones of the current transaction are checked directly.
+	 */
+	<E extends AEntity> Collection<E> getReferrers(ADao<E> dao, Collection<String> referencedIds) {
+		if (!referenceIndex.isTracked(dao.getEntityClass())) return dao.getEntities();
+		referenceIndex.build(getDaos());
+		Class entityClass = dao.getEntityClass();
+		Set<E> ret = new HashSet<E>();
+		for (String id : referenceIndex.getReferrerIds(referencedIds)) {
+			AEntity entity = transactionService.getById(id);
+			if (entity != null && entityClass.isInstance(entity)) ret.add((E) entity);
+		}
+		for (AEntity entity : transactionService.getUncommittedEntities(dao.getEntityTypeFilter())) {
+			if (!entityClass.isInstance(entity)) continue;
+			Set<String> ids = EntityReferenceIndex.getReferencedIds(entity);
+			if (!Collections.disjoint(ids, referencedIds)) ret.add((E) entity);
+		}
+		return ret;
+	}
+
 	// --- dependencies ---
 
 	private volatile boolean initialized;
@@ -175,6 +218,15 @@ public class DaoService implements IdentifiableResolver<AEntity> {
 			addDao(dao);
 		}
 
+		transactionService.addListener(new TransactionListener() {
+
+			@Override
+			public void transactionCommitted(TransactionEvent event) {
+				onTransactionCommitted(event);
+			}
+
+		});
+
 		initialized = true;
 	}
 
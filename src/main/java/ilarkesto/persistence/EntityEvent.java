@@ -16,22 +16,36 @@
 package ilarkesto.persistence;
 
 
+import java.util.Collection;
 import java.util.EventObject;
 
 
 public class EntityEvent<E extends AEntity> extends EventObject {
 
     private E entity;
+    private Collection<E> batch;
 
     public EntityEvent(Object source, E entity) {
         super(source);
         this.entity = entity;
     }
 
+    public EntityEvent(Object source, E entity, Collection<E> batch) {
+        this(source, entity);
+        this.batch = batch;
+    }
+
     public E getEntity() {
         return entity;
     }
 
+    /**
+     * All entities which were deleted together with this one, or <code>null</code>.
+     */
+    public Collection<E> getBatch() {
+        return batch;
+    }
+
     public boolean isEntityType(Class<E> type) {
         return type.isAssignableFrom(entity.getClass());
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts files, bytes and time spent while an <code>EntityStore</code> loads its entities. Keeps track of the
+ * slowest files.
+ */
+public class EntityLoadStatistics {
+
+	private static final int SLOWEST_FILES_LIMIT = 10;
+
+	private int fileCount;
+	private long bytesRead;
+	private long timeInMillis;
+	private List<FileTime> slowestFiles = new ArrayList<FileTime>(SLOWEST_FILES_LIMIT + 1);
+
+	synchronized void addFile(File file, long bytes, long millis) {
+		fileCount++;
+		bytesRead += bytes;
+		if (slowestFiles.size() >= SLOWEST_FILES_LIMIT
+				&& slowestFiles.get(slowestFiles.size() - 1).getTimeInMillis() >= millis) return;
+		int index = 0;
+		while (index < slowestFiles.size() && slowestFiles.get(index).getTimeInMillis() >= millis) {
+			index++;
+		}
+		slowestFiles.add(index, new FileTime(file, millis));
+		if (slowestFiles.size() > SLOWEST_FILES_LIMIT) slowestFiles.remove(SLOWEST_FILES_LIMIT);
+	}
+
+	synchronized void addTime(long millis) {
+		timeInMillis += millis;
+	}
+
+	public synchronized int getFileCount() {
+		return fileCount;
+	}
+
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	public synchronized long getTimeInMillis() {
+		return timeInMillis;
+	}
+
+	public synchronized float getFilesPerSecond() {
+		if (timeInMillis <= 0) return fileCount;
+		return fileCount * 1000f / timeInMillis;
+	}
+
+	public synchronized List<FileTime> getSlowestFiles() {
+		return new ArrayList<FileTime>(slowestFiles);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(fileCount).append(" files, ");
+		sb.append(bytesRead / 1024).append(" KB, ");
+		sb.append(timeInMillis).append(" ms, ");
+		sb.append((int) getFilesPerSecond()).append(" files/s");
+		if (!slowestFiles.isEmpty()) sb.append(", slowest: ").append(slowestFiles);
+		return sb.toString();
+	}
+
+	public static class FileTime {
+
+		private File file;
+		private long timeInMillis;
+
+		public FileTime(File file, long timeInMillis) {
+			this.file = file;
+			this.timeInMillis = timeInMillis;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getTimeInMillis() {
+			return timeInMillis;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName() + " " + timeInMillis + " ms";
+		}
+
+	}
+
+}
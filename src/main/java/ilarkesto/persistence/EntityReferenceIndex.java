@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.logging.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the ids of referenced entities to the ids of the entities referencing them, so that deleting an entity
+ * only needs to repair its actual referrers. It is fed by <code>ADatob.collectReferencedIds()</code> from
+ * committed transactions: a saved entity replaces its previous references, a deleted entity drops its own
+ * references and the references to it. Uncommitted referrers of the current transaction are not contained.
+ * Entity types which override <code>repairDeadReferences()</code> without overriding
+ * <code>collectReferencedIds()</code> are not tracked.
+ */
+class EntityReferenceIndex {
+
+	private static final Log log = Log.get(EntityReferenceIndex.class);
+
+	private Map<String, Set<String>> referrerIdsByReferencedId = new HashMap<String, Set<String>>();
+	private Map<String, Set<String>> referencedIdsByReferrerId = new HashMap<String, Set<String>>();
+	private Map<Class, Boolean> trackedTypes = new ConcurrentHashMap<Class, Boolean>();
+	private boolean built;
+
+	/**
+	 * Scans the committed entities. Commits published meanwhile wait for the monitor and are applied afterwards.
+	 */
+	public synchronized void build(Collection<ADao> daos) {
+		if (built) return;
+		long start = System.currentTimeMillis();
+		int count = 0;
+		for (ADao<?> dao : daos) {
+			if (!isTracked(dao.getEntityClass())) continue;
+			for (AEntity entity : dao.getCommittedEntities()) {
+				setReferences(entity.getId(), getReferencedIds(entity));
+				count++;
+			}
+		}
+		built = true;
+		log.info("Reference index built:", count, "entities,", referrerIdsByReferencedId.size(),
+			"referenced entities,", (System.currentTimeMillis() - start), "ms");
+	}
+
+	/**
+	 * Called after a transaction which saved the entity was committed.
+	 */
+	public synchronized void update(AEntity entity) {
+		if (!built || !isTracked(entity.getClass())) return;
+		setReferences(entity.getId(), getReferencedIds(entity));
+	}
+
+	/**
+	 * Called after a transaction which deleted the entity was committed.
+	 */
+	public synchronized void remove(AEntity entity) {
+		if (!built) return;
+		String id = entity.getId();
+		setReferences(id, Collections.<String> emptySet());
+		// the referrers were repaired before the deletion was committed
+		referrerIdsByReferencedId.remove(id);
+	}
+
+	public synchronized Set<String> getReferrerIds(Collection<String> referencedIds) {
+		Set<String> ret = new HashSet<String>();
+		for (String referencedId : referencedIds) {
+			Set<String> referrerIds = referrerIdsByReferencedId.get(referencedId);
+			if (referrerIds != null) ret.addAll(referrerIds);
+		}
+		return ret;
+	}
+
+	public boolean isTracked(Class type) {
+		Boolean tracked = trackedTypes.get(type);
+		if (tracked == null) {
+			tracked = Boolean.TRUE;
+			for (Class c = type; c != null && c != ADatob.class; c = c.getSuperclass()) {
+				if (isDeclared(c, "repairDeadReferences", String.class)
+						&& !isDeclared(c, "collectReferencedIds", Collection.class)) {
+					log.info("References not tracked, repairing by full scan:", type.getName());
+					tracked = Boolean.FALSE;
+					break;
+				}
+			}
+			trackedTypes.put(type, tracked);
+		}
+		return tracked;
+	}
+
+	static Set<String> getReferencedIds(AEntity entity) {
+		Set<String> referencedIds = new HashSet<String>();
+		entity.collectReferencedIds(referencedIds);
+		referencedIds.remove(null);
+		return referencedIds;
+	}
+
+	private void setReferences(String id, Set<String> referencedIds) {
+		Set<String> oldReferencedIds = referencedIds.isEmpty() ? referencedIdsByReferrerId.remove(id)
+				: referencedIdsByReferrerId.put(id, referencedIds);
+		if (oldReferencedIds != null) {
+			for (String referencedId : oldReferencedIds) {
+				if (referencedIds.contains(referencedId)) continue;
+				Set<String> referrerIds = referrerIdsByReferencedId.get(referencedId);
+				if (referrerIds == null) continue;
+				referrerIds.remove(id);
+				if (referrerIds.isEmpty()) referrerIdsByReferencedId.remove(referencedId);
+			}
+		}
+		for (String referencedId : referencedIds) {
+			Set<String> referrerIds = referrerIdsByReferencedId.get(referencedId);
+			if (referrerIds == null) {
+				referrerIds = new HashSet<String>(4);
+				referrerIdsByReferencedId.put(referencedId, referrerIds);
+			}
+			referrerIds.add(id);
+		}
+	}
+
+	private static boolean isDeclared(Class type, String methodName, Class parameterType) {
+		try {
+			type.getDeclaredMethod(methodName, parameterType);
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+}
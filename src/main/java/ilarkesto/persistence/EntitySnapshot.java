@@ -0,0 +1,549 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Money;
+import ilarkesto.core.logging.Log;
+import ilarkesto.core.time.Date;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.core.time.Time;
+import ilarkesto.core.time.TimePeriod;
+import ilarkesto.email.EmailAddress;
+import ilarkesto.io.IO;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary snapshot of all entities of one alias in a single file. Values are written with a tag byte, strings
+ * and collections are length-prefixed. Objects are written through per-class field descriptors, which are
+ * created once per type. The header contains the transaction log sequence number the snapshot includes and a
+ * fingerprint of the entity files, so that a snapshot is ignored if entity files were added, replaced, edited or
+ * deleted since. The fingerprint only reads file metadata: the modification times of the directory and the
+ * cluster file, the number of entity files, their total size and their latest modification time.
+ */
+class EntitySnapshot {
+
+	private static final Log log = Log.get(EntitySnapshot.class);
+
+	public static final int FORMAT_VERSION = 3;
+
+	private static final int MAGIC = 0x494c4b53;
+	private static final int MAX_DEPTH = 64;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte FLOAT = 6;
+	private static final byte SHORT = 7;
+	private static final byte BYTE = 8;
+	private static final byte CHARACTER = 9;
+	private static final byte VALUE = 10;
+	private static final byte COLLECTION = 11;
+	private static final byte MAP = 12;
+	private static final byte OBJECT = 13;
+	private static final byte ENUM = 14;
+
+	private static final Class[] VALUE_TYPES = new Class[] { Date.class, Time.class, DateAndTime.class,
+			TimePeriod.class, Money.class, EmailAddress.class };
+
+	private static final Map<Class, ClassDescriptor> descriptors = new ConcurrentHashMap<Class, ClassDescriptor>();
+
+	private File file;
+	private long version;
+	private File entitiesDir;
+	private File clusterFile;
+	private long logSeq;
+
+	public EntitySnapshot(File file, long version, File entitiesDir, File clusterFile) {
+		this.file = file;
+		this.version = version;
+		this.entitiesDir = entitiesDir;
+		this.clusterFile = clusterFile;
+	}
+
+	/**
+	 * Loads the entities from the snapshot. Returns <code>null</code> if there is no snapshot, if it was
+	 * written by another format or application version or if the entity files changed since. The transaction log
+	 * sequence number of a loaded snapshot is available through <code>getLogSeq()</code>.
+	 */
+	public Collection<AEntity> load() {
+		if (!file.exists()) return null;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) return null;
+			if (buffer.getInt() != FORMAT_VERSION) {
+				log.info("Snapshot format changed. Ignoring snapshot:", file);
+				return null;
+			}
+			if (buffer.getLong() != version) {
+				log.info("Application version changed. Ignoring snapshot:", file);
+				return null;
+			}
+			long seq = buffer.getLong();
+			if (!createFingerprint().matches(buffer)) {
+				log.info("Entity files changed. Ignoring snapshot:", file);
+				return null;
+			}
+
+			Reader reader = new Reader(buffer);
+			int count = buffer.getInt();
+			List<AEntity> entities = new ArrayList<AEntity>(count);
+			for (int i = 0; i < count; i++) {
+				entities.add((AEntity) reader.readValue(0));
+			}
+			logSeq = seq;
+			return entities;
+		} catch (Exception ex) {
+			log.warn("Loading snapshot failed:", file, ex);
+			return null;
+		} finally {
+			IO.closeQuiet(in);
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last transaction log record included in the loaded snapshot.
+	 */
+	public long getLogSeq() {
+		return logSeq;
+	}
+
+	/**
+	 * Captures the current state of the entity files. Needs to be created before the entities are read, so that
+	 * later changes of the files invalidate the snapshot.
+	 */
+	public Fingerprint createFingerprint() {
+		return new Fingerprint(entitiesDir, clusterFile);
+	}
+
+	/**
+	 * Writes the entities, which include all transaction log records up to <code>logSeq</code>.
+	 */
+	public void save(Collection<AEntity> entities, long logSeq, Fingerprint fingerprint) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		IO.createDirectory(tmpFile.getParentFile());
+		DataOutputStream out;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(version);
+			out.writeLong(logSeq);
+			fingerprint.write(out);
+
+			Writer writer = new Writer(out);
+			out.writeInt(entities.size());
+			for (AEntity entity : entities) {
+				writer.writeValue(entity, 0);
+			}
+			out.close();
+		} catch (Exception ex) {
+			IO.closeQuiet(out);
+			IO.deleteQuiet(tmpFile);
+			throw new RuntimeException("Writing snapshot failed: " + file, ex);
+		}
+		IO.move(tmpFile, file, true);
+	}
+
+	private static boolean isValueType(Class type) {
+		for (Class valueType : VALUE_TYPES) {
+			if (valueType.equals(type)) return true;
+		}
+		return false;
+	}
+
+	private static ClassDescriptor getDescriptor(Class type) {
+		ClassDescriptor descriptor = descriptors.get(type);
+		if (descriptor == null) {
+			descriptor = new ClassDescriptor(type);
+			descriptors.put(type, descriptor);
+		}
+		return descriptor;
+	}
+
+	// --- writing ---
+
+	private static class Writer {
+
+		private DataOutputStream out;
+		private Map<Class, Integer> classIndexes = new HashMap<Class, Integer>();
+
+		public Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void writeValue(Object value, int depth) throws IOException, IllegalAccessException {
+			if (depth > MAX_DEPTH) throw new IllegalStateException("Object graph too deep or cyclic");
+			if (value == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			Class type = value.getClass();
+			if (type == String.class) {
+				out.writeByte(STRING);
+				writeString((String) value);
+			} else if (type == Integer.class) {
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			} else if (type == Long.class) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (type == Boolean.class) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			} else if (type == Double.class) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (type == Float.class) {
+				out.writeByte(FLOAT);
+				out.writeFloat((Float) value);
+			} else if (type == Short.class) {
+				out.writeByte(SHORT);
+				out.writeShort((Short) value);
+			} else if (type == Byte.class) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) value);
+			} else if (type == Character.class) {
+				out.writeByte(CHARACTER);
+				out.writeChar((Character) value);
+			} else if (isValueType(type)) {
+				out.writeByte(VALUE);
+				writeClass(type);
+				writeString(value.toString());
+			} else if (value instanceof Enum) {
+				out.writeByte(ENUM);
+				writeClass(((Enum) value).getDeclaringClass());
+				writeString(((Enum) value).name());
+			} else if (value instanceof Collection) {
+				assertInstantiable(type);
+				Collection collection = (Collection) value;
+				out.writeByte(COLLECTION);
+				writeClass(type);
+				out.writeInt(collection.size());
+				for (Object element : collection) {
+					writeValue(element, depth + 1);
+				}
+			} else if (value instanceof Map) {
+				assertInstantiable(type);
+				Map<?, ?> map = (Map) value;
+				out.writeByte(MAP);
+				writeClass(type);
+				out.writeInt(map.size());
+				for (Map.Entry entry : map.entrySet()) {
+					writeValue(entry.getKey(), depth + 1);
+					writeValue(entry.getValue(), depth + 1);
+				}
+			} else {
+				assertInstantiable(type);
+				out.writeByte(OBJECT);
+				ClassDescriptor descriptor = getDescriptor(type);
+				boolean newClass = writeClass(type);
+				if (newClass) {
+					out.writeInt(descriptor.fields.length);
+					for (Field field : descriptor.fields) {
+						writeString(field.getName());
+					}
+				}
+				descriptor.writeFields(this, value, depth);
+			}
+		}
+
+		private void assertInstantiable(Class type) {
+			if (!getDescriptor(type).isInstantiable())
+				throw new UnsupportedOperationException("Default constructor required: " + type.getName());
+		}
+
+		private boolean writeClass(Class type) throws IOException {
+			Integer index = classIndexes.get(type);
+			if (index != null) {
+				out.writeInt(index);
+				return false;
+			}
+			index = classIndexes.size();
+			classIndexes.put(type, index);
+			out.writeInt(index);
+			writeString(type.getName());
+			return true;
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(IO.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+	}
+
+	// --- reading ---
+
+	private static class Reader {
+
+		private ByteBuffer buffer;
+		private List<Class> classes = new ArrayList<Class>();
+		private Map<Class, Field[]> fieldsByClass = new HashMap<Class, Field[]>();
+
+		public Reader(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public Object readValue(int depth) throws Exception {
+			byte tag = buffer.get();
+			switch (tag) {
+				case NULL:
+					return null;
+				case STRING:
+					return readString();
+				case INTEGER:
+					return buffer.getInt();
+				case LONG:
+					return buffer.getLong();
+				case BOOLEAN:
+					return buffer.get() != 0;
+				case DOUBLE:
+					return buffer.getDouble();
+				case FLOAT:
+					return buffer.getFloat();
+				case SHORT:
+					return buffer.getShort();
+				case BYTE:
+					return buffer.get();
+				case CHARACTER:
+					return buffer.getChar();
+				case VALUE: {
+					Class type = readClass(false);
+					return type.getConstructor(String.class).newInstance(readString());
+				}
+				case ENUM: {
+					Class type = readClass(false);
+					return Enum.valueOf(type, readString());
+				}
+				case COLLECTION: {
+					Class type = readClass(false);
+					Collection collection = (Collection) getDescriptor(type).newInstance();
+					int size = buffer.getInt();
+					for (int i = 0; i < size; i++) {
+						collection.add(readValue(depth + 1));
+					}
+					return collection;
+				}
+				case MAP: {
+					Class type = readClass(false);
+					Map map = (Map) getDescriptor(type).newInstance();
+					int size = buffer.getInt();
+					for (int i = 0; i < size; i++) {
+						map.put(readValue(depth + 1), readValue(depth + 1));
+					}
+					return map;
+				}
+				case OBJECT: {
+					Class type = readClass(true);
+					ClassDescriptor descriptor = getDescriptor(type);
+					Object object = descriptor.newInstance();
+					descriptor.readFields(this, object, fieldsByClass.get(type), depth);
+					return object;
+				}
+				default:
+					throw new IllegalStateException("Unknown tag " + tag + " at " + (buffer.position() - 1));
+			}
+		}
+
+		private Class readClass(boolean withFields) throws ClassNotFoundException, IOException {
+			int index = buffer.getInt();
+			if (index < classes.size()) return classes.get(index);
+			Class type = Class.forName(readString());
+			classes.add(type);
+			if (withFields) {
+				// fields are matched by name, so that the snapshot survives reordered fields
+				ClassDescriptor descriptor = getDescriptor(type);
+				Field[] fields = new Field[buffer.getInt()];
+				for (int i = 0; i < fields.length; i++) {
+					fields[i] = descriptor.getField(readString());
+				}
+				fieldsByClass.put(type, fields);
+			}
+			return type;
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return new String(bytes, IO.UTF_8);
+		}
+
+	}
+
+	// --- class descriptor ---
+
+	private static class ClassDescriptor {
+
+		private Class type;
+		private Constructor constructor;
+		private Field[] fields;
+
+		public ClassDescriptor(Class type) {
+			this.type = type;
+			List<Field> fieldList = new ArrayList<Field>();
+			// collections and maps are written by their elements
+			boolean container = Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type);
+			Class c = container ? null : type;
+			while (c != null && c != Object.class) {
+				for (Field field : c.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+						continue;
+					field.setAccessible(true);
+					fieldList.add(field);
+				}
+				c = c.getSuperclass();
+			}
+			fields = fieldList.toArray(new Field[fieldList.size()]);
+
+			try {
+				constructor = type.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException ex) {
+				// only needed for reading
+			}
+		}
+
+		public boolean isInstantiable() {
+			return constructor != null;
+		}
+
+		public Object newInstance() throws Exception {
+			if (constructor == null)
+				throw new IllegalStateException("Default constructor required: " + type.getName());
+			return constructor.newInstance();
+		}
+
+		public Field getField(String name) {
+			for (Field field : fields) {
+				if (field.getName().equals(name)) return field;
+			}
+			return null;
+		}
+
+		public void writeFields(Writer writer, Object object, int depth) throws IOException, IllegalAccessException {
+			DataOutputStream out = writer.out;
+			for (Field field : fields) {
+				Class type = field.getType();
+				if (type == int.class) {
+					out.writeByte(INTEGER);
+					out.writeInt(field.getInt(object));
+				} else if (type == long.class) {
+					out.writeByte(LONG);
+					out.writeLong(field.getLong(object));
+				} else if (type == boolean.class) {
+					out.writeByte(BOOLEAN);
+					out.writeBoolean(field.getBoolean(object));
+				} else if (type == double.class) {
+					out.writeByte(DOUBLE);
+					out.writeDouble(field.getDouble(object));
+				} else if (type == float.class) {
+					out.writeByte(FLOAT);
+					out.writeFloat(field.getFloat(object));
+				} else if (type.isArray()) {
+					throw new UnsupportedOperationException("Arrays are not supported: " + field);
+				} else {
+					writer.writeValue(field.get(object), depth + 1);
+				}
+			}
+		}
+
+		public void readFields(Reader reader, Object object, Field[] snapshotFields, int depth) throws Exception {
+			for (Field field : snapshotFields) {
+				Object value = reader.readValue(depth + 1);
+				if (field == null) continue;
+				field.set(object, value);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(fields);
+		}
+
+	}
+
+	// --- fingerprint ---
+
+	static class Fingerprint {
+
+		private long dirLastModified;
+		private long clusterLastModified;
+		private int fileCount;
+		private long totalLength;
+		private long filesLastModified;
+
+		private Fingerprint(File entitiesDir, File clusterFile) {
+			// entity files are usually replaced by moving, which updates the directory
+			dirLastModified = entitiesDir.lastModified();
+			clusterLastModified = clusterFile.lastModified();
+			// files edited in place only change themselves
+			File[] files = entitiesDir.listFiles();
+			if (files == null) return;
+			for (File file : files) {
+				if (!file.getName().endsWith(".xml")) continue;
+				fileCount++;
+				totalLength += file.length();
+				filesLastModified = Math.max(filesLastModified, file.lastModified());
+			}
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeLong(dirLastModified);
+			out.writeLong(clusterLastModified);
+			out.writeInt(fileCount);
+			out.writeLong(totalLength);
+			out.writeLong(filesLastModified);
+		}
+
+		private boolean matches(ByteBuffer buffer) {
+			return buffer.getLong() == dirLastModified & buffer.getLong() == clusterLastModified
+					& buffer.getInt() == fileCount & buffer.getLong() == totalLength
+					& buffer.getLong() == filesLastModified;
+		}
+
+	}
+
+}
@@ -14,6 +14,7 @@
  */
 package ilarkesto.persistence;
 
+import ilarkesto.concurrent.DeamonThreadFactory;
 import ilarkesto.core.base.Str;
 import ilarkesto.core.logging.Log;
 import ilarkesto.core.time.Date;
@@ -22,6 +23,8 @@ import ilarkesto.io.IO;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -29,18 +32,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class FileEntityStore implements EntityStore {
 
 	private static final Log log = Log.get(FileEntityStore.class);
 
 	public static String CLUSTER_FILE_NAME = "cluster.xml";
+	public static String TRANSACTION_LOG_DIR_NAME = "transactions";
+	public static String SNAPSHOTS_DIR_NAME = "snapshots";
 
 	private boolean versionSaved;
 	private boolean versionChecked;
@@ -79,21 +94,139 @@ public class FileEntityStore implements EntityStore {
 		this.backupDir = backupDir;
 	}
 
+	private int loaderThreads = 1;
+
+	/**
+	 * Number of threads which read and deserialize entity files in <code>load()</code>. The
+	 * <code>Serializer</code> and the <code>EntityfilePreparator</code> need to be thread safe if this is
+	 * greater than one.
+	 */
+	public void setLoaderThreads(int loaderThreads) {
+		this.loaderThreads = loaderThreads;
+	}
+
+	private boolean snapshotsEnabled;
+
+	/**
+	 * Keep a binary snapshot of each alias in <code>dir/snapshots</code> and load from it instead of the entity
+	 * files, as long as the entity files, the application version and the snapshot format did not change.
+	 * Otherwise the entity files are loaded (and prepared by the <code>EntityfilePreparator</code>) and the
+	 * snapshot is rewritten. With the transaction log, a snapshot contains the log position it was taken at and
+	 * is rewritten after each compaction, so only newer records are replayed. Without it, the first commit
+	 * deletes the snapshots. In both modes they are rewritten when the store is locked.
+	 */
+	public void setSnapshotsEnabled(boolean snapshotsEnabled) {
+		this.snapshotsEnabled = snapshotsEnabled;
+	}
+
+	private boolean transactionLogEnabled;
+
+	/**
+	 * Append every commit as one record to a transaction log instead of writing one file per entity. The entity
+	 * files are updated in the background when a log segment is full.
+	 */
+	public void setTransactionLogEnabled(boolean transactionLogEnabled) {
+		this.transactionLogEnabled = transactionLogEnabled;
+	}
+
+	private long transactionLogSegmentSize = 16 * 1024 * 1024;
+
+	public void setTransactionLogSegmentSize(long transactionLogSegmentSize) {
+		this.transactionLogSegmentSize = transactionLogSegmentSize;
+	}
+
 	// --- ---
 
 	@Override
-	public synchronized void lock() {
-		if (locked) return;
-		locked = true;
+	public void lock() {
+		synchronized (this) {
+			if (locked) return;
+			locked = true;
+		}
 		log.info("File entity store locked.");
+		writeSnapshots();
 	}
 
 	@Override
-	public synchronized void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+	public void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		if (transactionLogEnabled) {
+			appendToTransactionLog(entitiesToSave, entitiesToDelete);
+		} else {
+			writeEntityFiles(entitiesToSave, entitiesToDelete);
+		}
+	}
+
+	private void appendToTransactionLog(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		List<TransactionLog.Change> changes = new ArrayList<TransactionLog.Change>(entitiesToSave.size()
+				+ entitiesToDelete.size());
+		for (AEntity entity : entitiesToSave) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			beanSerializer.serialize(entity, out);
+			changes.add(TransactionLog.Change.save(entity.getDao().getEntityName(), entity.getId(), out.toByteArray()));
+		}
+		for (AEntity entity : entitiesToDelete) {
+			changes.add(TransactionLog.Change.delete(entity.getDao().getEntityName(), entity.getId()));
+		}
+
+		TransactionLog transactionLog;
+		long seq;
+		synchronized (this) {
+			if (locked) throw new RuntimeException("Can not persist entity changes. EntityStore already locked.");
+			if (!versionSaved) saveVersion();
+			transactionLog = getTransactionLog();
+			transactionLog.open();
+			seq = transactionLog.append(changes);
+			unpublishedCommits.put(seq, new LoggedCommit(entitiesToSave, entitiesToDelete));
+		}
+
+		// wait outside the monitor, so that concurrent commits get flushed together
+		try {
+			transactionLog.awaitDurable(seq);
+		} catch (RuntimeException ex) {
+			// only thrown when the log failed, it refuses all further records; whether the record reached the disk
+			// is decided by the replay after a restart
+			synchronized (this) {
+				unpublishedCommits.remove(seq);
+			}
+			throw ex;
+		}
+		publishLoggedCommits(seq);
+		log.debug("Entity changes appended to transaction log:", changes);
+	}
+
+	/**
+	 * Writes the closed transaction log segments into the entity files now, instead of waiting for the background
+	 * compaction.
+	 */
+	public void compactTransactionLog() {
+		if (transactionLogEnabled) getTransactionLog().compact();
+	}
+
+	/**
+	 * Publishes all logged commits up to the given one to readers. Records become durable in sequence order, so
+	 * earlier commits are durable as well and get published first, even if their threads did not wake up yet.
+	 */
+	private synchronized void publishLoggedCommits(long durableSeq) {
+		SortedMap<Long, LoggedCommit> commits = unpublishedCommits.headMap(durableSeq + 1);
+		for (LoggedCommit commit : commits.values()) {
+			commit.publish();
+		}
+		commits.clear();
+		publishedSeq = Math.max(publishedSeq, durableSeq);
+	}
+
+	private synchronized void writeEntityFiles(Collection<AEntity> entitiesToSave,
+			Collection<AEntity> entitiesToDelete) {
 		if (locked) throw new RuntimeException("Can not persist entity changes. EntityStore already locked.");
 
 		if (!versionSaved) saveVersion();
 
+		// the directory fingerprint might not change within the same second
+		if (snapshotsEnabled && !snapshotsDeleted) {
+			IO.delete(new File(dir + "/" + SNAPSHOTS_DIR_NAME));
+			snapshotsDeleted = true;
+		}
+
 		// create operations
 		List<Operation> operations = new ArrayList<FileEntityStore.Operation>(entitiesToSave.size()
 				+ entitiesToDelete.size());
@@ -114,6 +247,11 @@ public class FileEntityStore implements EntityStore {
 			operation.complete();
 		}
 
+		// publish to readers
+		for (Operation operation : operations) {
+			operation.publish();
+		}
+
 		StringBuilder sb = new StringBuilder();
 		for (Operation operation : operations) {
 			sb.append("\n    ").append(operation.toString());
@@ -129,15 +267,11 @@ public class FileEntityStore implements EntityStore {
 
 	@Override
 	public AEntity getById(String id) {
-		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> daoEntry : data.entrySet()) {
-			AEntity entity = daoEntry.getValue().get(id);
-			if (entity != null) return entity;
-		}
-		return null;
+		return entitiesById.get(id);
 	}
 
 	@Override
-	public synchronized AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+	public AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> daoEntry : data.entrySet()) {
 			if (typeFilter != null && !typeFilter.test(daoEntry.getKey())) continue;
 			for (AEntity entity : daoEntry.getValue().values()) {
@@ -147,21 +281,21 @@ public class FileEntityStore implements EntityStore {
 		return null;
 	}
 
+	/**
+	 * Returns the existing entities for the given ids in the order of the ids.
+	 */
 	@Override
 	public List<AEntity> getByIds(Collection<String> ids) {
 		List<AEntity> result = new ArrayList<AEntity>(ids.size());
-		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
-			Map<String, AEntity> entites = entry.getValue();
-			for (String id : ids) {
-				AEntity entity = entites.get(id);
-				if (entity != null) result.add(entity);
-			}
+		for (String id : ids) {
+			AEntity entity = entitiesById.get(id);
+			if (entity != null) result.add(entity);
 		}
 		return result;
 	}
 
 	@Override
-	public synchronized Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+	public Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		Set<AEntity> result = new HashSet<AEntity>();
 		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
 			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
@@ -177,7 +311,7 @@ public class FileEntityStore implements EntityStore {
 	}
 
 	@Override
-	public synchronized int getEntitiesCount(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+	public int getEntitiesCount(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		int result = 0;
 		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
 			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
@@ -194,7 +328,31 @@ public class FileEntityStore implements EntityStore {
 
 	private Map<Class, String> aliases = new HashMap<Class, String>();
 
-	private Map<Class<AEntity>, Map<String, AEntity>> data = new HashMap<Class<AEntity>, Map<String, AEntity>>();
+	// concurrent maps, so that readers never wait for a commit
+	private Map<Class<AEntity>, Map<String, AEntity>> data = new ConcurrentHashMap<Class<AEntity>, Map<String, AEntity>>(
+			16, 0.75f, 1);
+
+	private Map<String, AEntity> entitiesById = new ConcurrentHashMap<String, AEntity>();
+
+	private EntityLoadStatistics loadStatistics = new EntityLoadStatistics();
+
+	private TransactionLog transactionLog;
+
+	private Map<String, List<TransactionLog.Change>> transactionLogChanges;
+
+	// commits appended to the transaction log, which are not durable yet, by sequence number
+	private SortedMap<Long, LoggedCommit> unpublishedCommits = new TreeMap<Long, LoggedCommit>();
+
+	// sequence number of the last transaction log record, which is visible in memory
+	private long publishedSeq;
+
+	private boolean snapshotsDeleted;
+
+	private Object snapshotLock = new Object();
+
+	public EntityLoadStatistics getLoadStatistics() {
+		return loadStatistics;
+	}
 
 	@Override
 	public void setAlias(String alias, Class cls) {
@@ -208,11 +366,97 @@ public class FileEntityStore implements EntityStore {
 
 		aliases.put(cls, alias);
 
-		Map<String, AEntity> entities = new HashMap<String, AEntity>();
+		Map<String, AEntity> entities = new ConcurrentHashMap<String, AEntity>();
 		data.put((Class<AEntity>) cls, entities);
 
 		beanSerializer.setAlias(alias, cls);
 
+		EntitySnapshot snapshot = snapshotsEnabled ? createSnapshot(alias) : null;
+		long snapshotSeq = snapshot == null ? -1 : loadSnapshot(snapshot, entities, alias);
+		EntitySnapshot.Fingerprint fingerprint = null;
+		if (snapshotSeq < 0) {
+			if (snapshot != null) fingerprint = snapshot.createFingerprint();
+			loadEntities(entities, cls, alias, deleteOnFailure);
+		}
+		if (transactionLogEnabled) replayTransactionLog(entities, alias, Math.max(snapshotSeq, 0), deleteOnFailure);
+
+		entitiesById.putAll(entities);
+
+		if (fingerprint != null && !entities.isEmpty()) {
+			try {
+				snapshot.save(entities.values(), publishedSeq, fingerprint);
+			} catch (Exception ex) {
+				log.warn("Writing snapshot failed:", alias, ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the transaction log position of the loaded snapshot or -1 if it can not be used.
+	 */
+	private long loadSnapshot(EntitySnapshot snapshot, Map<String, AEntity> entities, String alias) {
+		Collection<AEntity> snapshotEntities = snapshot.load();
+		if (snapshotEntities == null) return -1;
+		long seq = snapshot.getLogSeq();
+		if (transactionLogEnabled && !getTransactionLog().isComplete(seq)) {
+			log.info("Transaction log does not continue snapshot. Ignoring snapshot:", alias);
+			return -1;
+		}
+		for (AEntity entity : snapshotEntities) {
+			entities.put(entity.getId(), entity);
+		}
+		log.info("Loaded", entities.size(), "entities from snapshot:", alias);
+		return seq;
+	}
+
+	private EntitySnapshot createSnapshot(String alias) {
+		return new EntitySnapshot(new File(dir + "/" + SNAPSHOTS_DIR_NAME + "/" + alias + ".bin"), version, new File(
+				dir + "/" + alias), new File(dir + "/" + CLUSTER_FILE_NAME));
+	}
+
+	/**
+	 * Rewrites the snapshots of all loaded aliases from memory. The entities, the fingerprints of the entity files
+	 * and the transaction log position are taken under the store monitor, so that they match.
+	 */
+	private void writeSnapshots() {
+		if (!snapshotsEnabled) return;
+		// compaction and lock() may call this concurrently
+		synchronized (snapshotLock) {
+			writeSnapshotsLocked();
+		}
+	}
+
+	private void writeSnapshotsLocked() {
+		List<String> aliasList = new ArrayList<String>();
+		List<Collection<AEntity>> entitiesList = new ArrayList<Collection<AEntity>>();
+		List<EntitySnapshot> snapshots = new ArrayList<EntitySnapshot>();
+		List<EntitySnapshot.Fingerprint> fingerprints = new ArrayList<EntitySnapshot.Fingerprint>();
+		long seq;
+		synchronized (this) {
+			seq = publishedSeq;
+			for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
+				String alias = aliases.get(entry.getKey());
+				EntitySnapshot snapshot = createSnapshot(alias);
+				aliasList.add(alias);
+				snapshots.add(snapshot);
+				fingerprints.add(snapshot.createFingerprint());
+				entitiesList.add(new ArrayList<AEntity>(entry.getValue().values()));
+			}
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < snapshots.size(); i++) {
+			try {
+				snapshots.get(i).save(entitiesList.get(i), seq, fingerprints.get(i));
+			} catch (Exception ex) {
+				log.warn("Writing snapshot failed:", aliasList.get(i), ex);
+			}
+		}
+		log.info("Snapshots written:", snapshots.size(), "aliases at transaction", seq, "in",
+			(System.currentTimeMillis() - start), "ms");
+	}
+
+	private void loadEntities(Map<String, AEntity> entities, Class<? extends AEntity> cls, String alias,
+			boolean deleteOnFailure) {
 		File entitiesDir = new File(dir + "/" + alias);
 
 		File clusterFile = new File(dir + "/" + CLUSTER_FILE_NAME);
@@ -223,31 +467,84 @@ public class FileEntityStore implements EntityStore {
 		File[] files = entitiesDir.listFiles();
 		int count = files == null ? 0 : files.length;
 		log.info("Loading", count, "entitiy files:", alias);
-		if (count > 0) {
-			for (int i = 0; i < files.length; i++) {
-				File file = files[i];
-				String filename = file.getName();
-
-				if (filename.equals(CLUSTER_FILE_NAME)) continue;
-				if (!filename.endsWith(".xml")) {
-					log.warn("Unsupported file. Skipping:", filename);
-					continue;
-				}
-
+		List<File> entityFiles = new ArrayList<File>(count);
+		for (int i = 0; i < count; i++) {
+			File file = files[i];
+			String filename = file.getName();
+
+			if (filename.equals(CLUSTER_FILE_NAME)) continue;
+			if (!filename.endsWith(".xml")) {
+				log.warn("Unsupported file. Skipping:", filename);
+				continue;
+			}
+			entityFiles.add(file);
+		}
+		Collections.sort(entityFiles);
+
+		long start = System.currentTimeMillis();
+		EntityLoadStatistics aliasStatistics = new EntityLoadStatistics();
+		if (loaderThreads > 1 && entityFiles.size() > 1) {
+			loadObjectsParallel(entityFiles, entities, cls, alias, deleteOnFailure, aliasStatistics);
+		} else {
+			for (File file : entityFiles) {
 				try {
-					loadObject(file, entities, cls, alias);
+					loadObject(file, entities, cls, alias, aliasStatistics);
 				} catch (Exception ex) {
-					if (!deleteOnFailure) throw new RuntimeException("Loading object from " + file + " failed", ex);
-					log.warn("Loading object from file failed:", file, ex);
-					if (true) { // delete
-						backup(file, alias);
-						file.delete();
-					}
+					handleLoadFailure(file, alias, deleteOnFailure, ex);
+				}
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		aliasStatistics.addTime(time);
+		loadStatistics.addTime(time);
+		if (!entityFiles.isEmpty()) log.info("Loaded entity files:", alias, aliasStatistics);
+	}
+
+	/**
+	 * Replays the changes of the alias from records after <code>afterSeq</code>.
+	 */
+	private void replayTransactionLog(Map<String, AEntity> container, String alias, long afterSeq,
+			boolean deleteOnFailure) {
+		if (transactionLogChanges == null) {
+			publishedSeq = getTransactionLog().getLastSeq();
+			transactionLogChanges = new HashMap<String, List<TransactionLog.Change>>();
+			for (TransactionLog.Change change : getTransactionLog().readAll()) {
+				List<TransactionLog.Change> changes = transactionLogChanges.get(change.getAlias());
+				if (changes == null) {
+					changes = new ArrayList<TransactionLog.Change>();
+					transactionLogChanges.put(change.getAlias(), changes);
 				}
+				changes.add(change);
+			}
+		}
+
+		List<TransactionLog.Change> changes = transactionLogChanges.remove(alias);
+		if (changes == null) return;
+		log.info("Replaying", changes.size(), "changes from transaction log:", alias);
+		for (TransactionLog.Change change : changes) {
+			if (change.getSeq() <= afterSeq) continue;
+			if (change.isDelete()) {
+				container.remove(change.getId());
+				continue;
+			}
+			try {
+				AEntity entity = (AEntity) beanSerializer.deserialize(new ByteArrayInputStream(change.getData()));
+				container.put(entity.getId(), entity);
+			} catch (Exception ex) {
+				if (!deleteOnFailure) throw new RuntimeException("Replaying " + change + " failed", ex);
+				log.warn("Replaying change from transaction log failed:", change, ex);
 			}
 		}
 	}
 
+	private synchronized TransactionLog getTransactionLog() {
+		if (transactionLog == null) {
+			transactionLog = new TransactionLog(new File(dir + "/" + TRANSACTION_LOG_DIR_NAME),
+					transactionLogSegmentSize, new TransactionLogCompactor());
+		}
+		return transactionLog;
+	}
+
 	private void loadCluster(File file, Map<String, AEntity> container, Class type, String alias) {
 		if (entityfilePreparator != null) entityfilePreparator.prepareClusterfile(file, type, alias);
 
@@ -270,7 +567,57 @@ public class FileEntityStore implements EntityStore {
 		}
 	}
 
-	private void loadObject(File file, Map<String, AEntity> container, Class type, String alias) {
+	private void loadObjectsParallel(List<File> files, Map<String, AEntity> container, final Class type,
+			final String alias, boolean deleteOnFailure, final EntityLoadStatistics aliasStatistics) {
+		ExecutorService executor = Executors.newFixedThreadPool(loaderThreads, new DeamonThreadFactory());
+		try {
+			List<Future<AEntity>> futures = new ArrayList<Future<AEntity>>(files.size());
+			for (final File file : files) {
+				futures.add(executor.submit(new Callable<AEntity>() {
+
+					@Override
+					public AEntity call() throws Exception {
+						return readObject(file, type, alias, aliasStatistics);
+					}
+				}));
+			}
+
+			// collect in file order, so that failures are reported like in sequential loading
+			for (int i = 0; i < files.size(); i++) {
+				File file = files.get(i);
+				AEntity entity;
+				try {
+					entity = futures.get(i).get();
+				} catch (InterruptedException ex) {
+					throw new RuntimeException("Loading entity files interrupted: " + alias, ex);
+				} catch (ExecutionException ex) {
+					handleLoadFailure(file, alias, deleteOnFailure, ex.getCause());
+					continue;
+				}
+				container.put(entity.getId(), entity);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void handleLoadFailure(File file, String alias, boolean deleteOnFailure, Throwable ex) {
+		if (!deleteOnFailure) throw new RuntimeException("Loading object from " + file + " failed", ex);
+		log.warn("Loading object from file failed:", file, ex);
+		if (true) { // delete
+			backup(file, alias);
+			file.delete();
+		}
+	}
+
+	private void loadObject(File file, Map<String, AEntity> container, Class type, String alias,
+			EntityLoadStatistics aliasStatistics) {
+		AEntity entity = readObject(file, type, alias, aliasStatistics);
+		container.put(entity.getId(), entity);
+	}
+
+	private AEntity readObject(File file, Class type, String alias, EntityLoadStatistics aliasStatistics) {
+		long start = System.currentTimeMillis();
 		if (entityfilePreparator != null) entityfilePreparator.prepareEntityfile(file, type, alias);
 
 		BufferedInputStream in;
@@ -280,12 +627,17 @@ public class FileEntityStore implements EntityStore {
 			throw new RuntimeException(ex);
 		}
 		AEntity entity = (AEntity) beanSerializer.deserialize(in);
-		container.put(entity.getId(), entity);
 		try {
 			in.close();
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
+
+		long bytes = file.length();
+		long time = System.currentTimeMillis() - start;
+		aliasStatistics.addFile(file, bytes, time);
+		loadStatistics.addFile(file, bytes, time);
+		return entity;
 	}
 
 	private void backup(File src, String type) {
@@ -354,12 +706,84 @@ public class FileEntityStore implements EntityStore {
 		return new File(dir + "/store.properties");
 	}
 
+	private boolean isBackupHostile(String alias) {
+		for (Map.Entry<Class, String> entry : aliases.entrySet()) {
+			if (alias.equals(entry.getValue())) return BackupHostile.class.isAssignableFrom(entry.getKey());
+		}
+		return false;
+	}
+
+	class TransactionLogCompactor implements TransactionLog.Compactor {
+
+		@Override
+		public void compact(List<TransactionLog.Change> changes) {
+			// only the last change of each entity matters
+			Map<String, TransactionLog.Change> latestChanges = new LinkedHashMap<String, TransactionLog.Change>();
+			for (TransactionLog.Change change : changes) {
+				String key = change.getAlias() + "/" + change.getId();
+				latestChanges.remove(key);
+				latestChanges.put(key, change);
+			}
+
+			// the segment is deleted afterwards, so the entity files have to be durable
+			Set<File> changedDirs = new HashSet<File>();
+			for (TransactionLog.Change change : latestChanges.values()) {
+				File file = new File(dir + "/" + change.getAlias() + "/" + change.getId() + ".xml");
+				if (file.exists() && !isBackupHostile(change.getAlias())) backup(file, change.getAlias());
+				changedDirs.add(file.getParentFile());
+				if (change.isDelete()) {
+					IO.delete(file);
+					continue;
+				}
+				File tmpFile = new File(dir + "/tmp/" + change.getId() + ".xml");
+				IO.writeDurable(change.getData(), tmpFile);
+				IO.move(tmpFile, file, true);
+			}
+			for (File changedDir : changedDirs) {
+				IO.forceDirectory(changedDir);
+			}
+			log.debug("Transaction log compacted:", latestChanges.size(), "entity files written");
+		}
+
+		@Override
+		public void compactionFinished() {
+			writeSnapshots();
+		}
+
+	}
+
+	class LoggedCommit {
+
+		private Collection<AEntity> entitiesToSave;
+		private Collection<AEntity> entitiesToDelete;
+
+		public LoggedCommit(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+			// copies, since the transaction clears its collections after persisting
+			this.entitiesToSave = new ArrayList<AEntity>(entitiesToSave);
+			this.entitiesToDelete = new ArrayList<AEntity>(entitiesToDelete);
+		}
+
+		void publish() {
+			for (AEntity entity : entitiesToSave) {
+				getDao(entity.getClass()).put(entity.getId(), entity);
+				entitiesById.put(entity.getId(), entity);
+			}
+			for (AEntity entity : entitiesToDelete) {
+				getDao(entity.getClass()).remove(entity.getId());
+				entitiesById.remove(entity.getId());
+			}
+		}
+
+	}
+
 	abstract class Operation {
 
 		protected abstract void prepare();
 
 		protected abstract void complete();
 
+		protected abstract void publish();
+
 		protected AEntity entity;
 
 		public Operation(AEntity entity) {
@@ -389,7 +813,12 @@ public class FileEntityStore implements EntityStore {
 		@Override
 		protected void complete() {
 			IO.move(tmpFile, file, true);
+		}
+
+		@Override
+		protected void publish() {
 			getDao(entity.getClass()).put(entity.getId(), entity);
+			entitiesById.put(entity.getId(), entity);
 		}
 
 		public void backupExistingFile() {
@@ -444,7 +873,12 @@ public class FileEntityStore implements EntityStore {
 		@Override
 		protected void complete() {
 			IO.delete(file);
+		}
+
+		@Override
+		protected void publish() {
 			getDao(entity.getClass()).remove(entity.getId());
+			entitiesById.remove(entity.getId());
 		}
 
 		@Override
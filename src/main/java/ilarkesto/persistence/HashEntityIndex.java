@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index for lookups by exact value.
+ */
+public abstract class HashEntityIndex<E extends AEntity, K> extends AEntityIndex<E, K> {
+
+	public HashEntityIndex(String name) {
+		super(name);
+	}
+
+	@Override
+	protected Map<K, Set<E>> createMap() {
+		return new HashMap<K, Set<E>>();
+	}
+
+}
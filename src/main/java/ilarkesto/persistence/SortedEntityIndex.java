@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index for lookups by exact value and by value ranges. The indexed values need to be
+ * <code>Comparable</code>.
+ */
+public abstract class SortedEntityIndex<E extends AEntity, K extends Comparable<K>> extends AEntityIndex<E, K> {
+
+	public SortedEntityIndex(String name) {
+		super(name);
+	}
+
+	@Override
+	protected Map<K, Set<E>> createMap() {
+		return new TreeMap<K, Set<E>>();
+	}
+
+	/**
+	 * Returns the entities with values from <code>from</code> (inclusive) to <code>to</code> (exclusive).
+	 * <code>null</code> means unbounded.
+	 */
+	synchronized Set<E> getRange(K from, K to) {
+		NavigableMap<K, Set<E>> map = (NavigableMap<K, Set<E>>) getEntitiesByKey();
+		if (from != null && to != null) return getAll(map.subMap(from, true, to, false).values());
+		if (from != null) return getAll(map.tailMap(from, true).values());
+		if (to != null) return getAll(map.headMap(to, false).values());
+		return getAll(map.values());
+	}
+
+	/**
+	 * Tests if one of the current values of the entity is in the range.
+	 */
+	public final boolean matchesRange(E entity, K from, K to) {
+		for (K key : getKeys(entity)) {
+			if (from != null && key.compareTo(from) < 0) continue;
+			if (to != null && key.compareTo(to) >= 0) continue;
+			return true;
+		}
+		return false;
+	}
+
+}
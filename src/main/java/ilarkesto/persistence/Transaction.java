@@ -19,9 +19,13 @@ import ilarkesto.core.logging.Log;
 import ilarkesto.fp.Predicate;
 import ilarkesto.id.IdentifiableResolver;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 class Transaction implements IdentifiableResolver<AEntity> {
@@ -38,6 +42,12 @@ class Transaction implements IdentifiableResolver<AEntity> {
 	private Set<AEntity> entitiesToDelete = new HashSet<AEntity>();
 	private Set<AEntity> entitiesRegistered = new HashSet<AEntity>();
 
+	// indexes on the entities above, so that reads inside a transaction don't scan them
+	private Map<String, AEntity> entitiesToSaveById = new HashMap<String, AEntity>();
+	private Map<String, AEntity> entitiesRegisteredById = new HashMap<String, AEntity>();
+	private Map<Class, Set<AEntity>> entitiesByType = new HashMap<Class, Set<AEntity>>();
+	private Set<String> deletedIds = new HashSet<String>();
+
 	public Transaction(EntityStore entityStore) {
 		synchronized (getClass()) {
 			no = ++count;
@@ -49,75 +59,111 @@ class Transaction implements IdentifiableResolver<AEntity> {
 	synchronized void saveEntity(AEntity entity) {
 		if (entity == null) throw new NullPointerException("entity");
 		entity.getId();
-		if (entitiesToSave.contains(entity) || entitiesToDelete.contains(entity)) return;
+		if (entitiesToDelete.contains(entity)) return;
+		// modified while ensuring integrity, so it needs to be checked again, even if it was saved before
+		if (integrityQueue != null) integrityQueue.add(entity);
+		if (entitiesToSave.contains(entity)) return;
 		log.debug("SAVE", toStringWithType(entity), "@", this);
 		entitiesToSave.add(entity);
+		entitiesToSaveById.put(entity.getId(), entity);
+		addToTypeIndex(entity);
 	}
 
 	synchronized void deleteEntity(AEntity entity) {
 		if (entitiesToDelete.contains(entity)) return;
 		log.debug("DELETE", toStringWithType(entity), "@", this);
 		entitiesToDelete.add(entity);
+		deletedIds.add(entity.getId());
 		entitiesToSave.remove(entity);
+		entitiesToSaveById.remove(entity.getId());
 	}
 
 	synchronized void registerEntity(AEntity entity) {
 		entitiesRegistered.add(entity);
+		entitiesRegisteredById.put(entity.getId(), entity);
+		addToTypeIndex(entity);
+	}
+
+	private void addToTypeIndex(AEntity entity) {
+		Set<AEntity> entities = entitiesByType.get(entity.getClass());
+		if (entities == null) {
+			entities = new HashSet<AEntity>();
+			entitiesByType.put(entity.getClass(), entities);
+		}
+		entities.add(entity);
 	}
 
 	private boolean committed;
 
-	synchronized void commit() {
+	/**
+	 * Entities saved or modified while ensuring integrity, which need to be integrated in the next pass. Only set
+	 * during commit.
+	 */
+	private Set<AEntity> integrityQueue;
+
+	/**
+	 * Returns the metrics of the commit or <code>null</code> if the transaction was empty.
+	 */
+	synchronized TransactionEvent commit() {
 		if (committed) throw new RuntimeException("Transaction already committed: " + this);
 		committed = true;
 
 		if (entitiesToDelete.isEmpty() && entitiesToSave.isEmpty()) {
 			log.debug("Empty Transaction committed:", this);
-			return;
+			return null;
 		} else {
 			log.info("Committing transaction:", this);
 		}
 
+		long start = System.currentTimeMillis();
 		Set<AEntity> integratedEntities = new HashSet<AEntity>(entitiesToSave.size());
-
-		int loopcount = 0;
-		while (!integratedEntities.containsAll(entitiesToSave)) {
-
-			if (loopcount > 0) {
-				HashSet<AEntity> tmp = new HashSet<AEntity>(entitiesToSave);
-				tmp.removeAll(integratedEntities);
-				log.debug("  Entities changed after ensuring integrity:", tmp);
-			}
-
-			if (loopcount > 1000) throw new RuntimeException("Maximum loops reached while commiting:" + this);
-
-			entitiesToSave.removeAll(entitiesToDelete);
-			for (AEntity entity : new HashSet<AEntity>(entitiesToSave)) {
-				log.debug("Ensuring integrity for", entity.getClass().getSimpleName(), entity.getId());
-				entity.ensureIntegrity();
-				integratedEntities.add(entity);
+		entitiesToSave.removeAll(entitiesToDelete);
+		integrityQueue = new LinkedHashSet<AEntity>(entitiesToSave);
+		int passes = 0;
+		try {
+			while (!integrityQueue.isEmpty()) {
+				if (passes > 0) log.debug("  Entities changed after ensuring integrity:", integrityQueue);
+				if (passes > 1000) throw new RuntimeException("Maximum loops reached while commiting:" + this);
+
+				List<AEntity> pass = new ArrayList<AEntity>(integrityQueue);
+				integrityQueue.clear();
+				for (AEntity entity : pass) {
+					if (entitiesToDelete.contains(entity)) continue;
+					log.debug("Ensuring integrity for", entity.getClass().getSimpleName(), entity.getId());
+					entity.ensureIntegrity();
+					integratedEntities.add(entity);
+				}
+				passes++;
 			}
-			entitiesToSave.removeAll(entitiesToDelete);
-
-			loopcount++;
+		} finally {
+			integrityQueue = null;
 		}
+		entitiesToSave.removeAll(entitiesToDelete);
+		long integrityTime = System.currentTimeMillis() - start;
 
 		log.debug("Persisting entities:", entitiesToSave, entitiesToDelete);
+		start = System.currentTimeMillis();
 		entityStore.persist(entitiesToSave, entitiesToDelete);
+		long persistTime = System.currentTimeMillis() - start;
 
-		log.debug("Transaction committed:", this);
+		TransactionEvent event = new TransactionEvent(this, new ArrayList<AEntity>(entitiesToSave),
+				new ArrayList<AEntity>(entitiesToDelete), integratedEntities.size(), passes, integrityTime, persistTime);
+		log.debug("Transaction committed:", this, event);
 		entitiesToSave.clear();
 		entitiesToDelete.clear();
 		entitiesRegistered.clear();
+		entitiesToSaveById.clear();
+		entitiesRegisteredById.clear();
+		entitiesByType.clear();
+		deletedIds.clear();
+		return event;
 	}
 
 	synchronized boolean isPersistent(String id) {
 		AEntity result = entityStore.getById(id);
 		if (result != null) return true;
 
-		for (AEntity entity : entitiesToSave) {
-			if (id.equals(entity.getId())) return true;
-		}
+		if (entitiesToSaveById.containsKey(id)) return true;
 
 		// ignore registeredEntities!
 		return false;
@@ -125,55 +171,37 @@ class Transaction implements IdentifiableResolver<AEntity> {
 
 	@Override
 	public synchronized AEntity getById(String id) {
+		if (deletedIds.contains(id)) return null;
 		AEntity result = entityStore.getById(id);
-		if (result == null && !entitiesToSave.isEmpty()) {
-			for (AEntity entity : entitiesToSave) {
-				if (id.equals(entity.getId())) {
-					result = entity;
-					break;
-				}
-			}
-		}
-		if (result == null && !entitiesRegistered.isEmpty()) {
-			for (AEntity entity : entitiesRegistered) {
-				if (id.equals(entity.getId())) {
-					result = entity;
-					break;
-				}
-			}
-		}
-		if (result != null && entitiesToDelete.contains(result)) return null;
+		if (result == null) result = entitiesToSaveById.get(id);
+		if (result == null) result = entitiesRegisteredById.get(id);
 		return result;
 	}
 
+	/**
+	 * Returns the existing entities for the given ids in the order of the ids.
+	 */
 	@Override
 	public synchronized List<AEntity> getByIds(Collection<String> ids) {
-		List<AEntity> result = entityStore.getByIds(ids);
-		for (AEntity entity : entitiesToSave) {
-			if (ids.contains(entity.getId())) {
-				result.remove(entity);
-				result.add(entity);
-			}
+		List<AEntity> result = new ArrayList<AEntity>(ids.size());
+		for (String id : ids) {
+			AEntity entity = getById(id);
+			if (entity != null) result.add(entity);
 		}
-		for (AEntity entity : entitiesRegistered) {
-			if (ids.contains(entity.getId())) {
-				result.remove(entity);
-				result.add(entity);
-			}
-		}
-		result.removeAll(entitiesToDelete);
 		return result;
 	}
 
 	synchronized Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		Set<AEntity> result = entityStore.getEntities(typeFilter, entityFilter);
-		for (AEntity entity : entitiesToSave) {
-			if (Persist.test(entity, typeFilter, entityFilter)) result.add(entity);
+		for (Map.Entry<Class, Set<AEntity>> entry : entitiesByType.entrySet()) {
+			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
+			for (AEntity entity : entry.getValue()) {
+				if (entityFilter == null || entityFilter.test(entity)) result.add(entity);
+			}
 		}
-		for (AEntity entity : entitiesRegistered) {
-			if (Persist.test(entity, typeFilter, entityFilter)) result.add(entity);
+		for (AEntity entity : entitiesToDelete) {
+			result.remove(entity);
 		}
-		result.removeAll(entitiesToDelete);
 		return result;
 	}
 
@@ -181,16 +209,28 @@ class Transaction implements IdentifiableResolver<AEntity> {
 		return entityStore.getEntitiesCount(typeFilter, entityFilter);
 	}
 
+	/**
+	 * Returns the entities saved or registered in this transaction, which are not in the entity store yet.
+	 */
+	synchronized Set<AEntity> getLocalEntities(Predicate<Class> typeFilter) {
+		Set<AEntity> result = new HashSet<AEntity>();
+		for (Map.Entry<Class, Set<AEntity>> entry : entitiesByType.entrySet()) {
+			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
+			result.addAll(entry.getValue());
+		}
+		result.removeAll(entitiesToDelete);
+		return result;
+	}
+
 	synchronized AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		AEntity result = entityStore.getEntity(typeFilter, entityFilter);
 		if (result == null) {
-			for (AEntity entity : entitiesToSave) {
-				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.contains(entity))
-					return entity;
-			}
-			for (AEntity entity : entitiesRegistered) {
-				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.contains(entity))
-					return entity;
+			for (Map.Entry<Class, Set<AEntity>> entry : entitiesByType.entrySet()) {
+				if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
+				for (AEntity entity : entry.getValue()) {
+					if (entityFilter != null && !entityFilter.test(entity)) continue;
+					if (!entitiesToDelete.contains(entity)) return entity;
+				}
 			}
 		} else {
 			if (entitiesToDelete.contains(result)) return null;
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import java.util.Collection;
+import java.util.EventObject;
+
+/**
+ * The entities and metrics of a committed transaction. Fired after the entity store published the changes.
+ */
+public class TransactionEvent extends EventObject {
+
+	private Collection<AEntity> savedEntities;
+	private Collection<AEntity> deletedEntities;
+	private int integratedCount;
+	private int integrityPasses;
+	private long integrityTime;
+	private long persistTime;
+
+	public TransactionEvent(Object source, Collection<AEntity> savedEntities, Collection<AEntity> deletedEntities,
+			int integratedCount, int integrityPasses, long integrityTime, long persistTime) {
+		super(source);
+		this.savedEntities = savedEntities;
+		this.deletedEntities = deletedEntities;
+		this.integratedCount = integratedCount;
+		this.integrityPasses = integrityPasses;
+		this.integrityTime = integrityTime;
+		this.persistTime = persistTime;
+	}
+
+	public Collection<AEntity> getSavedEntities() {
+		return savedEntities;
+	}
+
+	public Collection<AEntity> getDeletedEntities() {
+		return deletedEntities;
+	}
+
+	public int getSavedCount() {
+		return savedEntities.size();
+	}
+
+	public int getDeletedCount() {
+		return deletedEntities.size();
+	}
+
+	/**
+	 * Number of entities on which <code>ensureIntegrity()</code> was called.
+	 */
+	public int getIntegratedCount() {
+		return integratedCount;
+	}
+
+	/**
+	 * Number of passes over entities which were saved or modified while ensuring integrity.
+	 */
+	public int getIntegrityPasses() {
+		return integrityPasses;
+	}
+
+	public long getIntegrityTime() {
+		return integrityTime;
+	}
+
+	public long getPersistTime() {
+		return persistTime;
+	}
+
+	@Override
+	public String toString() {
+		return "saved: " + savedEntities.size() + ", deleted: " + deletedEntities.size() + ", integrated: " + integratedCount
+				+ " in " + integrityPasses + " passes (" + integrityTime + " ms), persisted in " + persistTime + " ms";
+	}
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed entity changes. Every commit is written as one framed record (length, CRC32,
+ * payload) to the current segment file. Concurrent committers are flushed together with a single fsync (group
+ * commit). Full segments are handed to a <code>Compactor</code> in the background and deleted afterwards. Records
+ * become durable in sequence order. If a write fails, the log refuses all further records, since the state of the
+ * segment is unknown. Reopening the log skips a torn record.
+ * <p>
+ * Segments are written with a <code>FileOutputStream</code> instead of a <code>FileChannel</code>. An interrupt
+ * of the flushing thread would close a channel and fail the log for all committers.
+ */
+class TransactionLog {
+
+	private static final Log log = Log.get(TransactionLog.class);
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final byte OP_SAVE = 1;
+	private static final byte OP_DELETE = 2;
+
+	private File dir;
+	private long segmentSize;
+	private Compactor compactor;
+
+	private FileOutputStream out;
+	private File currentSegment;
+	private long currentSegmentLength;
+
+	private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+	private long enqueuedSeq;
+	private long durableSeq;
+	private boolean flushing;
+	private RuntimeException failure;
+
+	private ExecutorService compactionExecutor;
+	private Object compactionLock = new Object();
+
+	public TransactionLog(File dir, long segmentSize, Compactor compactor) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.compactor = compactor;
+	}
+
+	/**
+	 * Reads all complete records from all segments in commit order. A torn or corrupt record ends the segment
+	 * it was found in.
+	 */
+	public List<Change> readAll() {
+		List<Change> ret = new ArrayList<Change>();
+		for (File segment : listSegments()) {
+			readSegment(segment, ret);
+		}
+		return ret;
+	}
+
+	public synchronized void open() {
+		if (out != null) return;
+		IO.createDirectory(dir);
+		List<File> segments = listSegments();
+		long seq = readLastSeq(segments);
+		enqueuedSeq = seq;
+		durableSeq = seq;
+		openSegment(seq + 1);
+		compactionExecutor = Executors.newSingleThreadExecutor(new DeamonThreadFactory());
+		if (!segments.isEmpty()) scheduleCompaction();
+	}
+
+	/**
+	 * Tests if the log still contains all records after the given sequence number, so that replaying them
+	 * restores the state after it.
+	 */
+	public synchronized boolean isComplete(long afterSeq) {
+		List<File> segments = listSegments();
+		if (segments.isEmpty()) return afterSeq == 0;
+		return getFirstSeq(segments.get(0)) <= afterSeq + 1 && afterSeq <= readLastSeq(segments);
+	}
+
+	/**
+	 * Returns the sequence number of the last durable record.
+	 */
+	public synchronized long getLastSeq() {
+		if (out != null) return durableSeq;
+		return readLastSeq(listSegments());
+	}
+
+	/**
+	 * Queues a record for the given changes and returns its sequence number. The record is durable after
+	 * <code>awaitDurable()</code> returned for this number.
+	 */
+	public synchronized long append(List<Change> changes) {
+		if (failure != null) throw new RuntimeException("Transaction log failed", failure);
+		if (out == null) throw new IllegalStateException("Transaction log not opened: " + dir);
+		long seq = ++enqueuedSeq;
+		pending.add(createRecord(seq, changes));
+		return seq;
+	}
+
+	/**
+	 * Returns when the record with the given number and all records before it are durable. Throws if a write
+	 * failed before. Interrupts do not abort the wait, since the record may still become durable. The interrupt
+	 * status is restored before returning.
+	 */
+	public void awaitDurable(long seq) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				List<ByteBuffer> batch;
+				long batchSeq;
+				synchronized (this) {
+					while (flushing && durableSeq < seq && failure == null) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+							interrupted = true;
+						}
+					}
+					// checked first, so that a record flushed before a failure is still reported as durable
+					if (durableSeq >= seq) return;
+					if (failure != null) throw new RuntimeException("Transaction log failed", failure);
+					flushing = true;
+					batch = pending;
+					batchSeq = enqueuedSeq;
+					pending = new ArrayList<ByteBuffer>();
+				}
+
+				RuntimeException error = null;
+				try {
+					write(batch);
+				} catch (RuntimeException ex) {
+					error = ex;
+				}
+
+				synchronized (this) {
+					flushing = false;
+					if (error == null) {
+						durableSeq = batchSeq;
+						if (currentSegmentLength >= segmentSize) rotate(batchSeq + 1);
+					} else {
+						failure = error;
+					}
+					notifyAll();
+				}
+				if (error != null) throw error;
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException ex) {
+			log.warn("Closing transaction log segment failed:", currentSegment, ex);
+		}
+		out = null;
+		if (compactionExecutor != null) compactionExecutor.shutdown();
+	}
+
+	/**
+	 * Hands all closed segments to the compactor and deletes them afterwards.
+	 */
+	public void compact() {
+		synchronized (compactionLock) {
+			List<File> segments;
+			synchronized (this) {
+				segments = listSegments();
+				segments.remove(currentSegment);
+			}
+			if (segments.isEmpty()) return;
+			for (File segment : segments) {
+				List<Change> changes = new ArrayList<Change>();
+				readSegment(segment, changes);
+				log.info("Compacting transaction log segment:", segment.getName(), changes.size(), "changes");
+				compactor.compact(changes);
+				IO.delete(segment);
+			}
+			compactor.compactionFinished();
+		}
+	}
+
+	// --- ---
+
+	/**
+	 * Writes the batch with one fsync. Stream I/O is not interruptible.
+	 */
+	private void write(List<ByteBuffer> batch) {
+		long length = 0;
+		try {
+			for (ByteBuffer buffer : batch) {
+				out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				length += buffer.remaining();
+			}
+			out.getFD().sync();
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing transaction log failed: " + currentSegment, ex);
+		}
+		currentSegmentLength += length;
+	}
+
+	private void rotate(long nextSeq) {
+		try {
+			out.close();
+		} catch (IOException ex) {
+			log.warn("Closing transaction log segment failed:", currentSegment, ex);
+		}
+		openSegment(nextSeq);
+		scheduleCompaction();
+	}
+
+	private void openSegment(long firstSeq) {
+		currentSegment = new File(dir, getSegmentName(firstSeq));
+		try {
+			out = new FileOutputStream(currentSegment, true);
+		} catch (IOException ex) {
+			throw new RuntimeException("Opening transaction log segment failed: " + currentSegment, ex);
+		}
+		currentSegmentLength = currentSegment.length();
+		log.debug("Transaction log segment opened:", currentSegment);
+	}
+
+	private void scheduleCompaction() {
+		compactionExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (Throwable ex) {
+					log.error("Compacting transaction log failed:", dir, ex);
+				}
+			}
+		});
+	}
+
+	private List<File> listSegments() {
+		File[] files = dir.listFiles();
+		if (files == null) return new ArrayList<File>(0);
+		List<File> ret = new ArrayList<File>(files.length);
+		for (File file : files) {
+			if (file.getName().endsWith(SEGMENT_SUFFIX)) ret.add(file);
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static long readLastSeq(List<File> segments) {
+		if (segments.isEmpty()) return 0;
+		File last = segments.get(segments.size() - 1);
+		// an empty segment follows the last record of the previous one
+		return Math.max(getFirstSeq(last) - 1, readSegment(last, new ArrayList<Change>()));
+	}
+
+	private static String getSegmentName(long firstSeq) {
+		String s = String.valueOf(firstSeq);
+		char[] padding = new char[Math.max(0, 19 - s.length())];
+		Arrays.fill(padding, '0');
+		return new String(padding) + s + SEGMENT_SUFFIX;
+	}
+
+	private static long getFirstSeq(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static ByteBuffer createRecord(long seq, List<Change> changes) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		try {
+			out.writeLong(seq);
+			out.writeInt(changes.size());
+			for (Change change : changes) {
+				out.writeByte(change.isDelete() ? OP_DELETE : OP_SAVE);
+				out.writeUTF(change.getAlias());
+				out.writeUTF(change.getId());
+				if (!change.isDelete()) {
+					out.writeInt(change.getData().length);
+					out.write(change.getData());
+				}
+			}
+			out.flush();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		byte[] data = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+		record.putInt(data.length);
+		record.putLong(crc.getValue());
+		record.put(data);
+		record.flip();
+		return record;
+	}
+
+	private static long readSegment(File segment, List<Change> container) {
+		long seq = 0;
+		byte[] bytes = IO.readFileToByteArray(segment);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			long checksum = buffer.getLong();
+			if (length < 0 || length > buffer.remaining()) {
+				log.warn("Incomplete record in transaction log segment. Ignoring tail:", segment, "at", start);
+				return seq;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, buffer.position(), length);
+			if (crc.getValue() != checksum) {
+				log.warn("Corrupt record in transaction log segment. Ignoring tail:", segment, "at", start);
+				return seq;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+			try {
+				seq = in.readLong();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte op = in.readByte();
+					String alias = in.readUTF();
+					String id = in.readUTF();
+					Change change;
+					if (op == OP_DELETE) {
+						change = Change.delete(alias, id);
+					} else {
+						byte[] data = new byte[in.readInt()];
+						in.readFully(data);
+						change = Change.save(alias, id, data);
+					}
+					change.seq = seq;
+					container.add(change);
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException("Reading transaction log segment failed: " + segment, ex);
+			}
+			buffer.position(buffer.position() + length);
+		}
+		if (buffer.hasRemaining())
+			log.warn("Incomplete record header in transaction log segment. Ignoring tail:", segment);
+		return seq;
+	}
+
+	public static class Change {
+
+		private String alias;
+		private String id;
+		private byte[] data;
+		private long seq;
+
+		private Change(String alias, String id, byte[] data) {
+			this.alias = alias;
+			this.id = id;
+			this.data = data;
+		}
+
+		public static Change save(String alias, String id, byte[] data) {
+			return new Change(alias, id, data);
+		}
+
+		public static Change delete(String alias, String id) {
+			return new Change(alias, id, null);
+		}
+
+		public boolean isDelete() {
+			return data == null;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Sequence number of the record containing this change. Only known for changes read from the log.
+		 */
+		public long getSeq() {
+			return seq;
+		}
+
+		@Override
+		public String toString() {
+			return (isDelete() ? "DELETE " : "SAVE ") + alias + "/" + id;
+		}
+
+	}
+
+	public static interface Compactor {
+
+		/**
+		 * Applies the changes of a closed segment. They have to be durable when this method returns, since the
+		 * segment is deleted afterwards.
+		 */
+		void compact(List<Change> changes);
+
+		/**
+		 * Called after the compacted segments were deleted.
+		 */
+		void compactionFinished();
+
+	}
+
+}
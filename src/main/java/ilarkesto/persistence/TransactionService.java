@@ -20,9 +20,16 @@ import ilarkesto.fp.Predicate;
 import ilarkesto.id.IdentifiableResolver;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Provides a thread-local <code>Transaction</code> for each thread. Transactions are only used by their own thread,
+ * so no global lock is held here. Concurrent commits are coordinated by the <code>EntityStore</code>, which
+ * publishes them atomically and flushes them together.
+ */
 public class TransactionService implements IdentifiableResolver<AEntity> {
 
 	private static final Log log = Log.get(TransactionService.class);
@@ -34,24 +41,26 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 
 	public TransactionService() {}
 
-	public synchronized void commit() {
+	public void commit() {
 		Transaction t = getCurrentTransaction(false);
 		if (t == null) return;
+		TransactionEvent event;
 		try {
-			t.commit();
+			event = t.commit();
 		} finally {
-			threadLocalTransaction.set(null);
+			threadLocalTransaction.remove();
 		}
+		if (event != null) fireTransactionCommitted(event);
 	}
 
-	public synchronized void cancel() {
+	public void cancel() {
 		Transaction t = getCurrentTransaction(false);
 		if (t == null) return;
 		log.debug("Cancelling transaction:", t);
-		threadLocalTransaction.set(null);
+		threadLocalTransaction.remove();
 	}
 
-	private synchronized Transaction getCurrentTransaction(boolean autocreate) {
+	private Transaction getCurrentTransaction(boolean autocreate) {
 		Transaction t = threadLocalTransaction.get();
 		if (t == null) {
 			if (!autocreate) return null;
@@ -72,6 +81,28 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 		return transaction.isPersistent(id);
 	}
 
+	// --- listeners ---
+
+	private List<TransactionListener> listeners = new CopyOnWriteArrayList<TransactionListener>();
+
+	public void addListener(TransactionListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(TransactionListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireTransactionCommitted(TransactionEvent event) {
+		for (TransactionListener listener : listeners) {
+			try {
+				listener.transactionCommitted(event);
+			} catch (Exception ex) {
+				log.error("Transaction listener failed:", listener, ex);
+			}
+		}
+	}
+
 	// --- delegations ---
 
 	@Override
@@ -112,6 +143,22 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 		}
 	}
 
+	/**
+	 * Returns the entities of the current thread's transaction, which are not committed yet.
+	 */
+	public Set<AEntity> getUncommittedEntities(Predicate<Class> typeFilter) {
+		Transaction transaction = getCurrentTransaction(false);
+		if (transaction == null) return new HashSet<AEntity>(0);
+		return transaction.getLocalEntities(typeFilter);
+	}
+
+	/**
+	 * Returns the entities of the entity store, ignoring the current thread's transaction.
+	 */
+	public Set<AEntity> getCommittedEntities(Predicate<Class> typeFilter) {
+		return entityStore.getEntities(typeFilter, null);
+	}
+
 	public int getEntitiesCount(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		Transaction transaction = getCurrentTransaction(false);
 		if (transaction == null) {
@@ -121,16 +168,22 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 		}
 	}
 
-	public synchronized void deleteEntity(AEntity entity) {
+	public void deleteEntity(AEntity entity) {
 		getCurrentTransaction(true).deleteEntity(entity);
 	}
 
-	public synchronized void saveEntity(AEntity entity) {
+	public void saveEntity(AEntity entity) {
 		getCurrentTransaction(true).saveEntity(entity);
 	}
 
-	public synchronized void registerEntity(AEntity entity) {
+	public void registerEntity(AEntity entity) {
 		getCurrentTransaction(true).registerEntity(entity);
 	}
 
+	// --- dependencies ---
+
+	public void setEntityStore(EntityStore entityStore) {
+		this.entityStore = entityStore;
+	}
+
 }
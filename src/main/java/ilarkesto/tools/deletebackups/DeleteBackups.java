@@ -25,6 +25,8 @@ import java.util.regex.Pattern;
 
 public class DeleteBackups {
 
+	private static final Pattern DATE_PATTERN = Pattern.compile(".*(20\\d\\d-\\d\\d-\\d\\d).*");
+
 	public static void main(String[] args) {
 		int ret = deleteBackups(args);
 		System.exit(ret);
@@ -38,9 +40,10 @@ public class DeleteBackups {
 	private static List<Backup> filterBackups(File[] files) {
 		List<Backup> backups = new ArrayList<DeleteBackups.Backup>();
 		for (File file : files) {
-			if (!file.isFile()) continue;
+			// check the name first, it is cheaper than asking the file system
 			Date date = extractDate(file.getName());
 			if (date == null) continue;
+			if (!file.isFile()) continue;
 			backups.add(new Backup(file, date));
 		}
 		Collections.sort(backups);
@@ -63,7 +66,7 @@ public class DeleteBackups {
 	}
 
 	public static Date extractDate(String s) {
-		Matcher matcher = Pattern.compile(".*(20\\d\\d-\\d\\d-\\d\\d).*").matcher(s);
+		Matcher matcher = DATE_PATTERN.matcher(s);
 		if (!matcher.matches()) return null;
 		String date = matcher.group(1);
 		if (date == null) return null;
@@ -21,9 +21,11 @@ import ilarkesto.core.logging.Log;
 import ilarkesto.core.time.Date;
 import ilarkesto.core.time.DateAndTime;
 import ilarkesto.core.time.Tm;
+import ilarkesto.io.FileWalker;
 import ilarkesto.io.IO;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -122,18 +124,25 @@ public class CopyTask extends ACollectionTask<File> {
 	private Collection<File> getPhotos(File dir) {
 		LOG.debug("Searching for photos:", dir);
 		if (isAbortRequested()) return Collections.emptyList();
-		Collection<File> photos = new ArrayList<File>();
-		File[] files = dir.listFiles();
-		if (files != null) {
-			for (File file : files) {
-				if (file.isDirectory()) {
-					photos.addAll(getPhotos(file));
-				} else {
-					if (isPhoto(file)) photos.add(file);
+		final Collection<File> photos = new ArrayList<File>();
+		final FileWalker walker = new FileWalker(dir).setFilter(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return isPhoto(file);
+			}
+		});
+		walker.walk(new FileWalker.Visitor() {
+
+			@Override
+			public void onEntry(File file, boolean directory) {
+				if (isAbortRequested()) {
+					walker.cancel();
+					return;
 				}
+				photos.add(file);
 			}
-		}
-
+		});
 		return photos;
 	}
 
@@ -19,6 +19,7 @@ import ilarkesto.core.base.Str;
 import ilarkesto.core.logging.Log;
 import ilarkesto.core.time.Date;
 import ilarkesto.integration.itext.PdfBuilder;
+import ilarkesto.io.IO;
 import ilarkesto.json.JsonObject;
 
 import java.io.File;
@@ -67,11 +68,9 @@ public class RequestWrapper<S extends AWebSession> {
 	}
 
 	public void write(JsonObject json) {
-		if (Sys.isDevelopmentMode()) {
-			write(json.toFormatedString());
-		} else {
-			write(json.toString());
-		}
+		// stream UTF-8 bytes directly, without building a String first
+		response.setCharacterEncoding(IO.UTF_8);
+		json.write(getOutputStream(), Sys.isDevelopmentMode());
 		responseServed = true;
 	}
 
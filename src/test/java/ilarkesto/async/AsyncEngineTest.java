@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.async;
+
+import ilarkesto.fp.Function;
+import ilarkesto.testng.ATest;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class AsyncEngineTest extends ATest {
+
+	@Test
+	public void resultAndComposition() throws Exception {
+		AsyncEngine engine = new AsyncEngine(2, 10);
+		final CountDownLatch called = new CountDownLatch(1);
+		JobHandle<Integer> handle = engine.submit(new ValueJob(20, called));
+		assertEquals(handle.get(5, TimeUnit.SECONDS), Integer.valueOf(20));
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+
+		JobHandle<Integer> composed = handle.thenStart(new Function<Integer, Job<Integer>>() {
+
+			@Override
+			public Job<Integer> eval(Integer value) {
+				return new ValueJob(value + 22);
+			}
+		});
+		assertEquals(composed.get(5, TimeUnit.SECONDS), Integer.valueOf(42));
+		assertEquals(engine.getRunTime().getCount(), 2);
+		engine.shutdown();
+	}
+
+	@Test
+	public void deduplication() throws Exception {
+		AsyncEngine engine = new AsyncEngine(2, 10);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingJob first = new BlockingJob(release);
+		BlockingJob second = new BlockingJob(release);
+		JobHandle<Integer> a = engine.submit("key", first, 0);
+		JobHandle<Integer> b = engine.submit("key", second, 0);
+		assertSame(a, b);
+		release.countDown();
+		assertEquals(a.get(5, TimeUnit.SECONDS), Integer.valueOf(1));
+		assertEquals(first.runs.get() + second.runs.get(), 1);
+		assertEquals(engine.getDeduplicatedCount(), 1);
+		assertEquals(engine.getInFlightKeyCount(), 0);
+		engine.shutdown();
+	}
+
+	@Test
+	public void timeoutAndCancel() throws Exception {
+		AsyncEngine engine = new AsyncEngine(1, 10);
+		CountDownLatch never = new CountDownLatch(1);
+		JobHandle<Integer> slow = engine.submit(new BlockingJob(never), 50);
+		JobHandle<Integer> queued = engine.submit(new ValueJob(1));
+		assertTrue(queued.cancel(false));
+		try {
+			slow.get(5, TimeUnit.SECONDS);
+			fail("ExecutionException expected");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeoutException);
+		}
+		try {
+			queued.get();
+			fail("CancellationException expected");
+		} catch (CancellationException ex) {
+			// expected
+		}
+		assertEquals(engine.getTimedOutCount(), 1);
+		assertEquals(engine.getCancelledCount(), 1);
+		engine.shutdown();
+	}
+
+	@Test
+	public void cancelAfterCompletion() throws Exception {
+		AsyncEngine engine = new AsyncEngine(1, 10);
+		JobHandle<Integer> handle = engine.submit(new ValueJob(7));
+		assertEquals(handle.get(5, TimeUnit.SECONDS), Integer.valueOf(7));
+		assertFalse(handle.cancel(true));
+		assertFalse(handle.isCancelled());
+		assertEquals(handle.get(), Integer.valueOf(7));
+		assertEquals(engine.getCancelledCount(), 0);
+		engine.shutdown();
+	}
+
+	@Test
+	public void rejection() throws Exception {
+		AsyncEngine engine = new AsyncEngine(1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingJob running = new BlockingJob(release);
+		engine.submit(running);
+		running.started.await(5, TimeUnit.SECONDS);
+		engine.submit(new BlockingJob(release));
+		JobHandle<Integer> rejected = engine.submit(new BlockingJob(release));
+		try {
+			rejected.get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(engine.getRejectedCount(), 1);
+		assertEquals(engine.getQueueSize(), 1);
+		release.countDown();
+		engine.shutdown();
+	}
+
+	private static class ValueJob extends AJob<Integer> {
+
+		private int value;
+		private CountDownLatch succeeded;
+
+		public ValueJob(int value, CountDownLatch succeeded) {
+			this.value = value;
+			this.succeeded = succeeded;
+		}
+
+		public ValueJob(int value) {
+			this(value, null);
+		}
+
+		@Override
+		public Integer runJob() {
+			super.runJob();
+			return value;
+		}
+
+		@Override
+		public void onSuccess(Integer result) {
+			if (succeeded != null) succeeded.countDown();
+		}
+
+		@Override
+		public void onError(Throwable error) {}
+
+	}
+
+	private static class BlockingJob extends ValueJob {
+
+		private CountDownLatch release;
+		private CountDownLatch started = new CountDownLatch(1);
+		private AtomicInteger runs = new AtomicInteger();
+
+		public BlockingJob(CountDownLatch release) {
+			super(1);
+			this.release = release;
+		}
+
+		@Override
+		public Integer runJob() {
+			runs.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			return super.runJob();
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import ilarkesto.testng.ATest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class ParallelTasksTest extends ATest {
+
+	@Test
+	public void collectionTaskProcessesAllElements() {
+		final Set<Integer> processed = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+		AParallelCollectionTask<Integer> task = new AParallelCollectionTask<Integer>() {
+
+			@Override
+			protected Collection<Integer> prepare() {
+				return range(1000);
+			}
+
+			@Override
+			protected void perform(Integer element) throws InterruptedException {
+				threads.add(Thread.currentThread());
+				if (element % 100 == 0) Thread.sleep(5);
+				processed.add(element);
+			}
+		}.setThreads(4).setChunkSize(10);
+		task.run();
+		assertEquals(processed.size(), 1000);
+		assertEquals(task.getIndex(), 1000);
+		assertEquals(task.getProgress(), 1f, 0.0001);
+		assertTrue(threads.size() > 1);
+	}
+
+	@Test
+	public void collectionTaskElementErrors() {
+		final List<Integer> errors = new ArrayList<Integer>();
+		AParallelCollectionTask<Integer> tolerant = new AParallelCollectionTask<Integer>() {
+
+			@Override
+			protected Collection<Integer> prepare() {
+				return range(100);
+			}
+
+			@Override
+			protected void perform(Integer element) {
+				if (element % 10 == 0) throw new IllegalStateException("bad element");
+			}
+
+			@Override
+			protected void onElementError(Integer element, Throwable ex) {
+				errors.add(element);
+			}
+		}.setThreads(4).setChunkSize(1);
+		tolerant.run();
+		assertEquals(errors.size(), 10);
+		assertEquals(tolerant.getIndex(), 100);
+
+		AParallelCollectionTask<Integer> failing = new AParallelCollectionTask<Integer>() {
+
+			@Override
+			protected Collection<Integer> prepare() {
+				return range(100);
+			}
+
+			@Override
+			protected void perform(Integer element) {
+				if (element == 3) throw new IllegalStateException("bad element");
+			}
+		}.setThreads(4).setChunkSize(1);
+		try {
+			failing.run();
+			fail("Exception expected");
+		} catch (RuntimeException ex) {
+			// expected
+		}
+		assertTrue(failing.isFinished());
+		assertTrue(failing.getIndex() < 100);
+	}
+
+	@Test
+	public void batchTaskRunsSubTasksConcurrently() {
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		LatchTask a = new LatchTask(bothStarted);
+		LatchTask b = new LatchTask(bothStarted);
+		BatchTask batch = new BatchTask().setParallelism(2);
+		batch.addTask(a, 1);
+		batch.addTask(b, 3);
+		batch.run();
+		assertTrue(a.met);
+		assertTrue(b.met);
+		assertEquals(batch.getProgress(), 1f, 0.0001);
+	}
+
+	private static List<Integer> range(int count) {
+		List<Integer> ret = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			ret.add(i);
+		}
+		return ret;
+	}
+
+	private static class LatchTask extends ATask {
+
+		private CountDownLatch latch;
+		private volatile boolean met;
+
+		public LatchTask(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		protected void perform() throws InterruptedException {
+			latch.countDown();
+			met = latch.await(5, TimeUnit.SECONDS);
+		}
+
+	}
+
+}
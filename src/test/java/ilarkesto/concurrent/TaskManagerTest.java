@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent;
+
+import ilarkesto.di.Context;
+import ilarkesto.testng.ATest;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TaskManagerTest extends ATest {
+
+	@BeforeClass
+	public void createContext() {
+		try {
+			Context.getRootContext();
+		} catch (RuntimeException ex) {
+			Context.createRootContext("test");
+		}
+	}
+
+	@Test
+	public void laneRejectsWhenSaturated() throws Exception {
+		TaskManager taskManager = new TaskManager().setLane(ATask.Priority.LOW, 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingTask running = new BlockingTask(release, ATask.Priority.LOW);
+		assertTrue(taskManager.start(running));
+		running.started.await();
+		BlockingTask queued = new BlockingTask(release, ATask.Priority.LOW);
+		assertTrue(taskManager.start(queued));
+		assertFalse(taskManager.start(new BlockingTask(release, ATask.Priority.LOW)));
+
+		// other priorities are not affected
+		BlockingTask normal = new BlockingTask(release, ATask.Priority.NORMAL);
+		assertTrue(taskManager.start(normal));
+		normal.started.await();
+
+		TaskLane lane = taskManager.getLanes().get(0);
+		assertEquals(lane.getRejectedCount(), 1);
+		assertEquals(lane.getSubmittedCount(), 2);
+
+		release.countDown();
+		taskManager.waitForRunningTasks(5000);
+		assertTrue(running.isFinished());
+		assertTrue(queued.isFinished());
+		assertTrue(normal.isFinished());
+		assertTrue(taskManager.getRunningTasks().isEmpty());
+		assertEquals(lane.getMetrics().getRunTime().getCount(), 2);
+		assertEquals(queued.getMetrics().getQueueWait().getCount(), 1);
+		assertEquals(queued.getMetrics().getRunTime().getCount(), 1);
+	}
+
+	@Test
+	public void waitForRunningTasksIncludesQueued() throws Exception {
+		TaskManager taskManager = new TaskManager().setLane(ATask.Priority.NORMAL, 1, 10);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingTask first = new BlockingTask(release, ATask.Priority.NORMAL);
+		BlockingTask second = new BlockingTask(release, ATask.Priority.NORMAL);
+		taskManager.start(first);
+		taskManager.start(second);
+		first.started.await();
+		release.countDown();
+		taskManager.waitForRunningTasks(5000);
+		assertTrue(second.isFinished());
+	}
+
+	@Test
+	public void replacedLaneRunsQueuedTasks() throws Exception {
+		TaskManager taskManager = new TaskManager().setLane(ATask.Priority.LOW, 1, 10);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingTask running = new BlockingTask(release, ATask.Priority.LOW);
+		BlockingTask queued = new BlockingTask(release, ATask.Priority.LOW);
+		assertTrue(taskManager.start(running));
+		assertTrue(taskManager.start(queued));
+		running.started.await();
+
+		taskManager.setLane(ATask.Priority.LOW, 2, 10);
+		BlockingTask next = new BlockingTask(release, ATask.Priority.LOW);
+		assertTrue(taskManager.start(next));
+		next.started.await();
+
+		release.countDown();
+		taskManager.waitForRunningTasks(5000);
+		assertTrue(running.isFinished());
+		assertTrue(queued.isFinished());
+		assertTrue(next.isFinished());
+	}
+
+	@Test
+	public void histogram() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000000L);
+		}
+		assertEquals(histogram.getCount(), 100);
+		assertEquals(histogram.getMaxNanos(), 100000000L);
+		assertEquals(histogram.getMeanNanos(), 50500000L);
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(p50 >= 50000000L && p50 <= 100000000L, String.valueOf(p50));
+		assertEquals(histogram.getPercentileNanos(100), 100000000L);
+	}
+
+	private static class BlockingTask extends ATask {
+
+		private CountDownLatch release;
+		private CountDownLatch started = new CountDownLatch(1);
+
+		public BlockingTask(CountDownLatch release, Priority priority) {
+			this.release = release;
+			setPriority(priority);
+		}
+
+		@Override
+		protected void perform() throws InterruptedException {
+			started.countDown();
+			release.await();
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.concurrent.locker;
+
+import ilarkesto.core.time.TimePeriod;
+import ilarkesto.testng.ATest;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.Test;
+
+public class LockerTest extends ATest {
+
+	private static final TimePeriod MINUTE = TimePeriod.minutes(1);
+
+	@Test
+	public void exclusive() throws Exception {
+		Locker locker = new Locker();
+		locker.lock("a", "u1", true, MINUTE);
+		locker.lock("a", "u1", true, MINUTE);
+		try {
+			locker.lock("a", "u1", false, MINUTE);
+			fail("LockingException expected");
+		} catch (LockingException ex) {
+			assertSame(ex.getLock().getLocker(), "u1");
+		}
+		assertFalse(locker.tryLock("a", "u2", MINUTE));
+		assertTrue(locker.tryLock("b", "u2", MINUTE));
+		assertEquals(locker.getHeldCount(), 2);
+		assertEquals(locker.getContendedCount(), 2);
+
+		assertFalse(locker.unlock("a", "u2"));
+		assertTrue(locker.unlock("a", "u1"));
+		assertTrue(locker.tryLock("a", "u2", MINUTE));
+		locker.shutdown();
+	}
+
+	@Test
+	public void sharedAndUpgrade() throws Exception {
+		Locker locker = new Locker();
+		locker.lockShared("a", "u1", MINUTE);
+		locker.lockShared("a", "u2", MINUTE);
+		assertEquals(locker.getLock("a").getLockers().size(), 2);
+		assertFalse(locker.tryLock("a", "u1", MINUTE));
+
+		locker.unlock("a", "u2");
+		assertTrue(locker.tryLock("a", "u1", MINUTE));
+		assertFalse(locker.getLock("a").isShared());
+		try {
+			locker.lockShared("a", "u2", MINUTE);
+			fail("LockingException expected");
+		} catch (LockingException ex) {
+			// expected
+		}
+		locker.shutdown();
+	}
+
+	@Test
+	public void waitForRelease() throws Exception {
+		final Locker locker = new Locker();
+		locker.lock("a", "u1", false, MINUTE);
+		final CountDownLatch waiting = new CountDownLatch(1);
+		Thread releaser = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					waiting.await();
+					Thread.sleep(50);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				locker.unlock("a");
+			}
+		};
+		releaser.start();
+		waiting.countDown();
+		locker.lock("a", "u2", false, MINUTE, 5000);
+		assertSame(locker.getLock("a").getLocker(), "u2");
+
+		try {
+			locker.lock("a", "u3", false, MINUTE, 20);
+			fail("LockingException expected");
+		} catch (LockingException ex) {
+			// expected
+		}
+		locker.shutdown();
+	}
+
+	@Test
+	public void backgroundExpiry() throws Exception {
+		Locker locker = new Locker(4, 10);
+		for (int i = 0; i < 100; i++) {
+			locker.lock(i, "u1", false, new TimePeriod(30));
+		}
+		locker.lock("long", "u1", false, MINUTE);
+		assertEquals(locker.getHeldCount(), 101);
+		long until = System.currentTimeMillis() + 5000;
+		while (locker.getHeldCount() > 1 && System.currentTimeMillis() < until) {
+			Thread.sleep(10);
+		}
+		assertEquals(locker.getHeldCount(), 1);
+		assertEquals(locker.getExpiredCount(), 100);
+		assertNotNull(locker.getLock("long"));
+		locker.shutdown();
+	}
+
+}
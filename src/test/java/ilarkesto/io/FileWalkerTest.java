@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io;
+
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class FileWalkerTest extends ATest {
+
+	private File root;
+
+	@BeforeClass
+	public void createTree() {
+		root = getTestOutputFile("tree");
+		IO.delete(root);
+		for (int a = 0; a < 5; a++) {
+			for (int b = 0; b < 5; b++) {
+				File dir = new File(root, "dir" + a + "/sub" + b);
+				for (int i = 0; i < 4; i++) {
+					IO.writeFile(new File(dir, "file" + i + (i % 2 == 0 ? ".jpg" : ".txt")), "x", IO.UTF_8);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sequentialAndParallelFindTheSame() {
+		Set<File> sequential = walk(new FileWalker(root).setIncludeDirs(true));
+		Set<File> parallel = walk(new FileWalker(root).setIncludeDirs(true).setParallelism(4));
+		assertEquals(sequential.size(), 5 + 25 + 100);
+		assertEquals(parallel, sequential);
+	}
+
+	@Test
+	public void filter() {
+		Set<File> jpgs = walk(new FileWalker(root).setFilter(new SuffixFileFilter(".jpg")).setParallelism(3));
+		assertEquals(jpgs.size(), 50);
+		for (File file : jpgs) {
+			assertTrue(file.getName().endsWith(".jpg"));
+		}
+
+		Set<File> pruned = walk(new FileWalker(root).setDirFilter(new SuffixFileFilter("0", "dir1")));
+		assertEquals(pruned.size(), 2 * 4);
+	}
+
+	@Test
+	public void cancel() {
+		final AtomicInteger count = new AtomicInteger();
+		final FileWalker walker = new FileWalker(root).setParallelism(4);
+		walker.walk(new FileWalker.Visitor() {
+
+			@Override
+			public void onEntry(File file, boolean directory) {
+				if (count.incrementAndGet() == 10) walker.cancel();
+			}
+		});
+		assertTrue(walker.isCancelled());
+		assertTrue(count.get() < 100);
+	}
+
+	private static Set<File> walk(FileWalker walker) {
+		final Set<File> ret = Collections.synchronizedSet(new HashSet<File>());
+		walker.walk(new FileWalker.Visitor() {
+
+			@Override
+			public void onEntry(File file, boolean directory) {
+				assertEquals(directory, file.isDirectory());
+				assertTrue(ret.add(file));
+			}
+		});
+		return ret;
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.httpserver;
+
+import ilarkesto.io.nio.tcpserver.DataHandler;
+import ilarkesto.io.nio.tcpserver.SelectorTask;
+import ilarkesto.io.nio.tcpserver.ServerDataEvent;
+import ilarkesto.io.nio.tcpserver.TcpConnection;
+import ilarkesto.io.nio.tcpserver.WorkerPool;
+import ilarkesto.testng.ATest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Feeds requests to the parser directly, split into fragments at arbitrary points. Responses go to a loopback
+ * client.
+ */
+public class HttpDataHandlerTest extends ATest {
+
+	private static final int MAX_HEADER_SIZE = 512;
+	private static final int CHUNK_COUNT = 200;
+
+	private BlockingQueue<TcpConnection> connections = new LinkedBlockingQueue<TcpConnection>();
+	private List<HttpRequest> requests = new ArrayList<HttpRequest>();
+	private HttpServer<Object> server;
+	private WorkerPool workerPool;
+	private SelectorTask selectorTask;
+	private Socket client;
+
+	@Test
+	public void fragmentedRequests() throws Exception {
+		byte[] input = createPipelinedRequests().getBytes("ISO-8859-1");
+		TcpConnection connection = connect();
+		try {
+			for (int fragmentSize : new int[] { 1, 2, 3, 7, 100, input.length }) {
+				List<Integer> splits = new ArrayList<Integer>();
+				for (int i = fragmentSize; i < input.length; i += fragmentSize) {
+					splits.add(i);
+				}
+				parse(connection, input, splits);
+				assertRequests();
+			}
+
+			Random random = new Random(1);
+			for (int run = 0; run < 50; run++) {
+				List<Integer> splits = new ArrayList<Integer>();
+				for (int i = random.nextInt(50) + 1; i < input.length; i += random.nextInt(50) + 1) {
+					splits.add(i);
+				}
+				parse(connection, input, splits);
+				assertRequests();
+			}
+		} finally {
+			stop();
+		}
+	}
+
+	@Test
+	public void chunkLineTooLong() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+		sb.append("5;");
+		for (int i = 0; i < 2000; i++) {
+			sb.append('x');
+		}
+		sb.append("\r\nhello\r\n0\r\n\r\n");
+
+		TcpConnection connection = connect();
+		try {
+			parse(connection, sb.toString().getBytes("ISO-8859-1"), new ArrayList<Integer>());
+			assertEquals(requests.size(), 0);
+			assertTrue(readLine(client.getInputStream()).startsWith("HTTP/1.1 400"));
+		} finally {
+			stop();
+		}
+	}
+
+	@Test
+	public void headerTooLarge() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("GET / HTTP/1.1\r\nX-Large: ");
+		for (int i = 0; i < MAX_HEADER_SIZE; i++) {
+			sb.append('x');
+		}
+		sb.append("\r\n\r\n");
+
+		TcpConnection connection = connect();
+		try {
+			parse(connection, sb.toString().getBytes("ISO-8859-1"), Arrays.asList(10, 100));
+			assertEquals(requests.size(), 0);
+			assertTrue(readLine(client.getInputStream()).startsWith("HTTP/1.1 431"));
+		} finally {
+			stop();
+		}
+	}
+
+	/**
+	 * A chunked upload whose chunk lines together exceed the header limit, followed by a pipelined request with
+	 * <code>Content-Length</code>.
+	 */
+	private static String createPipelinedRequests() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("POST /upload HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n");
+		for (int i = 0; i < CHUNK_COUNT; i++) {
+			sb.append("a;n=").append(i).append("\r\n0123456789\r\n");
+		}
+		sb.append("0\r\nX-Checksum: 42\r\n\r\n");
+		sb.append("PUT /item?id=1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+		return sb.toString();
+	}
+
+	private void assertRequests() {
+		assertEquals(requests.size(), 2);
+
+		HttpRequest upload = requests.get(0);
+		assertEquals(upload.getMethod(), HttpMethod.POST);
+		assertEquals(upload.getPath(), "/upload");
+		assertEquals(upload.getBody().length, CHUNK_COUNT * 10);
+		assertTrue(upload.getBodyAsString().startsWith("01234567890123456789"));
+
+		HttpRequest put = requests.get(1);
+		assertEquals(put.getMethod(), HttpMethod.PUT);
+		assertEquals(put.getParameter("id"), "1");
+		assertEquals(put.getBodyAsString(), "hello");
+	}
+
+	private void parse(TcpConnection connection, byte[] input, List<Integer> splits) {
+		requests.clear();
+		HttpDataHandler handler = new HttpDataHandler(server);
+		int offset = 0;
+		for (int split : splits) {
+			handler.onDataReceived(new ServerDataEvent(connection, Arrays.copyOfRange(input, offset, split)));
+			offset = split;
+		}
+		handler.onDataReceived(new ServerDataEvent(connection, Arrays.copyOfRange(input, offset, input.length)));
+	}
+
+	private TcpConnection connect() throws Exception {
+		int port = getFreePort();
+		server = new HttpServer<Object>(port, "test").setMaxHeaderSize(MAX_HEADER_SIZE);
+		server.addHandler(new HttpRequestHandler() {
+
+			@Override
+			public boolean onHttpRequest(HttpRequest request) {
+				requests.add(request);
+				request.sendResponse(HttpStatusCode.OK, "text/plain", "ok");
+				return true;
+			}
+		});
+
+		workerPool = new WorkerPool(new DataHandler() {
+
+			@Override
+			public void onDataReceived(ServerDataEvent event) {
+				connections.offer(event.getConnection());
+			}
+
+			@Override
+			public void onConnectionClosed(TcpConnection connection) {}
+		}, 1);
+		workerPool.start();
+		selectorTask = new SelectorTask(port, workerPool);
+		selectorTask.createThread().start();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				client = new Socket("localhost", port);
+				break;
+			} catch (IOException ex) {
+				if (System.currentTimeMillis() > deadline) throw ex;
+				Thread.sleep(10);
+			}
+		}
+		client.setSoTimeout(5000);
+		client.getOutputStream().write('x');
+		TcpConnection connection = connections.poll(5, TimeUnit.SECONDS);
+		assertNotNull(connection);
+		return connection;
+	}
+
+	private void stop() throws IOException {
+		if (client != null) client.close();
+		selectorTask.abort();
+		workerPool.stop();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			sb.append((char) b);
+		}
+		return sb.toString().trim();
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
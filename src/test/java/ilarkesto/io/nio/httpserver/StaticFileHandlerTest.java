@@ -0,0 +1,255 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.httpserver;
+
+import ilarkesto.concurrent.TaskManager;
+import ilarkesto.di.Context;
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class StaticFileHandlerTest extends ATest {
+
+	private static final String SMALL_CONTENT = "0123456789abcdefghij";
+	private static final int LARGE_LENGTH = 5000;
+
+	private File root;
+	private HttpServer<Object> server;
+	private int port;
+
+	@BeforeClass
+	public void startServer() throws Exception {
+		try {
+			Context.getRootContext();
+		} catch (RuntimeException ex) {
+			Context.createRootContext("test");
+		}
+
+		File dir = getTestOutputFile("files");
+		IO.delete(dir);
+		root = new File(dir, "root");
+		IO.writeFile(new File(root, "small.txt"), SMALL_CONTENT, IO.UTF_8);
+		IO.copyDataToFile(createLargeContent(), new File(root, "large.bin"));
+		IO.writeFile(new File(dir, "secret.txt"), "secret", IO.UTF_8);
+
+		port = getFreePort();
+		server = new HttpServer<Object>(port, "test");
+		// large.bin is sent from the file channel, small.txt from the cache
+		server.addHandler("/static/*", new StaticFileHandler("/static/", root).setMaxCachedFileSize(1024));
+		server.start(new TaskManager());
+	}
+
+	@AfterClass
+	public void stopServer() {
+		server.stop();
+	}
+
+	@Test
+	public void traversalIsRejected() throws Exception {
+		assertEquals(get("/static/small.txt").status, 200);
+		assertEquals(get("/static/../secret.txt").status, 403);
+		assertEquals(get("/static/%2e%2e/secret.txt").status, 403);
+		assertEquals(get("/static/x/..%5c..%5csecret.txt").status, 403);
+		assertEquals(get("/static/small.txt%00.png").status, 400);
+		assertEquals(get("/static/missing.txt").status, 404);
+	}
+
+	@Test
+	public void symlinkOutOfRootIsRejected() throws Exception {
+		File link = new File(root, "link.txt");
+		if (!link.exists()) {
+			try {
+				Runtime.getRuntime().exec(new String[] { "ln", "-s", "../secret.txt", link.getPath() }).waitFor();
+			} catch (IOException ex) {
+				// no symbolic links on this platform
+			}
+		}
+		if (!link.exists()) return;
+		assertEquals(get("/static/link.txt").status, 403);
+	}
+
+	@Test
+	public void parseRange() {
+		assertRange("bytes=0-4", 0, 4);
+		assertRange("bytes=5-", 5, 19);
+		assertRange("bytes=10-100", 10, 19);
+		assertRange("bytes=-5", 15, 19);
+		assertRange("bytes=-50", 0, 19);
+
+		assertUnsatisfiable("bytes=20-");
+		assertUnsatisfiable("bytes=20-30");
+		assertUnsatisfiable("bytes=-0");
+
+		assertNull(StaticFileHandler.parseRange("bytes=5-2", 20));
+		assertNull(StaticFileHandler.parseRange("bytes=0-1,5-6", 20));
+		assertNull(StaticFileHandler.parseRange("items=0-4", 20));
+		assertNull(StaticFileHandler.parseRange("bytes=5", 20));
+		assertNull(StaticFileHandler.parseRange("bytes=a-b", 20));
+	}
+
+	@Test
+	public void ranges() throws Exception {
+		Response response = get("/static/small.txt", "Range: bytes=-5");
+		assertEquals(response.status, 206);
+		assertEquals(response.headers.get("content-range"), "bytes 15-19/20");
+		assertEquals(response.getBodyAsString(), "fghij");
+
+		response = get("/static/large.bin", "Range: bytes=4990-");
+		assertEquals(response.status, 206);
+		assertEquals(response.headers.get("content-range"), "bytes 4990-4999/5000");
+		assertTrue(Arrays.equals(response.body, Arrays.copyOfRange(createLargeContent(), 4990, LARGE_LENGTH)));
+
+		response = get("/static/large.bin", "Range: bytes=100-199");
+		assertEquals(response.status, 206);
+		assertTrue(Arrays.equals(response.body, Arrays.copyOfRange(createLargeContent(), 100, 200)));
+
+		response = get("/static/large.bin", "Range: bytes=5000-");
+		assertEquals(response.status, 416);
+		assertEquals(response.headers.get("content-range"), "bytes */5000");
+
+		// multiple ranges are answered with the whole file
+		response = get("/static/small.txt", "Range: bytes=0-1,5-6");
+		assertEquals(response.status, 200);
+		assertEquals(response.getBodyAsString(), SMALL_CONTENT);
+	}
+
+	@Test
+	public void conditionalRequests() throws Exception {
+		Response response = get("/static/small.txt");
+		assertEquals(response.status, 200);
+		String etag = response.headers.get("etag");
+		String lastModified = response.headers.get("last-modified");
+		assertNotNull(etag);
+		assertNotNull(lastModified);
+
+		response = get("/static/small.txt", "If-None-Match: " + etag);
+		assertEquals(response.status, 304);
+		assertEquals(response.body.length, 0);
+		assertEquals(get("/static/small.txt", "If-None-Match: \"other\"").status, 200);
+		assertEquals(get("/static/small.txt", "If-Modified-Since: " + lastModified).status, 304);
+		assertEquals(get("/static/small.txt", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT").status, 200);
+
+		response = get("/static/small.txt", "Range: bytes=0-4", "If-Range: " + etag);
+		assertEquals(response.status, 206);
+		assertEquals(response.getBodyAsString(), "01234");
+		assertEquals(get("/static/small.txt", "Range: bytes=0-4", "If-Range: " + lastModified).status, 206);
+
+		// the file changed since the client got its part, so it gets the whole file
+		response = get("/static/small.txt", "Range: bytes=0-4", "If-Range: \"other\"");
+		assertEquals(response.status, 200);
+		assertEquals(response.getBodyAsString(), SMALL_CONTENT);
+		response = get("/static/small.txt", "Range: bytes=0-4", "If-Range: Thu, 01 Jan 1970 00:00:00 GMT");
+		assertEquals(response.status, 200);
+	}
+
+	private static void assertRange(String range, long start, long end) {
+		long[] bounds = StaticFileHandler.parseRange(range, 20);
+		assertNotNull(bounds, range);
+		assertEquals(bounds[0], start, range);
+		assertEquals(bounds[1], end, range);
+	}
+
+	private static void assertUnsatisfiable(String range) {
+		long[] bounds = StaticFileHandler.parseRange(range, 20);
+		assertNotNull(bounds, range);
+		assertTrue(bounds[0] > bounds[1], range);
+	}
+
+	/**
+	 * Sends a HTTP/1.0 request, so the server closes the connection after the response.
+	 */
+	private Response get(String path, String... headers) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.setSoTimeout(5000);
+			StringBuilder sb = new StringBuilder();
+			sb.append("GET ").append(path).append(" HTTP/1.0\r\n");
+			for (String header : headers) {
+				sb.append(header).append("\r\n");
+			}
+			sb.append("\r\n");
+			socket.getOutputStream().write(sb.toString().getBytes("ISO-8859-1"));
+			return new Response(socket.getInputStream());
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static byte[] createLargeContent() {
+		byte[] data = new byte[LARGE_LENGTH];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 251);
+		}
+		return data;
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static class Response {
+
+		private int status;
+		// names in lower case
+		private Map<String, String> headers = new HashMap<String, String>();
+		private byte[] body;
+
+		public Response(InputStream in) throws IOException {
+			String statusLine = readLine(in);
+			status = Integer.parseInt(statusLine.split(" ")[1]);
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int idx = line.indexOf(':');
+				headers.put(line.substring(0, idx).toLowerCase(), line.substring(idx + 1).trim());
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IO.copyData(in, out);
+			body = out.toByteArray();
+		}
+
+		public String getBodyAsString() throws IOException {
+			return new String(body, IO.UTF_8);
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = in.read()) >= 0 && b != '\n') {
+				sb.append((char) b);
+			}
+			return sb.toString().trim();
+		}
+
+	}
+
+}
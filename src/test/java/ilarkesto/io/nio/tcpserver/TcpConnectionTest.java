@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.tcpserver;
+
+import ilarkesto.testng.ATest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+public class TcpConnectionTest extends ATest {
+
+	private static final int CHUNK_SIZE = 1000;
+
+	private BlockingQueue<TcpConnection> connections = new LinkedBlockingQueue<TcpConnection>();
+	private WorkerPool workerPool;
+	private SelectorTask selectorTask;
+	private Socket client;
+
+	@Test
+	public void sendFromOtherThread() throws Exception {
+		TcpConnection connection = connect();
+		try {
+			connection.sendString("hello");
+			assertEquals(read(client.getInputStream(), 5), "hello");
+
+			connection.sendLineCrLf("wörld");
+			String line = new String("wörld\r\n".getBytes());
+			assertEquals(read(client.getInputStream(), line.getBytes().length), line);
+		} finally {
+			stop();
+		}
+	}
+
+	@Test
+	public void gatheringWriteWithBackPressure() throws Exception {
+		final long total = 16 * 1024 * 1024;
+		TcpConnection connection = connect();
+		try {
+			connection.setMaxPendingBytes(64 * 1024);
+			byte[] chunk = createChunk();
+
+			// the client does not read, so the socket buffers fill up until the connection stays congested
+			long sent = 0;
+			while (connection.awaitUncongested(200)) {
+				assertTrue(sent < total, "Connection never congested");
+				connection.sendData(chunk, 0, chunk.length);
+				sent += chunk.length;
+			}
+			assertTrue(connection.isCongested());
+
+			final AtomicLong received = new AtomicLong();
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			Thread reader = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						received.set(readChunks(client.getInputStream()));
+					} catch (Throwable ex) {
+						failure.set(ex);
+					}
+				}
+			};
+			reader.start();
+
+			while (sent < total) {
+				assertTrue(connection.awaitUncongested(10000));
+				connection.sendData(chunk, 0, chunk.length);
+				sent += chunk.length;
+			}
+			connection.close();
+			reader.join(10000);
+
+			assertNull(failure.get());
+			assertEquals(received.get(), sent);
+			assertFalse(connection.isCongested());
+		} finally {
+			stop();
+		}
+	}
+
+	private TcpConnection connect() throws Exception {
+		int port = getFreePort();
+		workerPool = new WorkerPool(new DataHandler() {
+
+			@Override
+			public void onDataReceived(ServerDataEvent event) {
+				connections.offer(event.getConnection());
+			}
+
+			@Override
+			public void onConnectionClosed(TcpConnection connection) {}
+		}, 2);
+		workerPool.start();
+		selectorTask = new SelectorTask(port, workerPool);
+		selectorTask.createThread().start();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				client = new Socket("localhost", port);
+				break;
+			} catch (IOException ex) {
+				if (System.currentTimeMillis() > deadline) throw ex;
+				Thread.sleep(10);
+			}
+		}
+		client.setSoTimeout(5000);
+		client.getOutputStream().write('x');
+		TcpConnection connection = connections.poll(5, TimeUnit.SECONDS);
+		assertNotNull(connection);
+		return connection;
+	}
+
+	private void stop() throws IOException {
+		if (client != null) client.close();
+		selectorTask.abort();
+		workerPool.stop();
+	}
+
+	private static byte[] createChunk() {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte) (i % 251);
+		}
+		return chunk;
+	}
+
+	private static long readChunks(InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		long count = 0;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] != (byte) ((count + i) % CHUNK_SIZE % 251))
+					throw new IOException("Unexpected byte at " + (count + i));
+			}
+			count += read;
+		}
+		return count;
+	}
+
+	private static String read(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(data, offset, length - offset);
+			if (read < 0) throw new IOException("Unexpected end of stream");
+			offset += read;
+		}
+		return new String(data);
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
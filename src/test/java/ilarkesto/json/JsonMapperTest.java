@@ -27,6 +27,34 @@ import org.testng.annotations.Test;
 
 public class JsonMapperTest extends ATest {
 
+	/**
+	 * Micro benchmark for serialization and deserialization throughput.
+	 */
+	public static void main(String[] args) {
+		Dummy dummy = new Dummy(23, Arrays.asList(1l, 2l, 3l), new SubDummy(), new Date(2014, 1, 1));
+		dummy.d = Arrays.asList(new SubDummy(), new SubDummy());
+		String json = JsonMapper.serialize(dummy);
+		int count = 200000;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				JsonMapper.serialize(dummy);
+			}
+			long serializeTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				try {
+					JsonMapper.deserialize(json, Dummy.class, TYPE_RESOLVER);
+				} catch (ParseException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+			long deserializeTime = System.nanoTime() - start;
+			System.out.println("serialize: " + (serializeTime / count) + " ns/op, deserialize: "
+					+ (deserializeTime / count) + " ns/op");
+		}
+	}
+
 	@Test
 	public void serialize() {
 		assertEquals(JsonMapper.serialize(null), "null");
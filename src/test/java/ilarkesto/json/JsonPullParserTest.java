@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import ilarkesto.json.JsonPullParser.Token;
+import ilarkesto.testng.ATest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class JsonPullParserTest extends ATest {
+
+	private static final String JSON = "{\"name\": \"W\\u00f6rld \\\"€\\\" 😀\", "
+			+ "\"n\": [1, -23, 9223372036854775807, 2.5e3, true, false, null], \"sub\": {\"x\": []}}";
+
+	@Test
+	public void parseComplete() throws Exception {
+		JsonPullParser parser = new JsonPullParser().feed(JSON.getBytes("UTF-8")).endOfInput();
+		assertEquals(readTokens(parser), expectedTokens());
+	}
+
+	@Test
+	public void parseByteByByte() throws Exception {
+		byte[] bytes = JSON.getBytes("UTF-8");
+		JsonPullParser parser = new JsonPullParser();
+		List<String> tokens = new ArrayList<String>();
+		for (byte b : bytes) {
+			parser.feed(ByteBuffer.wrap(new byte[] { b }));
+			tokens.addAll(readTokens(parser));
+		}
+		parser.endOfInput();
+		tokens.addAll(readTokens(parser));
+		assertEquals(tokens, expectedTokens());
+	}
+
+	@Test
+	public void numbers() {
+		JsonPullParser parser = new JsonPullParser().feed("[-9223372036854775808, 42, 0.5]".getBytes());
+		parser.endOfInput();
+		assertEquals(parser.nextToken(), Token.BEGIN_ARRAY);
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertEquals(parser.getLong(), Long.MIN_VALUE);
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertEquals(parser.getInt(), 42);
+		assertTrue(parser.isIntegral());
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertFalse(parser.isIntegral());
+		assertEquals(parser.getDouble(), 0.5);
+		assertEquals(parser.nextToken(), Token.END_ARRAY);
+		assertEquals(parser.nextToken(), Token.END);
+	}
+
+	@Test
+	public void invalidNumbers() {
+		for (String number : new String[] { "1-2", "1e", "1e+", "-", "01", "1.", ".5", "1.e3", "2.5E-", "1+" }) {
+			String json = "[0, " + number + "]";
+			JsonPullParser parser = new JsonPullParser().feed(json.getBytes()).endOfInput();
+			assertEquals(parser.nextToken(), Token.BEGIN_ARRAY);
+			assertEquals(parser.nextToken(), Token.NUMBER);
+			try {
+				parser.nextToken();
+				fail("ParseException expected: " + json);
+			} catch (ParseException ex) {
+				assertContains(ex.getMessage(), " at 4");
+			}
+		}
+		JsonPullParser parser = new JsonPullParser().feed("[0, -0.5e+2, 1E3]".getBytes()).endOfInput();
+		assertEquals(parser.nextToken(), Token.BEGIN_ARRAY);
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertEquals(parser.getDouble(), -50.0);
+		assertEquals(parser.nextToken(), Token.NUMBER);
+		assertEquals(parser.getLong(), 1000L);
+	}
+
+	@Test
+	public void skipValue() {
+		JsonPullParser parser = new JsonPullParser().feed("{\"a\": {\"b\": [1, {\"c\": 2}]}, \"d\"".getBytes());
+		assertEquals(parser.nextToken(), Token.BEGIN_OBJECT);
+		assertEquals(parser.nextToken(), Token.NAME);
+		assertEquals(parser.nextToken(), Token.BEGIN_OBJECT);
+		assertTrue(parser.skipValue());
+		assertEquals(parser.nextToken(), Token.NAME);
+		assertEquals(parser.getString(), "d");
+		assertEquals(parser.nextToken(), Token.NEED_MORE_INPUT);
+	}
+
+	@Test
+	public void invalid() {
+		for (String json : new String[] { "{\"a\" 1}", "[1 2]", "{\"a\": 1]", "[tru]", "{\"a\": \"x", "[1," }) {
+			JsonPullParser parser = new JsonPullParser().feed(json.getBytes()).endOfInput();
+			try {
+				while (parser.nextToken() != Token.END) {}
+				fail("ParseException expected: " + json);
+			} catch (ParseException ex) {
+				// expected
+			}
+		}
+	}
+
+	// --- helper ---
+
+	private static List<String> readTokens(JsonPullParser parser) {
+		List<String> ret = new ArrayList<String>();
+		while (true) {
+			Token token = parser.nextToken();
+			if (token == Token.NEED_MORE_INPUT || token == Token.END) return ret;
+			switch (token) {
+				case NAME:
+				case STRING:
+					ret.add(token + ":" + parser.getString());
+					break;
+				case NUMBER:
+					if (parser.isIntegral()) {
+						ret.add(token + ":" + parser.getLong());
+					} else {
+						ret.add(token + ":" + parser.getDouble());
+					}
+					break;
+				default:
+					ret.add(token.toString());
+			}
+		}
+	}
+
+	private static List<String> expectedTokens() {
+		List<String> ret = new ArrayList<String>();
+		ret.add("BEGIN_OBJECT");
+		ret.add("NAME:name");
+		ret.add("STRING:Wörld \"€\" 😀");
+		ret.add("NAME:n");
+		ret.add("BEGIN_ARRAY");
+		ret.add("NUMBER:1");
+		ret.add("NUMBER:-23");
+		ret.add("NUMBER:9223372036854775807");
+		ret.add("NUMBER:2500.0");
+		ret.add("TRUE");
+		ret.add("FALSE");
+		ret.add("NULL");
+		ret.add("END_ARRAY");
+		ret.add("NAME:sub");
+		ret.add("BEGIN_OBJECT");
+		ret.add("NAME:x");
+		ret.add("BEGIN_ARRAY");
+		ret.add("END_ARRAY");
+		ret.add("END_OBJECT");
+		ret.add("END_OBJECT");
+		return ret;
+	}
+
+}
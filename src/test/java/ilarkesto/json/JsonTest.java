@@ -3,6 +3,11 @@ package ilarkesto.json;
 import ilarkesto.core.base.Utl;
 import ilarkesto.testng.ATest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 import java.util.List;
 
 import org.testng.annotations.Test;
@@ -129,6 +134,88 @@ public class JsonTest extends ATest {
 		assertNotEquals(JsonObject.parse("{\"list\":[[{}]]}"), JsonObject.parse("{\"list\":[[]]}"));
 	}
 
+	@Test
+	public void loadEmptyStream() {
+		assertEquals(JsonObject.loadFromStream(new ByteArrayInputStream(new byte[0])).toString(), "{}");
+		assertEquals(JsonObject.loadFromStream(new ByteArrayInputStream(" \n".getBytes())).toString(), "{}");
+		assertEquals(JsonObject.loadFromStream(new ByteArrayInputStream("{\"a\":1}".getBytes())).get("a"), 1L);
+	}
+
+	@Test
+	public void parseFromReader() {
+		String json = "{\"a\":\"new\\nline \\u20ac\",\"list\":[1,2.5,1e3,-7,true,null],\"sub\":{\"b\":\"x\"}}";
+		JsonObject jo = new JsonParser(new OneCharReader(json)).parseObject();
+		assertEquals(jo.get("a"), "new\nline \u20ac");
+		assertEquals(jo.getArray("list"), Arrays.asList(1L, 2.5, 1000.0, -7L, true, null));
+		assertSame(jo.getObject("sub").getParent(), jo);
+		assertEquals(jo, JsonObject.parse(json));
+	}
+
+	@Test
+	public void parseInternKeys() {
+		JsonObject jo = new JsonParser("{\"list\":[{\"name\":1},{\"name\":2}]}").setInternKeys(true).parseObject();
+		List<JsonObject> list = jo.getArrayOfObjects("list");
+		assertSame(list.get(0).getProperties().iterator().next(), list.get(1).getProperties().iterator().next());
+		assertSame(list.get(1).getParent(), jo);
+	}
+
+	@Test
+	public void parseInvalid() {
+		for (String json : Utl.toList("{", "{\"a\"}", "{\"a\":}", "{\"a\":1 \"b\":2}", "{\"a\":\"x}", "{\"a\":nul}")) {
+			try {
+				JsonObject.parse(json);
+				fail("ParseException expected: " + json);
+			} catch (ParseException ex) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void writeUtf8() throws Exception {
+		JsonObject jo = new JsonObject();
+		jo.put("text", "\"quoted\" / \u20ac \ud83d\ude00 \u00e4\n");
+		jo.put("numbers", Utl.toList(1L, -23L, Long.MIN_VALUE, 2.5));
+		jo.putNewObject("sub").put("list", Utl.toList(new JsonObject(), "x"));
+		StringBuilder longText = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			longText.append("\u00e4\t");
+		}
+		jo.put("long", longText.toString());
+
+		for (boolean formated : new boolean[] { false, true }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			jo.write(out, formated);
+			assertEquals(out.toString("UTF-8"), formated ? jo.toFormatedString() : jo.toString());
+
+			out = new ByteArrayOutputStream();
+			jo.write(Channels.newChannel(out), formated);
+			assertEquals(out.toString("UTF-8"), formated ? jo.toFormatedString() : jo.toString());
+		}
+		assertEquals(JsonObject.parse(jo.toString()), jo);
+	}
+
 	// --- helper ---
 
+	private static class OneCharReader extends Reader {
+
+		private String s;
+		private int idx;
+
+		public OneCharReader(String s) {
+			this.s = s;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (idx >= s.length()) return -1;
+			cbuf[off] = s.charAt(idx++);
+			return 1;
+		}
+
+		@Override
+		public void close() {}
+
+	}
+
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json.jsondb;
+
+import ilarkesto.io.IO;
+import ilarkesto.json.JsonObject;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class FileJsonDbTest extends ATest {
+
+	@Test
+	public void saveLoadReopen() {
+		File dir = createEmptyDir("saveLoadReopen");
+		FileJsonDb db = new FileJsonDb(dir).setSyncWrites(false);
+		JsonObject doc = new JsonObject();
+		doc.put("name", "Witek");
+		db.saveDocument(doc);
+		String id = doc.getString("_id");
+		assertNotNull(id);
+		assertEquals(doc.getString("_rev"), "1");
+
+		doc.put("name", "Witoslaw");
+		db.saveDocument(doc);
+		assertEquals(doc.getString("_rev"), "2");
+
+		JsonObject other = new JsonObject();
+		other.put("_id", "other");
+		db.saveDocument(other);
+		db.deleteDocumentById("other");
+		db.close();
+
+		db = new FileJsonDb(dir).setCacheSize(0);
+		assertEquals(db.listAllDocumentIds(), Arrays.asList(id));
+		JsonObject loaded = db.loadDocumentById(id);
+		assertEquals(loaded.getString("name"), "Witoslaw");
+		assertEquals(loaded.getString("_rev"), "2");
+		assertNull(db.loadDocumentById("other"));
+		db.close();
+	}
+
+	@Test
+	public void conflict() {
+		FileJsonDb db = new FileJsonDb(createEmptyDir("conflict")).setSyncWrites(false).setCacheSize(0);
+		JsonObject doc = new JsonObject();
+		doc.put("_id", "a");
+		db.saveDocument(doc);
+		JsonObject stale = db.loadDocumentById("a");
+		db.saveDocument(db.loadDocumentById("a"));
+		try {
+			db.saveDocument(stale);
+			fail("conflict expected");
+		} catch (JsonDbException ex) {
+			// expected
+		}
+		db.close();
+	}
+
+	@Test
+	public void conflictWithCachedDocument() {
+		FileJsonDb db = new FileJsonDb(createEmptyDir("conflictWithCachedDocument")).setSyncWrites(false);
+		JsonObject doc = new JsonObject();
+		doc.put("_id", "a");
+		db.saveDocument(doc);
+		JsonObject first = db.loadDocumentById("a");
+		JsonObject second = db.loadDocumentById("a");
+		assertNotSame(first, second);
+
+		first.put("name", "first");
+		db.saveDocument(first);
+		second.put("name", "second");
+		try {
+			db.saveDocument(second);
+			fail("conflict expected");
+		} catch (JsonDbException ex) {
+			// expected
+		}
+		assertEquals(db.loadDocumentById("a").getString("name"), "first");
+		db.close();
+	}
+
+	@Test
+	public void indexedQuery() {
+		FileJsonDb db = new FileJsonDb(createEmptyDir("indexedQuery")).setSyncWrites(false);
+		for (int i = 0; i < 100; i++) {
+			JsonObject doc = new JsonObject();
+			doc.put("_id", "doc" + i);
+			doc.putNewObject("meta").put("group", i % 10);
+			db.saveDocument(doc);
+		}
+		List<JsonObject> scanned = db.loadDocumentsByFilter(new PathValueFilter(3, "meta", "group"));
+		db.addIndex("meta", "group");
+		List<JsonObject> indexed = db.loadDocumentsByFilter(new PathValueFilter(3, "meta", "group"));
+		assertEquals(scanned.size(), 10);
+		assertEquals(getIds(indexed).size(), 10);
+		assertTrue(getIds(indexed).containsAll(getIds(scanned)));
+
+		db.deleteDocumentById("doc3");
+		JsonObject moved = db.loadDocumentById("doc4");
+		moved.getObject("meta").put("group", 3);
+		db.saveDocument(moved);
+		indexed = db.loadDocumentsByFilter(new PathValueFilter(3L, "meta", "group"));
+		assertEquals(indexed.size(), 10);
+		assertFalse(getIds(indexed).contains("doc3"));
+		assertTrue(getIds(indexed).contains("doc4"));
+		db.close();
+	}
+
+	@Test
+	public void indexAfterReopen() {
+		File dir = createEmptyDir("indexAfterReopen");
+		FileJsonDb db = new FileJsonDb(dir).setSyncWrites(false);
+		for (int i = 0; i < 100; i++) {
+			JsonObject doc = new JsonObject();
+			doc.put("_id", "doc" + i);
+			doc.put("group", i % 10);
+			db.saveDocument(doc);
+		}
+		db.close();
+
+		// nothing is cached, so the documents are read from the segments
+		db = new FileJsonDb(dir).setLoaderThreads(4);
+		db.addIndex("group");
+		List<JsonObject> indexed = db.loadDocumentsByFilter(new PathValueFilter(7, "group"));
+		assertEquals(getIds(indexed).size(), 10);
+		assertTrue(getIds(indexed).contains("doc17"));
+		db.close();
+	}
+
+	@Test
+	public void compactAndParallelLoad() {
+		File dir = createEmptyDir("compact");
+		FileJsonDb db = new FileJsonDb(dir).setSyncWrites(false).setSegmentSize(1024).setCacheSize(0);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			JsonObject doc = new JsonObject();
+			doc.put("_id", "doc" + i);
+			doc.put("value", i);
+			db.saveDocument(doc);
+			ids.add(doc.getString("_id"));
+		}
+		for (int i = 0; i < 200; i += 2) {
+			db.deleteDocumentById("doc" + i);
+		}
+		db.compact();
+		db.close();
+
+		db = new FileJsonDb(dir).setCacheSize(0);
+		assertEquals(db.getDocumentCount(), 100);
+		ids.add("missing");
+		List<JsonObject> docs = db.loadDocumentsByIds(ids);
+		assertEquals(docs.size(), ids.size());
+		for (int i = 0; i < 200; i++) {
+			if (i % 2 == 0) assertNull(docs.get(i));
+			else assertEquals(docs.get(i).getInteger("value"), Integer.valueOf(i));
+		}
+		assertNull(docs.get(200));
+		db.close();
+	}
+
+	private File createEmptyDir(String name) {
+		File dir = getTestOutputFile(name);
+		IO.delete(dir);
+		return dir;
+	}
+
+	private static List<String> getIds(List<JsonObject> documents) {
+		List<String> ids = new ArrayList<String>();
+		for (JsonObject document : documents) {
+			ids.add(document.getString("_id"));
+		}
+		return ids;
+	}
+
+}
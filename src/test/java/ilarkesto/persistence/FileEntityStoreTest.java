@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class FileEntityStoreTest extends ATest {
+
+	private static final String ALIAS = "testEntity";
+
+	@Test
+	public void transactionLogIsReplayed() {
+		File dir = createEmptyDir("transactionLogIsReplayed");
+		FileEntityStore store = createStore(dir, 1024 * 1024);
+		TestEntity a = new TestEntity("a");
+		TestEntity b = new TestEntity("b");
+		save(store, a, b);
+		a.label = "a2";
+		save(store, a);
+		delete(store, b);
+		assertSame(store.getById(a.getId()), a);
+		assertNull(store.getById(b.getId()));
+
+		store = createStore(dir, 1024 * 1024);
+		assertEquals(getLabel(store, a.getId()), "a2");
+		assertNull(store.getById(b.getId()));
+		assertEquals(store.getEntitiesCount(null, null), 1);
+	}
+
+	@Test
+	public void interruptedCommitStaysDurable() {
+		File dir = createEmptyDir("interruptedCommitStaysDurable");
+		FileEntityStore store = createStore(dir, 1024 * 1024);
+		TestEntity a = new TestEntity("a");
+		Thread.currentThread().interrupt();
+		try {
+			save(store, a);
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+		TestEntity b = new TestEntity("b");
+		save(store, b);
+
+		store = createStore(dir, 1024 * 1024);
+		assertEquals(getLabel(store, a.getId()), "a");
+		assertEquals(getLabel(store, b.getId()), "b");
+	}
+
+	@Test
+	public void tornRecordIsSkipped() throws IOException {
+		File dir = createEmptyDir("tornRecordIsSkipped");
+		FileEntityStore store = createStore(dir, 1024 * 1024);
+		TestEntity a = new TestEntity("a");
+		save(store, a);
+
+		// simulate a crash in the middle of writing a record
+		File[] segments = new File(dir, FileEntityStore.TRANSACTION_LOG_DIR_NAME).listFiles();
+		assertEquals(segments.length, 1);
+		FileOutputStream out = new FileOutputStream(segments[0], true);
+		out.write(new byte[] { 0, 0, 1, 0, 42, 42 });
+		out.close();
+
+		store = createStore(dir, 1024 * 1024);
+		assertEquals(getLabel(store, a.getId()), "a");
+		TestEntity b = new TestEntity("b");
+		save(store, b);
+
+		store = createStore(dir, 1024 * 1024);
+		assertEquals(getLabel(store, a.getId()), "a");
+		assertEquals(getLabel(store, b.getId()), "b");
+	}
+
+	@Test
+	public void compactedTransactionLogIsLoadedFromEntityFiles() {
+		File dir = createEmptyDir("compactedTransactionLogIsLoadedFromEntityFiles");
+		// every record fills a segment
+		FileEntityStore store = createStore(dir, 1);
+		TestEntity a = new TestEntity("a");
+		TestEntity b = new TestEntity("b");
+		save(store, a, b);
+		a.label = "a2";
+		save(store, a);
+		delete(store, b);
+		store.compactTransactionLog();
+
+		assertTrue(new File(dir, ALIAS + "/" + a.getId() + ".xml").exists());
+		assertFalse(new File(dir, ALIAS + "/" + b.getId() + ".xml").exists());
+		File[] segments = new File(dir, FileEntityStore.TRANSACTION_LOG_DIR_NAME).listFiles();
+		assertEquals(segments.length, 1);
+
+		store = createStore(dir, 1);
+		assertEquals(getLabel(store, a.getId()), "a2");
+		assertNull(store.getById(b.getId()));
+	}
+
+	@Test
+	public void snapshotIsRefreshedByCompaction() {
+		File dir = createEmptyDir("snapshotIsRefreshedByCompaction");
+		FileEntityStore store = createStore(dir, 1, true);
+		TestEntity a = new TestEntity("a");
+		TestEntity b = new TestEntity("b");
+		save(store, a, b);
+		delete(store, b);
+		store.compactTransactionLog();
+
+		// loaded from the snapshot instead of the compacted entity files
+		store = createStore(dir, 1024 * 1024, true);
+		assertEquals(store.getLoadStatistics().getFileCount(), 0);
+		assertEquals(getLabel(store, a.getId()), "a");
+		assertNull(store.getById(b.getId()));
+
+		// newer records are replayed on top of the snapshot
+		TestEntity c = new TestEntity("c");
+		save(store, c);
+		store = createStore(dir, 1024 * 1024, true);
+		assertEquals(store.getLoadStatistics().getFileCount(), 0);
+		assertEquals(getLabel(store, a.getId()), "a");
+		assertEquals(getLabel(store, c.getId()), "c");
+		assertEquals(store.getEntitiesCount(null, null), 2);
+	}
+
+	@Test
+	public void snapshotIsRewrittenOnLock() {
+		File dir = createEmptyDir("snapshotIsRewrittenOnLock");
+		FileEntityStore store = createStore(dir, 0, true);
+		TestEntity a = new TestEntity("a");
+		save(store, a);
+		assertFalse(new File(dir, FileEntityStore.SNAPSHOTS_DIR_NAME).exists());
+		store.lock();
+
+		store = createStore(dir, 0, true);
+		assertEquals(store.getLoadStatistics().getFileCount(), 0);
+		assertEquals(getLabel(store, a.getId()), "a");
+	}
+
+	@Test
+	public void snapshotIsIgnoredAfterEntityFileEdit() throws IOException {
+		File dir = createEmptyDir("snapshotIsIgnoredAfterEntityFileEdit");
+		FileEntityStore store = createStore(dir, 0, true);
+		TestEntity a = new TestEntity("a");
+		save(store, a);
+		store.lock();
+
+		// edit in place, the directory is not changed
+		File file = new File(dir, ALIAS + "/" + a.getId() + ".xml");
+		long dirLastModified = file.getParentFile().lastModified();
+		a.label = "edited";
+		FileOutputStream out = new FileOutputStream(file);
+		new TestSerializer().serialize(a, out);
+		out.close();
+		file.setLastModified(file.lastModified() + 2000);
+		file.getParentFile().setLastModified(dirLastModified);
+
+		store = createStore(dir, 0, true);
+		assertEquals(store.getLoadStatistics().getFileCount(), 1);
+		assertEquals(getLabel(store, a.getId()), "edited");
+	}
+
+	private File createEmptyDir(String name) {
+		File dir = getTestOutputFile(name);
+		IO.delete(dir);
+		return dir;
+	}
+
+	static FileEntityStore createStore(File dir, long segmentSize) {
+		return createStore(dir, segmentSize, false);
+	}
+
+	/**
+	 * Creates a store, which uses a transaction log if <code>segmentSize</code> is positive.
+	 */
+	private static FileEntityStore createStore(File dir, long segmentSize, boolean snapshotsEnabled) {
+		FileEntityStore store = new FileEntityStore();
+		store.setDir(dir.getPath());
+		store.setBackupDir(dir.getPath() + "/backups");
+		store.setBeanSerializer(new TestSerializer());
+		store.setSnapshotsEnabled(snapshotsEnabled);
+		store.setTransactionLogEnabled(segmentSize > 0);
+		if (segmentSize > 0) store.setTransactionLogSegmentSize(segmentSize);
+		store.load(TestEntity.class, ALIAS, false);
+		return store;
+	}
+
+	private static void save(EntityStore store, AEntity... entities) {
+		store.persist(Arrays.asList(entities), Collections.<AEntity> emptyList());
+	}
+
+	private static void delete(EntityStore store, AEntity... entities) {
+		store.persist(Collections.<AEntity> emptyList(), Arrays.asList(entities));
+	}
+
+	private static String getLabel(EntityStore store, String id) {
+		TestEntity entity = (TestEntity) store.getById(id);
+		assertNotNull(entity, id);
+		return entity.label;
+	}
+
+	private static class TestSerializer extends Serializer {
+
+		@Override
+		public void setAlias(String alias, Class clazz) {}
+
+		@Override
+		public void serialize(Object bean, OutputStream out) {
+			TestEntity entity = (TestEntity) bean;
+			DataOutputStream data = new DataOutputStream(out);
+			try {
+				data.writeUTF(entity.getId());
+				data.writeUTF(entity.label);
+				data.flush();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		@Override
+		public Object deserialize(InputStream in) {
+			DataInputStream data = new DataInputStream(in);
+			try {
+				TestEntity entity = new TestEntity(null);
+				entity.setId(data.readUTF());
+				entity.label = data.readUTF();
+				return entity;
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+	}
+
+	private static class TestDao extends ADao<TestEntity> {
+
+		@Override
+		public String getEntityName() {
+			return ALIAS;
+		}
+
+		@Override
+		public Class getEntityClass() {
+			return TestEntity.class;
+		}
+
+	}
+
+	private static final TestDao dao = new TestDao();
+
+	static class TestEntity extends AEntity {
+
+		private String label;
+
+		public TestEntity() {}
+
+		public TestEntity(String label) {
+			this.label = label;
+		}
+
+		@Override
+		public ADao getDao() {
+			return dao;
+		}
+
+		@Override
+		public void updateProperties(Map<?, ?> properties) {}
+
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Factory;
+import ilarkesto.core.logging.Log;
+import ilarkesto.fp.Predicate;
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class TransactionServiceTest extends ATest {
+
+	/**
+	 * Contention benchmark: commit throughput of a <code>FileEntityStore</code> with transaction log by number of
+	 * committing threads.
+	 */
+	public static void main(String[] args) {
+		Log.setDebugEnabled(false);
+		int commitsPerThread = 500;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "ilarkesto-commit-benchmark");
+		for (int round = 0; round < 2; round++) {
+			for (int threads = 1; threads <= 16; threads *= 2) {
+				IO.delete(dir);
+				TransactionService transactionService = new TransactionService();
+				transactionService.setEntityStore(FileEntityStoreTest.createStore(dir, 64 * 1024 * 1024));
+
+				long start = System.nanoTime();
+				try {
+					runCommits(transactionService, threads, commitsPerThread, new Factory<AEntity>() {
+
+						@Override
+						public AEntity getBean() {
+							AEntity entity = new FileEntityStoreTest.TestEntity("benchmark");
+							// no dao service here to handle the modification event of ensureIntegrity()
+							entity.updateLastModified();
+							return entity;
+						}
+					});
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+				long nanos = System.nanoTime() - start;
+
+				int commits = threads * commitsPerThread;
+				System.out.println(threads + " threads: " + commits * 1000000000L / nanos + " commits/s, "
+						+ nanos / 1000 / commitsPerThread + " us per commit");
+			}
+			System.out.println();
+		}
+		IO.delete(dir);
+	}
+
+	@Test
+	public void commitsRunConcurrently() throws Exception {
+		int threads = 4;
+		// every persist waits for all threads, so this only passes if commits are not serialized
+		MemoryEntityStore store = new MemoryEntityStore(new CyclicBarrier(threads));
+		TransactionService transactionService = new TransactionService();
+		transactionService.setEntityStore(store);
+
+		runCommits(transactionService, threads, 10, new Factory<AEntity>() {
+
+			@Override
+			public AEntity getBean() {
+				return new TestEntity();
+			}
+		});
+
+		assertEquals(store.entities.size(), threads * 10);
+		assertNull(store.failure);
+	}
+
+	@Test
+	public void transactionsAreThreadLocal() throws Exception {
+		final TransactionService transactionService = new TransactionService();
+		transactionService.setEntityStore(new MemoryEntityStore(null));
+
+		final TestEntity entity = new TestEntity();
+		transactionService.saveEntity(entity);
+		assertSame(transactionService.getById(entity.getId()), entity);
+
+		final List<Object> resultFromOtherThread = new ArrayList<Object>();
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				resultFromOtherThread.add(String.valueOf(transactionService.getById(entity.getId())));
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(resultFromOtherThread.get(0), "null");
+
+		transactionService.commit();
+		assertSame(transactionService.getById(entity.getId()), entity);
+	}
+
+	@Test
+	public void modifiedEntitiesAreIntegratedAgain() {
+		TransactionService transactionService = new TransactionService();
+		transactionService.setEntityStore(new MemoryEntityStore(null));
+
+		IntegrityTestEntity modified = new IntegrityTestEntity(transactionService, null);
+		IntegrityTestEntity modifier = new IntegrityTestEntity(transactionService, modified);
+		// both orders, since the order of the first pass is not defined
+		transactionService.saveEntity(modified);
+		transactionService.saveEntity(modifier);
+		transactionService.commit();
+		assertTrue(modified.integratedAfterModification);
+
+		modified = new IntegrityTestEntity(transactionService, null);
+		modifier = new IntegrityTestEntity(transactionService, modified);
+		transactionService.saveEntity(modifier);
+		transactionService.saveEntity(modified);
+		transactionService.commit();
+		assertTrue(modified.integratedAfterModification);
+	}
+
+	private static void runCommits(final TransactionService transactionService, int threadCount,
+			final int commitsPerThread, final Factory<? extends AEntity> entityFactory) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < commitsPerThread; j++) {
+						transactionService.saveEntity(entityFactory.getBean());
+						transactionService.commit();
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static class MemoryEntityStore implements EntityStore {
+
+		private Map<String, AEntity> entities = new ConcurrentHashMap<String, AEntity>();
+		private CyclicBarrier barrier;
+		private Exception failure;
+
+		public MemoryEntityStore(CyclicBarrier barrier) {
+			this.barrier = barrier;
+		}
+
+		@Override
+		public void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+			try {
+				if (barrier != null) barrier.await(10, TimeUnit.SECONDS);
+			} catch (Exception ex) {
+				failure = ex;
+				throw new RuntimeException(ex);
+			}
+			synchronized (this) {
+				for (AEntity entity : entitiesToSave) {
+					entities.put(entity.getId(), entity);
+				}
+				for (AEntity entity : entitiesToDelete) {
+					entities.remove(entity.getId());
+				}
+			}
+		}
+
+		@Override
+		public AEntity getById(String id) {
+			return entities.get(id);
+		}
+
+		@Override
+		public List<AEntity> getByIds(Collection<String> ids) {
+			List<AEntity> ret = new ArrayList<AEntity>(ids.size());
+			for (String id : ids) {
+				AEntity entity = entities.get(id);
+				if (entity != null) ret.add(entity);
+			}
+			return ret;
+		}
+
+		@Override
+		public AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+			Set<AEntity> result = getEntities(typeFilter, entityFilter);
+			return result.isEmpty() ? null : result.iterator().next();
+		}
+
+		@Override
+		public int getEntitiesCount(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+			return getEntities(typeFilter, entityFilter).size();
+		}
+
+		@Override
+		public Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
+			Set<AEntity> ret = new HashSet<AEntity>();
+			for (AEntity entity : entities.values()) {
+				if (typeFilter != null && !typeFilter.test(entity.getClass())) continue;
+				if (entityFilter != null && !entityFilter.test(entity)) continue;
+				ret.add(entity);
+			}
+			return ret;
+		}
+
+		@Override
+		public void setVersion(long version) {}
+
+		@Override
+		public void setAlias(String alias, Class cls) {}
+
+		@Override
+		public void load(Class<? extends AEntity> cls, String alias, boolean deleteOnFailure) {}
+
+		@Override
+		public void lock() {}
+
+		@Override
+		public void deleteOldBackups() {}
+
+	}
+
+	private static class IntegrityTestEntity extends TestEntity {
+
+		private TransactionService transactionService;
+		private IntegrityTestEntity entityToModify;
+		private boolean modified;
+		private boolean integratedAfterModification;
+
+		public IntegrityTestEntity(TransactionService transactionService, IntegrityTestEntity entityToModify) {
+			this.transactionService = transactionService;
+			this.entityToModify = entityToModify;
+		}
+
+		@Override
+		public void ensureIntegrity() {
+			integratedAfterModification = modified;
+			if (entityToModify != null && !entityToModify.modified) {
+				entityToModify.modified = true;
+				transactionService.saveEntity(entityToModify);
+			}
+		}
+
+	}
+
+	private static class TestEntity extends AEntity {
+
+		@Override
+		public ADao getDao() {
+			return null;
+		}
+
+		@Override
+		public void updateProperties(Map<?, ?> properties) {}
+
+	}
+
+}